@@ -0,0 +1,99 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.storage.EntryDictionary;
+import lombok.val;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of packing and unpacking one entry, see EntryCompression. The dictionary is trained on another time of the same test,
+ * as it is when the first batch of a test arrives; without one, every entry is compressed on its own.
+ * The sizes of the packed and unpacked entries are reported as secondary results of pack, their quotient is the compression ratio.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"1", "10", "100"})
+    private int stories;
+    @Param({"1", "6"})
+    private int level;
+    @Param({"true", "false"})
+    private boolean trained;
+
+    private String time;
+    private EntryDictionary dictionary;
+    private byte[] packed;
+    private int size;
+
+    /**
+     * Totals over all calls of pack, JMH sums events over threads and iterations.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        public long entryBytes;
+        public long packedBytes;
+    }
+
+    @Setup
+    public void setUp() {
+        val sample = IngestBenchmark.exampleTime(5, stories);
+        //same structure, other values
+        time = sample.replace("76363421", "76364421").replace("\"1", "\"2");
+        dictionary = new EntryDictionary(1, trained ? EntryDictionary.train(Collections.singletonList(sample), 16384) : new byte[0]);
+        packed = dictionary.pack(time, level);
+        size = time.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Benchmark
+    public byte[] pack(Sizes sizes) {
+        val result = dictionary.pack(time, level);
+        sizes.entryBytes += size;
+        sizes.packedBytes += result.length;
+        return result;
+    }
+
+    @Benchmark
+    public String unpack() {
+        return dictionary.unpack(packed);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.ingest.EntryParser;
+import de.hpi.tdgt.ingest.IngestEntry;
+import de.hpi.tdgt.storage.CsvCopy;
+import de.hpi.tdgt.test.TestRegistry;
+import lombok.val;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of a received message up to the point where it is handed to the ingest pipeline, plus building its rows for COPY,
+ * for messages shaped like the ones the generator sends. Run with the gc profiler to see the allocation per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+    private static final long TEST_ID = 30847872;
+
+    @Param({"1", "10", "100", "500"})
+    private int stories;
+    @Param({"1", "5"})
+    private int urls;
+
+    private byte[] time;
+    private byte[] assertion;
+    private TestRegistry registry;
+
+    @Setup
+    public void setUp() {
+        time = exampleTime(urls, stories).getBytes(StandardCharsets.UTF_8);
+        assertion = exampleAssertion(stories).getBytes(StandardCharsets.UTF_8);
+        //known tests are answered from memory, the repository is only asked for unknown ones
+        registry = new TestRegistry(null);
+        registry.started(TEST_ID);
+    }
+
+    @Benchmark
+    public IngestEntry parseTime() throws IOException {
+        return EntryParser.parse(IngestEntry.Kind.TIME, time);
+    }
+
+    @Benchmark
+    public IngestEntry parseAssertion() throws IOException {
+        return EntryParser.parse(IngestEntry.Kind.ASSERTION, assertion);
+    }
+
+    /**
+     * What TimeController and the ingest pipeline do for one time: parse it, look up its test and build the rows for COPY.
+     */
+    @Benchmark
+    public CsvCopy handleTime() throws IOException {
+        val entry = EntryParser.parse(IngestEntry.Kind.TIME, time);
+        if (!registry.exists(entry.getTestId())) {
+            throw new IllegalStateException("Test " + entry.getTestId() + " is not known");
+        }
+        val rows = new CsvCopy();
+        rows.row(0L, entry.getTestId(), entry.getCreationTime(), entry.getFullEntry(), entry.getFullEntry(), entry.getContentHash());
+        for (val measurement : entry.getMeasurements()) {
+            rows.row(0L, measurement.getTestId(), measurement.getCreationTime(),
+                    measurement.getUrl(), measurement.getMethod(), measurement.getStory(),
+                    measurement.getMinLatency(), measurement.getAvgLatency(), measurement.getMaxLatency(), measurement.getThroughput(), 0L);
+        }
+        return rows;
+    }
+
+    /**
+     * Same format as the exampleTime of TimeControllerTest, with POST and GET for every url.
+     */
+    static String exampleTime(int urls, int stories) {
+        val sb = new StringBuilder("{\n    \"testId\": " + TEST_ID + ",\n    \"creationTime\": 76363421,\n    \"times\":{\n");
+        for (int url = 0; url < urls; url++) {
+            sb.append(url == 0 ? "" : ",\n").append("\t\"http://localhost:9000/path").append(url).append("\":{\n");
+            String[] methods = {"POST", "GET"};
+            for (int method = 0; method < methods.length; method++) {
+                sb.append(method == 0 ? "" : ",\n").append("\t\t\"").append(methods[method]).append("\":{\n");
+                for (int story = 0; story < stories; story++) {
+                    sb.append(story == 0 ? "" : ",\n").append("\t\t\t\"story").append(story).append("\":{\n")
+                            .append("\t\t\t\t\"minLatency\":\"").append(10 + story).append("\",\n")
+                            .append("\t\t\t\t\"avgLatency\":\"").append(20 + story).append("\",\n")
+                            .append("\t\t\t\t\"maxLatency\":\"").append(30 + story).append("\",\n")
+                            .append("\t\t\t\t\"throughput\":\"1\"\n")
+                            .append("\t\t\t}");
+                }
+                sb.append("\n\t\t}");
+            }
+            sb.append("\n\t}");
+        }
+        return sb.append("\n    }\n}\n").toString();
+    }
+
+    /**
+     * Same format as the exampleAssertion of AssertionControllerTest, with one assertion per story.
+     */
+    static String exampleAssertion(int assertions) {
+        val sb = new StringBuilder("{ \n  \"testId\":" + TEST_ID + ",\n    \"actuals\":{ \n");
+        for (int i = 0; i < assertions; i++) {
+            sb.append(i == 0 ? "" : ",\n").append("      \"postWithBody returns JSON ").append(i).append("\":{ \n")
+                    .append("        \"key\":").append(i).append(",\n")
+                    .append("        \"value\":[ \n          \"application/json\"\n        ]\n      }");
+        }
+        return sb.append("\n    }\n}\n").toString();
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.aggregation;
+
+import de.hpi.tdgt.storage.TestArchive;
+import de.hpi.tdgt.test.TimeMeasurement;
+import lombok.val;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Aggregates the measurements of a test into time buckets inside the database, so clients do not have to download every time.
+ * Uses the coarsest fitting rollup tier for the part of the test that has already been rolled up.
+ * Archived tests are completely rolled up; if no tier fits, their measurements are aggregated from the archive.
+ */
+@Service
+public class AggregationService {
+    public static final List<String> GROUP_COLUMNS = Arrays.asList("url", "method", "story");
+    private static final Pattern BUCKET_PATTERN = Pattern.compile("(\\d+)(ms|s|m|h)");
+    //like Postgres sorts ascending
+    private static final Comparator<String> GROUP_ORDER = Comparator.nullsLast(Comparator.naturalOrder());
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final RollupService rollupService;
+    private final TestArchive archive;
+
+    public AggregationService(NamedParameterJdbcTemplate jdbcTemplate, RollupService rollupService, TestArchive archive) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.rollupService = rollupService;
+        this.archive = archive;
+    }
+
+    /**
+     * @param testId test to aggregate
+     * @param bucketMs width of a bucket in milliseconds
+     * @param groupBy subset of GROUP_COLUMNS, every combination of their values gets its own buckets
+     * @param from only measurements with creationTime >= from are aggregated, may be null
+     * @param to only measurements with creationTime <= to are aggregated, may be null
+     * @return buckets ordered by start and group values
+     */
+    public List<AggregateBucket> aggregate(long testId, long bucketMs, List<String> groupBy, Long from, Long to) {
+        val groups = new LinkedHashSet<String>();
+        for (val column : groupBy) {
+            //columns are inserted into the statement, so only known names are allowed
+            if (!GROUP_COLUMNS.contains(column)) {
+                throw new IllegalArgumentException("Can not group by " + column + ", allowed are " + GROUP_COLUMNS);
+            }
+            groups.add(column);
+        }
+        if (bucketMs <= 0) {
+            throw new IllegalArgumentException("Bucket width has to be positive");
+        }
+        val groupColumns = groups.stream().map(column -> ", " + column).collect(Collectors.joining());
+        val parameters = new MapSqlParameterSource()
+                .addValue("test", testId)
+                .addValue("bucket", bucketMs)
+                .addValue("from", from != null ? from : Long.MIN_VALUE)
+                .addValue("to", to != null ? to : Long.MAX_VALUE);
+        //raw measurements in the same shape as rollups, so both can be aggregated alike
+        val rawSamples = "select creation_time as sample_time, url, method, story, min_latency, max_latency, avg_latency * throughput as latency_sum, " +
+                "case when avg_latency is not null then throughput end as latency_weight, avg_latency as avg_sum, " +
+                "case when avg_latency is not null then 1 else 0 end as avg_count, throughput " +
+                "from time_measurement where test_id = :test and creation_time between :from and :to and creation_time >= :watermark";
+        String samples;
+        val tier = selectTier(bucketMs, from, to);
+        if (tier == null && archive.contains(testId)) {
+            return aggregateArchived(testId, bucketMs, groups, from, to);
+        }
+        if (tier != null) {
+            //rollups below the watermark, raw measurements above it
+            parameters.addValue("resolution", tier).addValue("watermark", rollupService.getWatermark(testId));
+            samples = "select bucket_start as sample_time, url, method, story, min_latency, max_latency, latency_sum, latency_weight, avg_sum, avg_count, throughput " +
+                    "from time_rollup where test_id = :test and resolution_ms = :resolution and bucket_start between :from and :to and bucket_start < :watermark " +
+                    "union all " + rawSamples;
+        } else {
+            parameters.addValue("watermark", Long.MIN_VALUE);
+            samples = rawSamples;
+        }
+        val sql = "select sample_time / :bucket * :bucket as bucket_start" + groupColumns + ", " +
+                "min(min_latency) as min_latency, " +
+                "coalesce(sum(latency_sum) / nullif(sum(latency_weight), 0), sum(avg_sum) / nullif(sum(avg_count), 0)) as avg_latency, " +
+                "max(max_latency) as max_latency, " +
+                "sum(throughput) as throughput " +
+                "from (" + samples + ") samples " +
+                "group by bucket_start" + groupColumns + " order by bucket_start" + groupColumns;
+        return jdbcTemplate.query(sql, parameters, (rs, rowNum) -> new AggregateBucket(
+                rs.getLong("bucket_start"),
+                groups.contains("url") ? rs.getString("url") : null,
+                groups.contains("method") ? rs.getString("method") : null,
+                groups.contains("story") ? rs.getString("story") : null,
+                (Double) rs.getObject("min_latency"),
+                (Double) rs.getObject("avg_latency"),
+                (Double) rs.getObject("max_latency"),
+                (Double) rs.getObject("throughput")));
+    }
+
+    /**
+     * Aggregates the measurements of an archived test like the query in aggregate does.
+     */
+    private List<AggregateBucket> aggregateArchived(long testId, long bucketMs, Set<String> groups, Long from, Long to) {
+        val lower = from != null ? from : Long.MIN_VALUE;
+        val upper = to != null ? to : Long.MAX_VALUE;
+        val buckets = new HashMap<List<Object>, Sums>();
+        archive.forEachMeasurement(testId, measurement -> {
+            val creationTime = measurement.getCreationTime();
+            if (creationTime == null || creationTime < lower || creationTime > upper) {
+                return;
+            }
+            val key = Arrays.<Object>asList(creationTime / bucketMs * bucketMs,
+                    groups.contains("url") ? measurement.getUrl() : null,
+                    groups.contains("method") ? measurement.getMethod() : null,
+                    groups.contains("story") ? measurement.getStory() : null);
+            buckets.computeIfAbsent(key, k -> new Sums()).add(measurement);
+        });
+        //ordered by start and the group columns in the order they have been given, like the query
+        Comparator<AggregateBucket> order = Comparator.comparingLong(AggregateBucket::getBucketStart);
+        for (val column : groups) {
+            order = order.thenComparing(bucket -> "url".equals(column) ? bucket.getUrl() : "method".equals(column) ? bucket.getMethod() : bucket.getStory(), GROUP_ORDER);
+        }
+        return buckets.entrySet().stream().map(bucket -> {
+            val key = bucket.getKey();
+            val sums = bucket.getValue();
+            return new AggregateBucket((Long) key.get(0), (String) key.get(1), (String) key.get(2), (String) key.get(3),
+                    sums.minLatency, sums.getAvgLatency(), sums.maxLatency, sums.throughput);
+        }).sorted(order).collect(Collectors.toList());
+    }
+
+    /**
+     * Picks the coarsest rollup tier that can answer the query exactly: its resolution divides the bucket width and from/to are on its bucket boundaries.
+     * @return resolution of the tier, or null if only raw measurements can be used
+     */
+    private Long selectTier(long bucketMs, Long from, Long to) {
+        val tiers = rollupService.getTiers();
+        for (int i = tiers.length - 1; i >= 0; i--) {
+            val tier = tiers[i];
+            if (bucketMs % tier == 0 && (from == null || from % tier == 0) && (to == null || (to + 1) % tier == 0)) {
+                return tier;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses bucket widths like 500ms, 10s, 1m or 2h.
+     * @return width in milliseconds
+     */
+    public static long parseBucket(String bucket) {
+        val matcher = BUCKET_PATTERN.matcher(bucket.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid bucket width \"" + bucket + "\", expected e.g. 500ms, 10s, 1m or 1h");
+        }
+        val amount = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2)) {
+            case "h":
+                return amount * 3_600_000;
+            case "m":
+                return amount * 60_000;
+            case "s":
+                return amount * 1000;
+            default:
+                return amount;
+        }
+    }
+
+    /**
+     * Splits a comma-separated groupBy parameter.
+     */
+    public static List<String> parseGroupBy(String groupBy) {
+        val columns = new ArrayList<String>();
+        for (val column : groupBy.split(",")) {
+            if (!column.trim().isEmpty()) {
+                columns.add(column.trim());
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Sums of one bucket, the same as the columns of time_rollup. Nulls are skipped like by the SQL aggregates.
+     */
+    private static class Sums {
+        private Double minLatency;
+        private Double maxLatency;
+        private Double latencySum;
+        private Double latencyWeight;
+        private Double avgSum;
+        private long avgCount;
+        private Double throughput;
+
+        void add(TimeMeasurement measurement) {
+            val avg = measurement.getAvgLatency();
+            val throughput = measurement.getThroughput();
+            minLatency = measurement.getMinLatency() == null ? minLatency : minLatency == null ? measurement.getMinLatency() : Math.min(minLatency, measurement.getMinLatency());
+            maxLatency = measurement.getMaxLatency() == null ? maxLatency : maxLatency == null ? measurement.getMaxLatency() : Math.max(maxLatency, measurement.getMaxLatency());
+            if (avg != null) {
+                latencySum = sum(latencySum, throughput != null ? avg * throughput : null);
+                latencyWeight = sum(latencyWeight, throughput);
+                avgSum = sum(avgSum, avg);
+                avgCount++;
+            }
+            this.throughput = sum(this.throughput, throughput);
+        }
+
+        Double getAvgLatency() {
+            if (latencySum != null && latencyWeight != null && latencyWeight != 0) {
+                return latencySum / latencyWeight;
+            }
+            return avgCount > 0 ? avgSum / avgCount : null;
+        }
+
+        private static Double sum(Double sum, Double value) {
+            return value == null ? sum : sum == null ? value : sum + value;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.aggregation;
+
+import de.hpi.tdgt.test.RollupState;
+import de.hpi.tdgt.test.TestFinishedEvent;
+import de.hpi.tdgt.test.TestRegistry;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pre-aggregates the measurements of tests into coarser resolution tiers (by default 1s, 10s and 1m buckets).
+ * Running tests are rolled up incrementally up to a watermark that trails the newest measurement,
+ * finished tests are rolled up completely once after their testEnd. Writers append the earliest creationTime of every batch to pending_rollup,
+ * so they never wait for a roll up; buckets of measurements that arrived below the watermark are rolled up again with the next run
+ * and read from the raw measurements until then.
+ */
+@Service
+@Log4j2
+public class RollupService {
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+    private final TestRegistry registry;
+    //ascending, every tier divides the coarsest one
+    private final long[] tiers;
+    private final long latenessMs;
+    private final long finishDelayMs;
+    private final ScheduledExecutorService finisher = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "rollup-finisher"));
+
+    public RollupService(NamedParameterJdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, TestRegistry registry,
+                         @Value("${rollup.tiers}") long[] tiers, @Value("${rollup.lateness-ms}") long latenessMs, @Value("${rollup.finish-delay-ms}") long finishDelayMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.registry = registry;
+        this.tiers = tiers.clone();
+        Arrays.sort(this.tiers);
+        for (val tier : this.tiers) {
+            if (tier <= 0 || getCoarsestTier() % tier != 0) {
+                throw new IllegalArgumentException("Rollup tiers have to be positive and divide the coarsest tier, got " + Arrays.toString(tiers));
+            }
+        }
+        this.latenessMs = latenessMs;
+        this.finishDelayMs = finishDelayMs;
+    }
+
+    @PreDestroy
+    public void stop() {
+        finisher.shutdownNow();
+    }
+
+    /**
+     * @return resolutions of the tiers in milliseconds, ascending
+     */
+    public long[] getTiers() {
+        return tiers.clone();
+    }
+
+    /**
+     * @return every measurement of the test with a creationTime below the returned value is contained in the tiers; Long.MIN_VALUE if nothing has been rolled up yet
+     */
+    public long getWatermark(long testId) {
+        List<Long> watermarks = jdbcTemplate.query("select watermark, (select min(earliest) from pending_rollup p where p.test_id = s.test_id) " +
+                "from rollup_state s where test_id = :test", new MapSqlParameterSource("test", testId), (resultSet, row) -> {
+            val lateFrom = (Long) resultSet.getObject(2);
+            //buckets of late measurements are stale until they have been rolled up again
+            return lateFrom == null ? resultSet.getLong(1) : Math.min(resultSet.getLong(1), alignDown(lateFrom));
+        });
+        return watermarks.isEmpty() ? Long.MIN_VALUE : watermarks.get(0);
+    }
+
+    /**
+     * Called by writers in the transaction that inserts measurements. Only appends rows, so writers neither lock each other nor wait for a roll up:
+     * a concurrent roll up that does not see the rows yet leaves them for the next run, which rolls up their buckets again.
+     * @param earliest earliest creationTime of the inserted measurements per test
+     */
+    public void added(Map<Long, Long> earliest) {
+        val batch = earliest.entrySet().stream()
+                .map(test -> new MapSqlParameterSource("test", test.getKey()).addValue("earliest", test.getValue()))
+                .toArray(MapSqlParameterSource[]::new);
+        jdbcTemplate.batchUpdate("insert into pending_rollup (test_id, earliest) values (:test, :earliest)", batch);
+    }
+
+    @Scheduled(fixedDelayString = "${rollup.interval-ms}")
+    public void rollUpRunningTests() {
+        val testIds = new LinkedHashSet<Long>(registry.getActiveTests());
+        //finished tests as well if measurements arrived after they had been rolled up
+        testIds.addAll(jdbcTemplate.queryForList("select distinct test_id from pending_rollup", new MapSqlParameterSource(), Long.class));
+        for (val testId : testIds) {
+            try {
+                rollUp(testId, false);
+            } catch (RuntimeException e) {
+                log.error("Could not roll up test " + testId, e);
+            }
+        }
+    }
+
+    /**
+     * Rolls up the remaining measurements of a test after it ended. Waits a bit, so that entries that are still in the ingest pipeline are included.
+     */
+    @EventListener
+    public void testFinished(TestFinishedEvent event) {
+        val testId = event.getTestId();
+        finisher.schedule(() -> {
+            try {
+                rollUp(testId, true);
+            } catch (RuntimeException e) {
+                log.error("Could not roll up finished test " + testId, e);
+            }
+        }, finishDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the measurements between the current watermark and a new one to all tiers, and rolls up the buckets of late measurements again.
+     * @param complete if true, all measurements are rolled up and the watermark will not be raised again
+     */
+    public synchronized void rollUp(long testId, boolean complete) {
+        transaction.execute(status -> {
+            val parameters = new MapSqlParameterSource("test", testId).addValue("watermark", Long.MIN_VALUE);
+            jdbcTemplate.update("insert into rollup_state (test_id, watermark, complete) values (:test, :watermark, false) on conflict do nothing", parameters);
+            RollupState state = jdbcTemplate.queryForObject("select watermark, complete from rollup_state where test_id = :test", parameters,
+                    (resultSet, row) -> new RollupState(testId, resultSet.getLong(1), resultSet.getBoolean(2)));
+            //rows of uncommitted writers are not taken, they are left for the next run. Restored if the roll up fails
+            val pending = jdbcTemplate.queryForObject("with taken as (delete from pending_rollup where test_id = :test returning earliest) select min(earliest) from taken",
+                    parameters, Long.class);
+            //measurements above the watermark are rolled up when it is raised anyway
+            val lateFrom = pending != null && pending < state.getWatermark() ? pending : null;
+            if (state.isComplete() && lateFrom == null) {
+                return null;
+            }
+            val finish = complete || state.isComplete();
+            val oldWatermark = state.getWatermark();
+            val newest = jdbcTemplate.queryForObject("select max(creation_time) from time_measurement where test_id = :test", parameters, Long.class);
+            long newWatermark = oldWatermark;
+            if (newest != null && !state.isComplete()) {
+                //watermarks are aligned to the coarsest tier, so every bucket below the watermark is final in every tier
+                val candidate = complete ? alignUp(newest + 1) : alignDown(newest - latenessMs);
+                newWatermark = Math.max(oldWatermark, candidate);
+            }
+            if (newWatermark == oldWatermark && !finish && lateFrom == null) {
+                return null;
+            }
+            long from = oldWatermark;
+            if (lateFrom != null) {
+                //the buckets of late measurements are computed again
+                from = alignDown(lateFrom);
+                jdbcTemplate.update("delete from time_rollup where test_id = :test and bucket_start >= :from and bucket_start < :to",
+                        parameters.addValue("from", from).addValue("to", oldWatermark));
+            }
+            if (newWatermark > from) {
+                parameters.addValue("from", from).addValue("to", newWatermark);
+                for (val tier : tiers) {
+                    parameters.addValue("resolution", tier);
+                    jdbcTemplate.update("insert into time_rollup (test_id, resolution_ms, bucket_start, url, method, story, min_latency, max_latency, latency_sum, latency_weight, avg_sum, avg_count, throughput) " +
+                            "select test_id, :resolution, creation_time / :resolution * :resolution, url, method, story, min(min_latency), max(max_latency), " +
+                            "sum(avg_latency * throughput), sum(case when avg_latency is not null then throughput end), sum(avg_latency), count(avg_latency), sum(throughput) " +
+                            "from time_measurement where test_id = :test and creation_time >= :from and creation_time < :to " +
+                            "group by test_id, 3, url, method, story", parameters);
+                }
+            }
+            jdbcTemplate.update("update rollup_state set watermark = :watermark, complete = :complete where test_id = :test",
+                    parameters.addValue("watermark", newWatermark).addValue("complete", finish));
+            return null;
+        });
+    }
+
+    private long getCoarsestTier() {
+        return tiers[tiers.length - 1];
+    }
+
+    private long alignDown(long time) {
+        return Math.floorDiv(time, getCoarsestTier()) * getCoarsestTier();
+    }
+
+    private long alignUp(long time) {
+        return alignDown(time + getCoarsestTier() - 1);
+    }
+}
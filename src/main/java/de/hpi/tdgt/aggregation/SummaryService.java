@@ -0,0 +1,243 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.aggregation;
+
+import de.hpi.tdgt.storage.EntryVersions;
+import de.hpi.tdgt.test.TestFinishedEvent;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains the summary of every test: overall latencies and throughput per story in story_summary and failures per assertion in assertion_summary.
+ * The transaction that writes entries appends their sums to story_summary_delta and assertion_summary_delta, so writers never lock a summary row;
+ * the deltas are merged into the summaries in the background and added to them on reads until then, so reading a summary only reads a few rows.
+ * Once a test has ended, its summary is computed once more from all of its entries, which includes entries that have been stored otherwise,
+ * and marked as complete. Tests that ended while the service was not running are completed in the background after startup.
+ */
+@Service
+@Log4j2
+public class SummaryService {
+    //rows of the staging tables of EntryWriter that have been inserted, staged duplicates have not
+    private static final String STAGED_MEASUREMENTS = "select m.* from time_measurement_staging m join reported_time t on t.test_created_at = m.test_id and t.id = m.entry_id";
+    private static final String STAGED_ASSERTIONS = "select a.* from reported_assertion_staging a join reported_assertion r on r.test_created_at = a.test_created_at and r.id = a.id";
+    private static final String TEST_MEASUREMENTS = "select * from time_measurement where test_id = :test";
+    private static final String TEST_ASSERTIONS = "select * from reported_assertion where test_created_at = :test";
+    private static final String STORY_COLUMNS = "test_id, story, min_latency, max_latency, latency_sum, latency_weight, avg_sum, avg_count, throughput";
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+    private final EntryVersions entryVersions;
+    private final long finishDelayMs;
+    private final ScheduledExecutorService finisher = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "summary-finisher"));
+    //tests whose completion has been scheduled
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+
+    public SummaryService(NamedParameterJdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, EntryVersions entryVersions,
+                          @Value("${summary.finish-delay-ms}") long finishDelayMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.entryVersions = entryVersions;
+        this.finishDelayMs = finishDelayMs;
+    }
+
+    @PreDestroy
+    public void stop() {
+        finisher.shutdownNow();
+    }
+
+    /**
+     * Appends the sums of the measurements EntryWriter has inserted from its staging table to the deltas of their tests. Has to be called inside the transaction that writes them.
+     */
+    public void addStagedMeasurements() {
+        addMeasurements("story_summary_delta", STAGED_MEASUREMENTS, new MapSqlParameterSource());
+    }
+
+    /**
+     * Appends the failures of the assertions EntryWriter has inserted from its staging table to the deltas of their tests. Has to be called inside the transaction that writes them.
+     */
+    public void addStagedAssertions() {
+        addAssertions("assertion_summary_delta", STAGED_ASSERTIONS, new MapSqlParameterSource());
+    }
+
+    /**
+     * @param table story_summary_delta, or story_summary if it has no rows for the tests yet
+     * @param measurements one of the queries above, returning rows of time_measurement
+     */
+    private void addMeasurements(String table, String measurements, MapSqlParameterSource parameters) {
+        //measurements without story cannot be told apart by the unique key
+        jdbcTemplate.update("insert into " + table + " (" + STORY_COLUMNS + ") " +
+                "select test_id, story, min(min_latency), max(max_latency), sum(avg_latency * throughput), sum(case when avg_latency is not null then throughput end), " +
+                "sum(avg_latency), count(avg_latency), sum(throughput) " +
+                "from (" + measurements + ") m where story is not null group by test_id, story", parameters);
+    }
+
+    /**
+     * An assertion message maps the name of every failed assertion to the number of failures (key) and the actual values (value).
+     * @param table assertion_summary_delta, or assertion_summary if it has no rows for the tests yet
+     * @param assertions one of the queries above, returning rows of reported_assertion
+     */
+    private void addAssertions(String table, String assertions, MapSqlParameterSource parameters) {
+        jdbcTemplate.update("insert into " + table + " (test_id, name, failures) " +
+                "select a.test_created_at, l.key, sum(case when jsonb_typeof(l.value->'key') = 'number' then (l.value->>'key')::numeric else 1 end)::bigint " +
+                "from (" + assertions + ") a, jsonb_each(case when jsonb_typeof(a.payload->'actuals') = 'object' then a.payload->'actuals' end) l " +
+                "group by 1, 2", parameters);
+    }
+
+    /**
+     * Adds the deltas that have been committed to the summaries and deletes them. Deltas of writers that commit later are merged with the next run.
+     */
+    @Scheduled(fixedDelayString = "${summary.merge-interval-ms}")
+    public synchronized void merge() {
+        transaction.execute(status -> {
+            val parameters = new MapSqlParameterSource();
+            jdbcTemplate.update("with merged as (delete from story_summary_delta returning *) " +
+                    "insert into story_summary as s (" + STORY_COLUMNS + ") " +
+                    "select test_id, story, min(min_latency), max(max_latency), sum(latency_sum), sum(latency_weight), sum(avg_sum), sum(avg_count), sum(throughput) " +
+                    "from merged group by test_id, story " +
+                    "on conflict (test_id, story) do update set min_latency = least(s.min_latency, excluded.min_latency), max_latency = greatest(s.max_latency, excluded.max_latency), " +
+                    "latency_sum = " + add("latency_sum") + ", latency_weight = " + add("latency_weight") + ", avg_sum = " + add("avg_sum") + ", " +
+                    "avg_count = s.avg_count + excluded.avg_count, throughput = " + add("throughput"), parameters);
+            jdbcTemplate.update("with merged as (delete from assertion_summary_delta returning *) " +
+                    "insert into assertion_summary as s (test_id, name, failures) select test_id, name, sum(failures) from merged group by test_id, name " +
+                    "on conflict (test_id, name) do update set failures = s.failures + excluded.failures", parameters);
+            return null;
+        });
+    }
+
+    //sum of both that is null as long as both are null, like sum()
+    private static String add(String column) {
+        return "coalesce(s." + column + " + excluded." + column + ", s." + column + ", excluded." + column + ")";
+    }
+
+    /**
+     * Completes the summary of a test after it ended. Waits a bit, so that entries that are still in the ingest pipeline are included.
+     */
+    @EventListener
+    public void testFinished(TestFinishedEvent event) {
+        schedule(event.getTestId(), finishDelayMs);
+    }
+
+    /**
+     * Completes the summary of a finished test in the background, e.g. if completing it after testEnd failed. Does nothing if that has been scheduled already.
+     */
+    public void completeLater(long testId) {
+        schedule(testId, 0);
+    }
+
+    /**
+     * Schedules the completion of the summaries of finished tests that ended before summaries have been maintained or while the service was not running.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void completeFinishedTests() {
+        List<Long> incomplete = jdbcTemplate.queryForList("select t.created_at from test t where not t.is_active " +
+                "and t.created_at not in (select test_id from pending_deletion) " +
+                "and not exists (select 1 from summary_state s where s.test_id = t.created_at and s.complete)", new MapSqlParameterSource(), Long.class);
+        if (!incomplete.isEmpty()) {
+            log.info("Completing the summaries of " + incomplete.size() + " finished tests");
+        }
+        incomplete.forEach(this::completeLater);
+    }
+
+    private void schedule(long testId, long delayMs) {
+        if (!pending.add(testId)) {
+            return;
+        }
+        finisher.schedule(() -> {
+            pending.remove(testId);
+            try {
+                complete(testId);
+            } catch (RuntimeException e) {
+                log.error("Could not complete the summary of test " + testId, e);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Computes the summary of a test from all of its entries and marks it as complete. Does nothing if it is complete already.
+     * Writers wait while it runs: entries it reads must not have deltas left, entries it does not read must keep theirs.
+     */
+    public synchronized void complete(long testId) {
+        Boolean completed = transaction.execute(status -> {
+            val parameters = new MapSqlParameterSource("test", testId);
+            if (isComplete(testId)) {
+                return false;
+            }
+            //waits for writers that have appended deltas, writers append theirs after inserting the entries and wait for this transaction
+            jdbcTemplate.update("lock table story_summary_delta, assertion_summary_delta in share mode", parameters);
+            jdbcTemplate.update("delete from story_summary where test_id = :test", parameters);
+            jdbcTemplate.update("delete from assertion_summary where test_id = :test", parameters);
+            jdbcTemplate.update("delete from story_summary_delta where test_id = :test", parameters);
+            jdbcTemplate.update("delete from assertion_summary_delta where test_id = :test", parameters);
+            addMeasurements("story_summary", TEST_MEASUREMENTS, parameters);
+            addAssertions("assertion_summary", TEST_ASSERTIONS, parameters);
+            jdbcTemplate.update("insert into summary_state (test_id, complete) values (:test, true) on conflict (test_id) do update set complete = true", parameters);
+            return true;
+        });
+        if (Boolean.TRUE.equals(completed)) {
+            entryVersions.changed(testId);
+        }
+    }
+
+    public boolean isComplete(long testId) {
+        val states = jdbcTemplate.queryForList("select complete from summary_state where test_id = :test", new MapSqlParameterSource("test", testId), Boolean.class);
+        return !states.isEmpty() && states.get(0);
+    }
+
+    /**
+     * @return summary of a test including the deltas that have not been merged yet, without stories and assertions if nothing has been written for it
+     */
+    public TestSummary get(long testId) {
+        val parameters = new MapSqlParameterSource("test", testId);
+        List<TestSummary.Story> stories = jdbcTemplate.query("select story, min(min_latency) as min_latency, " +
+                "coalesce(sum(latency_sum) / nullif(sum(latency_weight), 0), sum(avg_sum) / nullif(sum(avg_count), 0)::double precision) as avg_latency, " +
+                "max(max_latency) as max_latency, sum(throughput) as throughput " +
+                "from (select " + STORY_COLUMNS + " from story_summary where test_id = :test " +
+                "union all select " + STORY_COLUMNS + " from story_summary_delta where test_id = :test) s " +
+                "group by story order by story", parameters, (rs, rowNum) -> new TestSummary.Story(
+                rs.getString("story"),
+                (Double) rs.getObject("min_latency"),
+                (Double) rs.getObject("avg_latency"),
+                (Double) rs.getObject("max_latency"),
+                (Double) rs.getObject("throughput")));
+        List<TestSummary.Assertion> assertions = jdbcTemplate.query("select name, sum(failures) as failures " +
+                        "from (select name, failures from assertion_summary where test_id = :test union all select name, failures from assertion_summary_delta where test_id = :test) a " +
+                        "group by name order by name", parameters,
+                (rs, rowNum) -> new TestSummary.Assertion(rs.getString("name"), rs.getLong("failures")));
+        return new TestSummary(testId, isComplete(testId), stories, assertions);
+    }
+}
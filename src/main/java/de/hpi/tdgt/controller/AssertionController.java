@@ -21,65 +21,142 @@
 
 package de.hpi.tdgt.controller;
 
-import de.hpi.tdgt.test.ReportedAssertion;
-import de.hpi.tdgt.test.ReportedAssertionRepository;
-import de.hpi.tdgt.test.ReportedTimeRepository;
-import de.hpi.tdgt.test.TestRepository;
+import de.hpi.tdgt.ingest.EntryImporter;
+import de.hpi.tdgt.ingest.EntryParser;
+import de.hpi.tdgt.ingest.IngestEntry;
+import de.hpi.tdgt.ingest.IngestLog;
+import de.hpi.tdgt.mqtt.MessageDispatcher;
+import de.hpi.tdgt.mqtt.MqttConnection;
+import de.hpi.tdgt.test.TestRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.log4j.Log4j2;
 import lombok.val;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.springframework.beans.factory.annotation.Value;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RestController;
-import org.testcontainers.shaded.com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
-import java.util.Map;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 
 @RestController
 @Log4j2
-public class AssertionController extends MqttController {
+public class AssertionController {
 
     public static final String MQTT_ASSERTION_TOPIC ="de.hpi.tdgt.assertions";
-    public AssertionController(TestRepository repository, ReportedAssertionRepository assertionRepository, @Value("${mqtt.host}") String mqtt_host) throws MqttException {
+    public AssertionController(TestRegistry registry, IngestLog ingestLog, EntryImporter importer, MqttConnection connection, MessageDispatcher dispatcher, MeterRegistry meterRegistry) throws MqttException {
         //only way to autowire it, field injection would not be working because evaluated after creation
-        this.mqtt_host = mqtt_host;
-        this.mqtt_topic = MQTT_ASSERTION_TOPIC;
-        this.testRepository = repository;
-        this.assertionRepository = assertionRepository;
-        prepareClient((s, message) -> {
-            receivedTimeMessage(s, message.toString());
-        });
+        this.registry = registry;
+        this.ingestLog = ingestLog;
+        this.importer = importer;
+        this.dispatcher = dispatcher;
+        this.connection = connection;
+        this.parseTimer = meterRegistry.timer("ingest.parse", "kind", "assertion");
+        this.lookupTimer = meterRegistry.timer("ingest.test.lookup", "kind", "assertion");
+        this.invalid = meterRegistry.counter("ingest.entries.rejected", "kind", "assertion", "reason", "invalid");
+        this.unknownTest = meterRegistry.counter("ingest.entries.rejected", "kind", "assertion", "reason", "unknown_test");
+        connection.subscribe(MQTT_ASSERTION_TOPIC, this::receivedTimeMessage);
     }
 
 
-    private final TestRepository testRepository;
-    private final ReportedAssertionRepository assertionRepository;
+    //how long a assertion of an unknown test waits for the control messages received before it
+    private static final long CONTROL_MESSAGE_TIMEOUT_MS = 5000;
+    private final TestRegistry registry;
+    private final IngestLog ingestLog;
+    private final EntryImporter importer;
+    private final MessageDispatcher dispatcher;
+    private final MqttConnection connection;
+    private final Timer parseTimer;
+    private final Timer lookupTimer;
+    private final Counter invalid;
+    private final Counter unknownTest;
 
-    private final ObjectMapper mapper = new ObjectMapper();
-    private void receivedTimeMessage(String topic, String message) {
+    /**
+     * Imports assertions of a test, e.g. from an export of another instance. Every line of the body has to be a assertion of the test.
+     * @return number of imported assertions
+     */
+    @PostMapping(path="/test/{id}/assertions", consumes = TestController.NDJSON_VALUE)
+    public ResponseEntity<Long> importAssertions(@PathVariable long id, InputStream body) throws IOException {
+        if(!registry.exists(id)){
+            return ResponseEntity.notFound().build();
+        }
+        try {
+            return ResponseEntity.ok(importer.importEntries(IngestEntry.Kind.ASSERTION, id, body));
+        } catch (IllegalArgumentException e){
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+
+    private void receivedTimeMessage(String topic, MqttMessage mqttMessage) {
+        val message = mqttMessage.getPayload();
+        //messages that cannot be stored are acknowledged right away, receiving them again would not change that
         //just resetting persisted messages, ignore
-        if(message.isEmpty()){
+        if(message.length == 0){
+            connection.acknowledge(mqttMessage);
             return;
         }
         try {
-            val assertion = mapper.readValue(message, Map.class);
-            val testId = assertion.getOrDefault("testId", null);
-            if(testId == null){
-                log.error("Assertion has invalid format: "+message);
+            val start = System.nanoTime();
+            val entry = EntryParser.parse(IngestEntry.Kind.ASSERTION, message);
+            parseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if(entry == null){
+                invalid.increment();
+                log.error("Assertion has invalid format: "+new String(message, StandardCharsets.UTF_8));
+                connection.acknowledge(mqttMessage);
                 return;
             }
-            val test = testRepository.findById(Long.valueOf(testId.toString())).orElse(null);
-            if(test == null){
-                log.error("Message refers to non-existant test: "+testId+": "+message);
-                return;
+            //only confirmed to the broker once written
+            entry.setAcknowledgement(() -> connection.acknowledge(mqttMessage));
+            //could not be stored right now, the broker delivers it again
+            entry.setRejection(() -> connection.release(mqttMessage));
+            //the start of its test may still be queued for the control worker
+            val controlMessages = dispatcher.getQueuedControlMessages();
+            //parsing is cheap, but looking up the test may need the database
+            val dispatched = dispatcher.dispatch(entry.getTestId(), entry.estimateSize(), () -> {
+                var handled = false;
+                try {
+                    val lookupStart = System.nanoTime();
+                    var exists = registry.exists(entry.getTestId());
+                    if(!exists){
+                        if(!dispatcher.awaitControlMessages(controlMessages, CONTROL_MESSAGE_TIMEOUT_MS)){
+                            //the broker delivers it again
+                            return;
+                        }
+                        exists = registry.exists(entry.getTestId());
+                    }
+                    lookupTimer.record(System.nanoTime() - lookupStart, TimeUnit.NANOSECONDS);
+                    if(!exists){
+                        unknownTest.increment();
+                        log.error("Message refers to non-existant test: "+entry.getTestId()+": "+entry.getFullEntry());
+                        //receiving it again would not change that
+                        entry.acknowledge();
+                        handled = true;
+                        return;
+                    }
+                    handled = ingestLog.submit(entry);
+                } finally {
+                    //also if the lookup failed
+                    if(!handled){
+                        entry.reject();
+                    }
+                }
+            });
+            if(!dispatched){
+                entry.reject();
             }
-            val assertionRepr = new ReportedAssertion();
-            assertionRepr.setTest(test);
-            assertionRepr.setFullEntry(message);
-            assertionRepository.save(assertionRepr);
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             log.error("Unable to parse assertion", e);
+            invalid.increment();
+            connection.acknowledge(mqttMessage);
         }
 
     }
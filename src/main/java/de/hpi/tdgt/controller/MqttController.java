@@ -1,46 +0,0 @@
-/*
- * WALT - A realistic load generator for web applications.
- *
- * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
- * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
- * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
- * <juergen.schlossbauer@student.hpi.de>
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *   http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package de.hpi.tdgt.controller;
-
-import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
-import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
-
-import java.util.UUID;
-
-public class MqttController {
-    protected String mqtt_host;
-    protected String mqtt_topic;
-    protected MqttClient prepareClient(IMqttMessageListener callback) throws MqttException {
-        String publisherId = UUID.randomUUID().toString();
-        MqttClient client = new MqttClient(mqtt_host,publisherId, new MemoryPersistence());
-        MqttConnectOptions options = new MqttConnectOptions();
-        options.setAutomaticReconnect(true);
-        options.setCleanSession(true);
-        options.setConnectionTimeout(10);
-        client.connect(options);
-        client.subscribe(mqtt_topic, callback);
-        return client;
-    }
-}
@@ -21,67 +21,404 @@
 
 package de.hpi.tdgt.controller;
 
-import de.hpi.tdgt.test.ReportedAssertion;
-import de.hpi.tdgt.test.ReportedTime;
+import de.hpi.tdgt.aggregation.AggregateBucket;
+import de.hpi.tdgt.aggregation.AggregationService;
+import de.hpi.tdgt.aggregation.SummaryService;
+import de.hpi.tdgt.aggregation.TestSummary;
+import de.hpi.tdgt.ingest.IngestEntry;
+import de.hpi.tdgt.live.LiveFeed;
+import de.hpi.tdgt.mqtt.MessageDispatcher;
+import de.hpi.tdgt.mqtt.MqttConnection;
+import de.hpi.tdgt.storage.EntryCompression;
+import de.hpi.tdgt.storage.EntryPartitions;
+import de.hpi.tdgt.storage.EntrySearch;
+import de.hpi.tdgt.storage.EntryVersions;
+import de.hpi.tdgt.storage.HotTier;
+import de.hpi.tdgt.storage.IdWatermark;
+import de.hpi.tdgt.storage.PayloadFilter;
+import de.hpi.tdgt.storage.RetentionService;
+import de.hpi.tdgt.storage.TestArchive;
+import de.hpi.tdgt.test.EntryRepository;
+import de.hpi.tdgt.test.EntryView;
+import de.hpi.tdgt.test.ReportedAssertionRepository;
+import de.hpi.tdgt.test.ReportedTimeRepository;
 import de.hpi.tdgt.test.Test;
+import de.hpi.tdgt.test.TestFinishedEvent;
+import de.hpi.tdgt.test.TestRegistry;
 import de.hpi.tdgt.test.TestRepository;
 import lombok.extern.log4j.Log4j2;
 import lombok.val;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
 @RestController
 @Log4j2
-public class TestController extends MqttController{
+public class TestController {
 
 
-    public TestController(TestRepository repository, @Value("${mqtt.host}") String mqtt_host) throws MqttException {
+    public TestController(TestRepository repository, TestRegistry registry, ReportedTimeRepository timeRepository, ReportedAssertionRepository assertionRepository, AggregationService aggregationService, SummaryService summaryService, EntrySearch entrySearch, EntryCompression compression, EntryPartitions partitions, EntryVersions entryVersions, HotTier hotTier, IdWatermark watermark, TestArchive archive, LiveFeed liveFeed, RetentionService retention,
+                          ApplicationEventPublisher events, PlatformTransactionManager transactionManager, MqttConnection connection, MessageDispatcher dispatcher, @Value("${query.max-page-size}") int maxPageSize) throws MqttException {
         //only way to autowire it, field injection would not be working because evaluated after creation
-        this.mqtt_host = mqtt_host;
-        this.mqtt_topic = MQTT_CONTROL_TOPIC;
         this.repository = repository;
-        prepareClient((s, message) -> {
-            receivedControlMessage(s, message.toString());
+        this.registry = registry;
+        this.timeRepository = timeRepository;
+        this.assertionRepository = assertionRepository;
+        this.aggregationService = aggregationService;
+        this.summaryService = summaryService;
+        this.entrySearch = entrySearch;
+        this.compression = compression;
+        this.partitions = partitions;
+        this.entryVersions = entryVersions;
+        this.hotTier = hotTier;
+        this.watermark = watermark;
+        this.archive = archive;
+        this.liveFeed = liveFeed;
+        this.retention = retention;
+        this.events = events;
+        this.maxPageSize = maxPageSize;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        connection.subscribe(MQTT_CONTROL_TOPIC, (s, message) -> {
+            val text = message.toString();
+            Runnable handler = () -> {
+                try {
+                    //invalid control messages are logged and acknowledged as well, receiving them again would not change anything
+                    receivedControlMessage(s, text);
+                    connection.acknowledge(message);
+                } catch (RuntimeException e){
+                    //e.g. the database is unavailable, the broker delivers it again
+                    log.error("Could not handle control message: "+text, e);
+                    connection.release(message);
+                }
+            };
+            //handled on the control worker, the client's thread has to keep receiving. If it is full, the broker delivers the message again
+            if(!dispatcher.dispatchControl(controlMessageTestId(text), handler)){
+                connection.release(message);
+            }
         });
     }
     private final TestRepository repository;
+    private final TestRegistry registry;
+    private final ReportedTimeRepository timeRepository;
+    private final ReportedAssertionRepository assertionRepository;
+    private final AggregationService aggregationService;
+    private final SummaryService summaryService;
+    private final EntrySearch entrySearch;
+    private final EntryCompression compression;
+    private final EntryPartitions partitions;
+    private final EntryVersions entryVersions;
+    private final HotTier hotTier;
+    private final IdWatermark watermark;
+    private final TestArchive archive;
+    private final LiveFeed liveFeed;
+    private final RetentionService retention;
+    private final ApplicationEventPublisher events;
+    private final int maxPageSize;
+    private final TransactionTemplate readOnlyTransaction;
     public static final String MQTT_CONTROL_TOPIC ="de.hpi.tdgt.control";
+    public static final String NDJSON_VALUE = "application/x-ndjson";
+    public static final MediaType NDJSON = MediaType.parseMediaType(NDJSON_VALUE);
     @GetMapping(path="/test/{id}")
     public Test getTest(@PathVariable long id){
-        return repository.findById(id).orElse(null);
+        val hot = hotTier.getTest(id);
+        //without its times and assertions, they are not part of the response
+        return hot != null ? hot : repository.findWithoutEntriesById(id).orElse(null);
     }
-    @GetMapping(path="/test/{id}/times")
-    public String[] getTimesForTest(@PathVariable long id){
-        val test = repository.findById(id).orElse(null);
-        if(test == null){
-            return new String[0];
+
+    /**
+     * Deletes a finished test with its times, assertions and measurements. The test disappears right away, its rows are deleted in the background.
+     * @return 202 if the test is being deleted, 404 if it does not exist and 409 if it is still running
+     */
+    @DeleteMapping(path="/test/{id}")
+    public ResponseEntity<Void> deleteTest(@PathVariable long id){
+        if(!registry.exists(id)){
+            return ResponseEntity.notFound().build();
         }
-        return test.getTimes().stream().map(ReportedTime::getFullEntry).toArray(String[]::new);
+        if(registry.isActive(id) || !retention.delete(id)){
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        return ResponseEntity.accepted().build();
+    }
+    /**
+     * Returns the times of a test ordered by id, at most query.max-page-size per request. Use streamTimesForTest to read all of them at once.
+     * The response has an ETag that changes whenever entries of the test are written, polling clients sending it as If-None-Match
+     * are answered with 304 without reading the entries.
+     * @param after only times with a greater id are returned, pass the id of the last time of the previous page
+     * @param since same as after, for polling clients that only want entries that are new since their last request
+     * @param limit maximum number of times, query.max-page-size if missing; if the page is full, a Link header points to the next page
+     * @param from only times with creationTime >= from are returned
+     * @param to only times with creationTime <= to are returned
+     * @param url only times containing this url are returned
+     * @param method only times containing this HTTP method are returned
+     * @param story only times containing this story are returned
+     */
+    @GetMapping(path="/test/{id}/times")
+    public ResponseEntity<String[]> getTimesForTest(@PathVariable long id, @RequestParam(required = false) Long after, @RequestParam(required = false) Long since, @RequestParam(required = false) Integer limit,
+                                                    @RequestParam(required = false) Long from, @RequestParam(required = false) Long to,
+                                                    @RequestParam(required = false) String url, @RequestParam(required = false) String method, @RequestParam(required = false) String story,
+                                                    WebRequest request){
+        return getEntryPage(timeRepository, EntrySearch.TIMES, PayloadFilter.times(url, method, story), id, after != null ? after : since, limit, from, to, request);
     }
 
+    /**
+     * Returns the assertions of a test ordered by id, see getTimesForTest for the parameters.
+     * @param name only assertion messages containing an assertion with this name are returned
+     */
     @GetMapping(path="/test/{id}/assertions")
-    public String[] getAssertionsForTest(@PathVariable long id){
-        val test = repository.findById(id).orElse(null);
-        if(test == null){
-            return new String[0];
+    public ResponseEntity<String[]> getAssertionsForTest(@PathVariable long id, @RequestParam(required = false) Long after, @RequestParam(required = false) Long since, @RequestParam(required = false) Integer limit,
+                                                         @RequestParam(required = false) Long from, @RequestParam(required = false) Long to,
+                                                         @RequestParam(required = false) String name, WebRequest request){
+        return getEntryPage(assertionRepository, EntrySearch.ASSERTIONS, PayloadFilter.assertions(name), id, after != null ? after : since, limit, from, to, request);
+    }
+
+    /**
+     * Streams the times of a test as newline-delimited JSON. Entries are read through a database cursor and written as stored,
+     * so memory use does not depend on the size of the test and entries are not escaped as strings.
+     * Supports the parameters of getTimesForTest except limit.
+     */
+    @GetMapping(path="/test/{id}/times", produces = NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamTimesForTest(@PathVariable long id, @RequestParam(required = false) Long after, @RequestParam(required = false) Long since,
+                                                                    @RequestParam(required = false) Long from, @RequestParam(required = false) Long to,
+                                                                    @RequestParam(required = false) String url, @RequestParam(required = false) String method, @RequestParam(required = false) String story,
+                                                                    WebRequest request){
+        return streamEntries(timeRepository, EntrySearch.TIMES, PayloadFilter.times(url, method, story), id, after != null ? after : since, from, to, request);
+    }
+
+    /**
+     * Streams the assertions of a test as newline-delimited JSON, see streamTimesForTest and getAssertionsForTest.
+     */
+    @GetMapping(path="/test/{id}/assertions", produces = NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAssertionsForTest(@PathVariable long id, @RequestParam(required = false) Long after, @RequestParam(required = false) Long since,
+                                                                         @RequestParam(required = false) Long from, @RequestParam(required = false) Long to,
+                                                                         @RequestParam(required = false) String name, WebRequest request){
+        return streamEntries(assertionRepository, EntrySearch.ASSERTIONS, PayloadFilter.assertions(name), id, after != null ? after : since, from, to, request);
+    }
+
+    /**
+     * Pushes times of a running test as server-sent events as soon as they have been written, instead of polling getTimesForTest.
+     * Event ids count the entries of the test since the first subscription; a client reconnecting with Last-Event-ID receives
+     * the entries it missed if they are still buffered. Ends once the test ends; a finished test is answered with 204, so clients stop reconnecting.
+     */
+    @GetMapping(path="/test/{id}/times/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> subscribeToTimes(@PathVariable long id, @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId){
+        return subscribe(IngestEntry.Kind.TIME, id, lastEventId);
+    }
+
+    /**
+     * Pushes assertions of a running test as server-sent events, see subscribeToTimes.
+     */
+    @GetMapping(path="/test/{id}/assertions/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> subscribeToAssertions(@PathVariable long id, @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId){
+        return subscribe(IngestEntry.Kind.ASSERTION, id, lastEventId);
+    }
+
+    private ResponseEntity<SseEmitter> subscribe(IngestEntry.Kind kind, long id, Long lastEventId){
+        if(!registry.exists(id)){
+            return ResponseEntity.notFound().build();
+        }
+        if(!registry.isActive(id)){
+            return ResponseEntity.noContent().build();
+        }
+        return ResponseEntity.ok(liveFeed.subscribe(kind, id, lastEventId));
+    }
+
+    private ResponseEntity<StreamingResponseBody> streamEntries(EntryRepository<?> entryRepository, String table, PayloadFilter filter, long id, Long after, Long from, Long to, WebRequest request){
+        val eTag = entryVersions.getETag(id);
+        if(request.checkNotModified(eTag)){
+            return null;
+        }
+        val afterId = after != null ? after : 0L;
+        StreamingResponseBody body = out -> {
+            if(!registry.exists(id)){
+                return;
+            }
+            if(archive.contains(id)){
+                archive.forEach(table, id, afterId, from, to, filter, entry -> writeLine(out, entry.getFullEntry()));
+                out.flush();
+                return;
+            }
+            val hot = filter.isEmpty() ? findHot(table, id, afterId, from, to, null) : null;
+            if(hot != null){
+                hot.forEach(entry -> writeLine(out, entry.getFullEntry()));
+                out.flush();
+                return;
+            }
+            val before = watermark.get(table, id);
+            //the cursor is only open as long as the transaction
+            readOnlyTransaction.execute(status -> {
+                if(!filter.isEmpty()){
+                    entrySearch.forEach(table, id, afterId, before, from, to, filter, entry -> writeLine(out, entry.getFullEntry()));
+                    return null;
+                }
+                try(val entries = from != null || to != null ?
+                        entryRepository.streamInTimeRange(id, afterId, before, from != null ? from : Long.MIN_VALUE, to != null ? to : Long.MAX_VALUE) :
+                        entryRepository.streamAll(id, afterId, before)){
+                    entries.forEach(entry -> writeLine(out, compression.unpack(entry.getFullEntry(), entry.getPackedEntry())));
+                }
+                return null;
+            });
+            out.flush();
+        };
+        return ResponseEntity.ok().contentType(NDJSON).eTag(eTag).body(body);
+    }
+
+    private List<EntryView> findPage(EntryRepository<?> entryRepository, String table, PayloadFilter filter, long id, long afterId, Long from, Long to, Pageable page){
+        if(archive.contains(id)){
+            return archive.find(table, id, afterId, from, to, filter, page.getPageSize());
+        }
+        if(!filter.isEmpty()){
+            return entrySearch.find(table, id, afterId, watermark.get(table, id), from, to, filter, page.getPageSize());
+        }
+        val hot = findHot(table, id, afterId, from, to, page.getPageSize());
+        if(hot != null){
+            return hot;
+        }
+        //entries that commit later might have lower ids than entries that are visible already, clients must not page past them
+        val before = watermark.get(table, id);
+        val stored = from != null || to != null ?
+                entryRepository.findPageInTimeRange(id, afterId, before, from != null ? from : Long.MIN_VALUE, to != null ? to : Long.MAX_VALUE, page) :
+                entryRepository.findPage(id, afterId, before, page);
+        return stored.stream().map(compression::unpack).collect(Collectors.toList());
+    }
+
+    /**
+     * @return entries of a running test from the hot tier, null if it cannot answer the query
+     */
+    private List<EntryView> findHot(String table, long id, long afterId, Long from, Long to, Integer limit){
+        if(!registry.isActive(id)){
+            return null;
+        }
+        hotTier.track(id);
+        return hotTier.find(table, id, afterId, from, to, limit);
+    }
+
+    private static void writeLine(OutputStream out, String entry){
+        val bytes = entry.getBytes(StandardCharsets.UTF_8);
+        //entries are pretty-printed. Line breaks can only occur as whitespace in valid JSON, so blanking them keeps the JSON intact
+        for(int i = 0; i < bytes.length; i++){
+            if(bytes[i] == '\n' || bytes[i] == '\r'){
+                bytes[i] = ' ';
+            }
+        }
+        try {
+            out.write(bytes);
+            out.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return test.getAssertions().stream().map(ReportedAssertion::getFullEntry).toArray(String[]::new);
+    }
+
+    /**
+     * Aggregates the times of a test into buckets.
+     * @param bucket width of a bucket, e.g. 500ms, 10s, 1m or 1h
+     * @param groupBy comma-separated subset of url, method and story; may be empty to aggregate over all of them
+     * @param from only times with creationTime >= from are aggregated
+     * @param to only times with creationTime <= to are aggregated
+     * @return min, throughput-weighted average and max latency and summed throughput per bucket and group
+     */
+    @GetMapping(path="/test/{id}/aggregate")
+    public List<AggregateBucket> getAggregateForTest(@PathVariable long id, @RequestParam(defaultValue = "1m") String bucket, @RequestParam(defaultValue = "story") String groupBy,
+                                                     @RequestParam(required = false) Long from, @RequestParam(required = false) Long to){
+        try {
+            return aggregationService.aggregate(id, AggregationService.parseBucket(bucket), AggregationService.parseGroupBy(groupBy), from, to);
+        } catch (IllegalArgumentException e){
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the overall latencies and throughput per story and the failures per assertion of a test. The summary is maintained while entries
+     * are written, so it is current for running tests as well; it is final once complete is true.
+     */
+    @GetMapping(path="/test/{id}/summary")
+    public ResponseEntity<TestSummary> getSummaryForTest(@PathVariable long id, WebRequest request){
+        if(!registry.exists(id)){
+            return ResponseEntity.notFound().build();
+        }
+        //e.g. completing it after testEnd failed. Until then the summary is returned as it is, with complete = false
+        if(!registry.isActive(id) && !summaryService.isComplete(id) && !archive.contains(id)){
+            summaryService.completeLater(id);
+        }
+        val eTag = entryVersions.getETag(id);
+        if(request.checkNotModified(eTag)){
+            return null;
+        }
+        return ResponseEntity.ok().eTag(eTag).body(summaryService.get(id));
+    }
+
+    private ResponseEntity<String[]> getEntryPage(EntryRepository<?> entryRepository, String table, PayloadFilter filter, long id, Long after, Integer limit, Long from, Long to, WebRequest request){
+        if(!registry.exists(id)){
+            return ResponseEntity.ok(new String[0]);
+        }
+        //answered from memory if nothing has been written since the client's last request
+        val eTag = entryVersions.getETag(id);
+        if(request.checkNotModified(eTag)){
+            return null;
+        }
+        //ids start at 1
+        val afterId = after != null ? after : 0L;
+        //without a limit, a large test would be read into memory at once
+        val page = PageRequest.of(0, limit != null ? Math.max(1, Math.min(limit, maxPageSize)) : maxPageSize);
+        val entries = findPage(entryRepository, table, filter, id, afterId, from, to, page);
+        val response = ResponseEntity.ok().eTag(eTag);
+        if(entries.size() == page.getPageSize()){
+            val next = ServletUriComponentsBuilder.fromCurrentRequest().replaceQueryParam("after", entries.get(entries.size() - 1).getId()).toUriString();
+            response.header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"");
+        }
+        return response.body(entries.stream().map(EntryView::getFullEntry).toArray(String[]::new));
     }
 
     @GetMapping(path="/tests/finished")
     public Long[] getFinishedTests(){
-        return repository.findAllByIsActiveEquals(false).stream().map(Test::getCreatedAt).toArray(Long[]::new);
+        return repository.findIdsByIsActive(false).toArray(new Long[0]);
     }
 
     @GetMapping(path="/tests/running")
-    public Long[] getRunningTests(){
-        return repository.findAllByIsActiveEquals(true).stream().map(Test::getCreatedAt).toArray(Long[]::new);
+    public ResponseEntity<Long[]> getRunningTests(WebRequest request){
+        val eTag = entryVersions.toETag(registry.getVersion());
+        if(request.checkNotModified(eTag)){
+            return null;
+        }
+        return ResponseEntity.ok().eTag(eTag).body(repository.findIdsByIsActive(true).toArray(new Long[0]));
+    }
+
+    //test to order the control message with, e.g. a testEnd is handled after the times and assertions received before it
+    private static long controlMessageTestId(String message){
+        val messageParts = message.split(" ", 3);
+        try {
+            return messageParts.length > 1 ? Long.parseLong(messageParts[1]) : 0;
+        } catch (NumberFormatException e){
+            //receivedControlMessage reports it
+            return 0;
+        }
     }
 
     /**
@@ -104,8 +441,20 @@ public class TestController extends MqttController{
             return;
         }
         if(messageParts[0].equals("testStart")){
+            long testId;
+            try {
+                testId = Long.parseLong(messageParts[1]);
+            } catch (NumberFormatException e){
+                log.warn("Received invalid test start: Could not parse test id \""+messageParts[1]+"\".", e);
+                return;
+            }
+            //delivered again, e.g. as retained message after a reconnect. Saving it again would reactivate an ended test and load its entries
+            if(registry.exists(testId)){
+                log.info("Ignoring start of known test "+testId);
+                return;
+            }
             val test = new Test();
-            test.setCreatedAt(Long.parseLong(messageParts[1]));
+            test.setCreatedAt(testId);
 
             //test config follows after start keyword and id, and might contain spaces --> collect back together
             if(messageParts.length > 2){
@@ -123,6 +472,10 @@ public class TestController extends MqttController{
             }
             log.info("Test "+test.getCreatedAt() + " with description "+test.getTestConfig()+" started!");
             repository.save(test);
+            //before the first entries arrive, so they do not have to wait for it
+            partitions.create(Collections.singleton(test.getCreatedAt()));
+            registry.started(test.getCreatedAt());
+            hotTier.track(test.getCreatedAt());
         }
         if(messageParts[0].equals("testEnd")){
             //assume that the
@@ -133,13 +486,13 @@ public class TestController extends MqttController{
                 log.warn("Received invalid test end: Could not parse test id \""+messageParts[1]+"\".", e);
                 return;
             }
-            val test = repository.findById(testId).orElse(null);
-            if(test == null){
+            //do not load the test, that would load all of its times and assertions
+            if(!registry.exists(testId) || repository.markFinished(testId) == 0){
                 log.warn("Received invalid test end: Could not find test with id \""+messageParts[1]+"\".");
                 return;
             }
-            test.setActive(false);
-            repository.save(test);
+            registry.finished(testId);
+            events.publishEvent(new TestFinishedEvent(testId));
         }
     }
 }
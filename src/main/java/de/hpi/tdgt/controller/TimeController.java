@@ -21,69 +21,142 @@
 
 package de.hpi.tdgt.controller;
 
-import de.hpi.tdgt.test.ReportedTime;
-import de.hpi.tdgt.test.ReportedTimeRepository;
-import de.hpi.tdgt.test.TestRepository;
+import de.hpi.tdgt.ingest.EntryImporter;
+import de.hpi.tdgt.ingest.EntryParser;
+import de.hpi.tdgt.ingest.IngestEntry;
+import de.hpi.tdgt.ingest.IngestLog;
+import de.hpi.tdgt.mqtt.MessageDispatcher;
+import de.hpi.tdgt.mqtt.MqttConnection;
+import de.hpi.tdgt.test.TestRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.log4j.Log4j2;
 import lombok.val;
-import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
-import org.springframework.beans.factory.annotation.Value;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RestController;
-import org.testcontainers.shaded.com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.UUID;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 
 @RestController
 @Log4j2
-public class TimeController extends MqttController {
+public class TimeController {
 
     public static final String MQTT_TIME_TOPIC ="de.hpi.tdgt.times";
-    public TimeController(TestRepository repository, ReportedTimeRepository timeRepository, @Value("${mqtt.host}") String mqtt_host) throws MqttException {
+    public TimeController(TestRegistry registry, IngestLog ingestLog, EntryImporter importer, MqttConnection connection, MessageDispatcher dispatcher, MeterRegistry meterRegistry) throws MqttException {
         //only way to autowire it, field injection would not be working because evaluated after creation
-        this.mqtt_host = mqtt_host;
-        this.mqtt_topic = MQTT_TIME_TOPIC;
-        this.testRepository = repository;
-        this.timeRepository = timeRepository;
-        prepareClient((s, message) -> {
-            receivedTimeMessage(s, message.toString());
-        });
+        this.registry = registry;
+        this.ingestLog = ingestLog;
+        this.importer = importer;
+        this.dispatcher = dispatcher;
+        this.connection = connection;
+        this.parseTimer = meterRegistry.timer("ingest.parse", "kind", "time");
+        this.lookupTimer = meterRegistry.timer("ingest.test.lookup", "kind", "time");
+        this.invalid = meterRegistry.counter("ingest.entries.rejected", "kind", "time", "reason", "invalid");
+        this.unknownTest = meterRegistry.counter("ingest.entries.rejected", "kind", "time", "reason", "unknown_test");
+        connection.subscribe(MQTT_TIME_TOPIC, this::receivedTimeMessage);
     }
 
 
-    private final TestRepository testRepository;
-    private final ReportedTimeRepository timeRepository;
+    //how long a time of an unknown test waits for the control messages received before it
+    private static final long CONTROL_MESSAGE_TIMEOUT_MS = 5000;
+    private final TestRegistry registry;
+    private final IngestLog ingestLog;
+    private final EntryImporter importer;
+    private final MessageDispatcher dispatcher;
+    private final MqttConnection connection;
+    private final Timer parseTimer;
+    private final Timer lookupTimer;
+    private final Counter invalid;
+    private final Counter unknownTest;
 
-    private final ObjectMapper mapper = new ObjectMapper();
-    private void receivedTimeMessage(String topic, String message) {
+    /**
+     * Imports times of a test, e.g. from an export of another instance. Every line of the body has to be a time of the test.
+     * @return number of imported times
+     */
+    @PostMapping(path="/test/{id}/times", consumes = TestController.NDJSON_VALUE)
+    public ResponseEntity<Long> importTimes(@PathVariable long id, InputStream body) throws IOException {
+        if(!registry.exists(id)){
+            return ResponseEntity.notFound().build();
+        }
+        try {
+            return ResponseEntity.ok(importer.importEntries(IngestEntry.Kind.TIME, id, body));
+        } catch (IllegalArgumentException e){
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+
+    private void receivedTimeMessage(String topic, MqttMessage mqttMessage) {
+        val message = mqttMessage.getPayload();
+        //messages that cannot be stored are acknowledged right away, receiving them again would not change that
         //just resetting persisted messages, ignore
-        if(message.isEmpty()){
+        if(message.length == 0){
+            connection.acknowledge(mqttMessage);
             return;
         }
         try {
-            val time = mapper.readValue(message, Map.class);
-            val testId = time.getOrDefault("testId", null);
-            if(testId == null){
-                log.error("Time has invalid format: "+message);
+            val start = System.nanoTime();
+            val entry = EntryParser.parse(IngestEntry.Kind.TIME, message);
+            parseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if(entry == null){
+                invalid.increment();
+                log.error("Time has invalid format: "+new String(message, StandardCharsets.UTF_8));
+                connection.acknowledge(mqttMessage);
                 return;
             }
-            val test = testRepository.findById(Long.valueOf(testId.toString())).orElse(null);
-            if(test == null){
-                log.error("Message refers to non-existant test: "+testId+": "+message);
-                return;
+            //only confirmed to the broker once written
+            entry.setAcknowledgement(() -> connection.acknowledge(mqttMessage));
+            //could not be stored right now, the broker delivers it again
+            entry.setRejection(() -> connection.release(mqttMessage));
+            //the start of its test may still be queued for the control worker
+            val controlMessages = dispatcher.getQueuedControlMessages();
+            //parsing is cheap, but looking up the test may need the database
+            val dispatched = dispatcher.dispatch(entry.getTestId(), entry.estimateSize(), () -> {
+                var handled = false;
+                try {
+                    val lookupStart = System.nanoTime();
+                    var exists = registry.exists(entry.getTestId());
+                    if(!exists){
+                        if(!dispatcher.awaitControlMessages(controlMessages, CONTROL_MESSAGE_TIMEOUT_MS)){
+                            //the broker delivers it again
+                            return;
+                        }
+                        exists = registry.exists(entry.getTestId());
+                    }
+                    lookupTimer.record(System.nanoTime() - lookupStart, TimeUnit.NANOSECONDS);
+                    if(!exists){
+                        unknownTest.increment();
+                        log.error("Message refers to non-existant test: "+entry.getTestId()+": "+entry.getFullEntry());
+                        //receiving it again would not change that
+                        entry.acknowledge();
+                        handled = true;
+                        return;
+                    }
+                    handled = ingestLog.submit(entry);
+                } finally {
+                    //also if the lookup failed
+                    if(!handled){
+                        entry.reject();
+                    }
+                }
+            });
+            if(!dispatched){
+                entry.reject();
             }
-            val timeRepr = new ReportedTime();
-            timeRepr.setTest(test);
-            timeRepr.setFullEntry(message);
-            timeRepository.save(timeRepr);
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             log.error("Unable to parse time", e);
+            invalid.increment();
+            connection.acknowledge(mqttMessage);
         }
 
     }
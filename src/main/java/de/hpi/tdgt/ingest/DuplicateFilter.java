@@ -0,0 +1,90 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.ingest;
+
+import de.hpi.tdgt.test.TestEvent;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the content hashes of the entries a test has written last, so that messages the broker delivers again
+ * after a reconnect are acknowledged without another round trip to the database.
+ * Only recently written entries are remembered; anything older is still rejected by the unique index of the entry tables.
+ * Unlike a bloom filter, this never mistakes a new entry for a duplicate. Entries without content hash cannot be told apart from other reports and are never duplicates.
+ */
+@Component
+public class DuplicateFilter {
+    private final int capacity;
+    private final Map<Long, Map<Long, Boolean>> recent = new ConcurrentHashMap<>();
+
+    public DuplicateFilter(@Value("${ingest.dedup.capacity}") int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return true if an entry of the same test with the same content has been written before
+     */
+    public boolean isDuplicate(IngestEntry entry) {
+        if (entry.getContentHash() == null) {
+            return false;
+        }
+        val hashes = recent.get(entry.getTestId());
+        if (hashes == null) {
+            return false;
+        }
+        synchronized (hashes) {
+            return hashes.get(entry.getContentHash()) != null;
+        }
+    }
+
+    /**
+     * Called once the entry has been committed.
+     */
+    public void remember(IngestEntry entry) {
+        if (entry.getContentHash() == null) {
+            return;
+        }
+        val hashes = recent.computeIfAbsent(entry.getTestId(), testId -> new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > capacity;
+            }
+        });
+        synchronized (hashes) {
+            hashes.put(entry.getContentHash(), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Called once a test has ended, it does not receive entries anymore.
+     */
+    @EventListener
+    public void testEnded(TestEvent event) {
+        recent.remove(event.getTestId());
+    }
+}
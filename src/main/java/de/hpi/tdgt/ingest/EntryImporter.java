@@ -0,0 +1,88 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.ingest;
+
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Bulk import of newline-delimited times or assertions, e.g. an export of another instance.
+ * Entries are written in batches with the bulk writer, without going through the ingest queue.
+ */
+@Component
+public class EntryImporter {
+    private final EntryWriter writer;
+    private final int batchSize;
+
+    public EntryImporter(EntryWriter writer, @Value("${ingest.batch.size}") int batchSize) {
+        this.writer = writer;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Imports entries of a test. Batches that have been written before an invalid line was found are kept.
+     * @param kind whether times or assertions are imported
+     * @param testId test the entries belong to
+     * @param ndjson one entry per line, empty lines are skipped
+     * @return number of imported entries, entries the test already contains are not counted
+     * @throws IllegalArgumentException if a line is not a valid entry of the test
+     */
+    public long importEntries(IngestEntry.Kind kind, long testId, InputStream ndjson) throws IOException {
+        val reader = new BufferedReader(new InputStreamReader(ndjson, StandardCharsets.UTF_8));
+        val batch = new ArrayList<IngestEntry>(batchSize);
+        long imported = 0;
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            IngestEntry entry;
+            try {
+                entry = EntryParser.parse(kind, line);
+            } catch (IOException | NumberFormatException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + " is not a valid entry", e);
+            }
+            if (entry == null || entry.getTestId() != testId) {
+                throw new IllegalArgumentException("Line " + lineNumber + " does not belong to test " + testId);
+            }
+            batch.add(entry);
+            if (batch.size() >= batchSize) {
+                imported += writer.write(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            imported += writer.write(batch);
+        }
+        return imported;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.ingest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.hpi.tdgt.test.TimeMeasurement;
+import lombok.val;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turns received times and assertions into entries for the ingest pipeline.
+ * Messages are read token by token, so only testId, creationTime and the measurements are materialized instead of a tree of the whole message.
+ * Jackson recycles its parse buffers per thread, so parsing on the MQTT and writer threads does not allocate new buffers for every message.
+ */
+public class EntryParser {
+    private static final JsonFactory factory = new JsonFactory();
+    //MessageDigest is not thread safe
+    private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            //every Java platform has to support MD5
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private EntryParser() {
+    }
+
+    /**
+     * @param kind whether the message is a time or an assertion
+     * @param message the UTF-8 encoded message as received
+     * @return the entry, or null if the message does not contain a testId
+     * @throws IOException if the message is not a JSON object
+     * @throws NumberFormatException if the testId is not a number
+     */
+    public static IngestEntry parse(IngestEntry.Kind kind, byte[] message) throws IOException {
+        try (val parser = factory.createParser(message)) {
+            return read(kind, parser, new String(message, StandardCharsets.UTF_8), message);
+        }
+    }
+
+    /**
+     * Like parse(kind, byte[]), for messages that have already been decoded.
+     */
+    public static IngestEntry parse(IngestEntry.Kind kind, String message) throws IOException {
+        try (val parser = factory.createParser(message)) {
+            return read(kind, parser, message, null);
+        }
+    }
+
+    /**
+     * Identifies a message, so that a message that is delivered again can be recognized. Only computed for entries with a creationTime:
+     * the generator sends assertions without one, and two reports with the same failures are still two reports.
+     * Equals ('x' || substr(md5(full_entry), 1, 16))::bit(64)::bigint in Postgres.
+     */
+    static long contentHash(byte[] message) {
+        val digest = md5.get().digest(message);
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * @param bytes message as received, null to encode it again
+     */
+    private static IngestEntry read(IngestEntry.Kind kind, JsonParser parser, String message, byte[] bytes) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Message is not a JSON object");
+        }
+        String testId = null;
+        Long creationTime = null;
+        List<TimeMeasurement> measurements = kind == IngestEntry.Kind.TIME ? new ArrayList<>() : Collections.emptyList();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val field = parser.getCurrentName();
+            val token = parser.nextToken();
+            if (field.equals("testId")) {
+                testId = readTestId(parser, token);
+            } else if (field.equals("creationTime")) {
+                creationTime = readLong(parser, token);
+            } else if (field.equals("times") && kind == IngestEntry.Kind.TIME) {
+                measurements.clear();
+                MeasurementExtractor.extract(parser, measurements);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        //the message is also stored as jsonb, which does not accept anything after the object
+        if (parser.nextToken() != null) {
+            throw new JsonParseException(parser, "Unexpected content after the message");
+        }
+        if (testId == null) {
+            return null;
+        }
+        val id = Long.parseLong(testId);
+        //testId and creationTime may come after the times
+        for (val measurement : measurements) {
+            measurement.setTestId(id);
+            measurement.setCreationTime(creationTime);
+        }
+        val contentHash = creationTime != null ? contentHash(bytes != null ? bytes : message.getBytes(StandardCharsets.UTF_8)) : null;
+        return new IngestEntry(kind, id, creationTime, message, contentHash, measurements);
+    }
+
+    //text of the testId, parsed once the whole message has been read so that a later duplicate wins
+    private static String readTestId(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token.isScalarValue()) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        throw new NumberFormatException("testId is not a number");
+    }
+
+    /**
+     * Reads a number at the current token. The generator sends some numbers as strings.
+     * @return the number, or null if the value is not a number
+     */
+    static Long readLong(JsonParser parser, JsonToken token) throws IOException {
+        if (token.isNumeric()) {
+            return parser.getNumberValue().longValue();
+        }
+        if (token == JsonToken.VALUE_STRING) {
+            try {
+                return Long.parseLong(parser.getText());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        parser.skipChildren();
+        return null;
+    }
+}
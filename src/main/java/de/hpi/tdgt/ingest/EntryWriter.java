@@ -0,0 +1,286 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.ingest;
+
+import de.hpi.tdgt.aggregation.RollupService;
+import de.hpi.tdgt.aggregation.SummaryService;
+import de.hpi.tdgt.live.LiveFeed;
+import de.hpi.tdgt.storage.CsvCopy;
+import de.hpi.tdgt.storage.EntryCompression;
+import de.hpi.tdgt.storage.EntryPartitions;
+import de.hpi.tdgt.storage.EntrySearch;
+import de.hpi.tdgt.storage.EntryVersions;
+import de.hpi.tdgt.storage.HotTier;
+import de.hpi.tdgt.storage.IdWatermark;
+import de.hpi.tdgt.storage.PayloadFilter;
+import de.hpi.tdgt.storage.SchemaMigration;
+import de.hpi.tdgt.storage.TestArchive;
+import de.hpi.tdgt.test.Sequences;
+import lombok.val;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Writes a batch of entries in a single transaction. Rows are streamed into the tables with COPY,
+ * ids are taken from the entity sequences in blocks, the same way Hibernate does.
+ * Entries with a creationTime are unique per test and content, so messages that are delivered again are only stored once.
+ */
+@Component
+public class EntryWriter {
+    private static final String ENTRY_COLUMNS = "id, test_created_at, creation_time, full_entry, packed_entry, payload, content_hash";
+    private static final String MEASUREMENT_COLUMNS = "id, test_id, creation_time, url, method, story, min_latency, avg_latency, max_latency, throughput";
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final EntryVersions entryVersions;
+    private final HotTier hotTier;
+    private final IdWatermark watermark;
+    private final EntryCompression compression;
+    private final EntryPartitions partitions;
+    private final SummaryService summaries;
+    private final RollupService rollups;
+    private final LiveFeed liveFeed;
+    private final TestArchive archive;
+
+    /**
+     * @param schemaMigration not used, but sequences have to be migrated before ids can be taken from them
+     */
+    public EntryWriter(DataSource dataSource, JdbcTemplate jdbcTemplate, SchemaMigration schemaMigration, EntryVersions entryVersions, HotTier hotTier, IdWatermark watermark, EntryCompression compression, EntryPartitions partitions, SummaryService summaries, RollupService rollups, LiveFeed liveFeed, TestArchive archive) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = jdbcTemplate;
+        this.entryVersions = entryVersions;
+        this.hotTier = hotTier;
+        this.watermark = watermark;
+        this.compression = compression;
+        this.partitions = partitions;
+        this.summaries = summaries;
+        this.rollups = rollups;
+        this.liveFeed = liveFeed;
+        this.archive = archive;
+    }
+
+    /**
+     * @return number of entries that have been written, entries of which the test already has one with the same content are skipped
+     */
+    @Transactional
+    public int write(List<IngestEntry> entries) {
+        int timeCount = 0;
+        int measurementCount = 0;
+        for (val entry : entries) {
+            if (entry.getKind() == IngestEntry.Kind.TIME) {
+                timeCount++;
+                measurementCount += entry.getMeasurements().size();
+            }
+        }
+        if (partitions.isEnabled()) {
+            //rows of a test without partition could not be inserted
+            partitions.create(entries.stream().map(IngestEntry::getTestId).collect(Collectors.toSet()));
+        }
+        long[] timeIds;
+        long[] assertionIds;
+        long[] measurementIds;
+        //lowest id per test, readers must not return greater ids until the batch has completed
+        val lowestTimes = new HashMap<Long, Long>();
+        val lowestAssertions = new HashMap<Long, Long>();
+        val lowestMeasurements = new HashMap<Long, Long>();
+        //readers compute the watermark holding the same lock, so they cannot miss ids that have been taken but not registered yet
+        synchronized (watermark) {
+            timeIds = allocateIds(Sequences.REPORTED_TIME, timeCount);
+            assertionIds = allocateIds(Sequences.REPORTED_ASSERTION, entries.size() - timeCount);
+            int time = 0;
+            int assertion = 0;
+            for (val entry : entries) {
+                if (entry.getKind() == IngestEntry.Kind.TIME) {
+                    lowestTimes.merge(entry.getTestId(), timeIds[time++], Math::min);
+                } else {
+                    lowestAssertions.merge(entry.getTestId(), assertionIds[assertion++], Math::min);
+                }
+            }
+            measurementIds = allocateIds(Sequences.TIME_MEASUREMENT, measurementCount);
+            int measurement = 0;
+            //in the order they are copied below
+            for (val entry : entries) {
+                if (!entry.getMeasurements().isEmpty()) {
+                    lowestMeasurements.merge(entry.getTestId(), measurementIds[measurement], Math::min);
+                    measurement += entry.getMeasurements().size();
+                }
+            }
+            lowestTimes.forEach((testId, id) -> watermark.begin(EntrySearch.TIMES, testId, id));
+            lowestAssertions.forEach((testId, id) -> watermark.begin(EntrySearch.ASSERTIONS, testId, id));
+            lowestMeasurements.forEach((testId, id) -> watermark.begin(IdWatermark.MEASUREMENTS, testId, id));
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                lowestTimes.forEach((testId, id) -> watermark.end(EntrySearch.TIMES, testId, id));
+                lowestAssertions.forEach((testId, id) -> watermark.end(EntrySearch.ASSERTIONS, testId, id));
+                lowestMeasurements.forEach((testId, id) -> watermark.end(IdWatermark.MEASUREMENTS, testId, id));
+            }
+        });
+        val times = new CsvCopy();
+        val assertions = new CsvCopy();
+        val measurements = new CsvCopy();
+        val entryIds = new long[entries.size()];
+        //packed entries are stored instead of the text, the payload only keeps the keys filters and summaries read
+        val packed = compression.pack(entries);
+        for (int i = 0; i < entries.size(); i++) {
+            val entry = entries.get(i);
+            if (entry.getKind() == IngestEntry.Kind.TIME) {
+                val timeId = timeIds[times.getRows()];
+                entryIds[i] = timeId;
+                times.row(timeId, entry.getTestId(), entry.getCreationTime(), packed == null ? entry.getFullEntry() : null, packed == null ? null : packed[i],
+                        PayloadFilter.payload(entry.getFullEntry()), entry.getContentHash());
+                for (val measurement : entry.getMeasurements()) {
+                    measurements.row(measurementIds[measurements.getRows()], measurement.getTestId(), measurement.getCreationTime(),
+                            measurement.getUrl(), measurement.getMethod(), measurement.getStory(),
+                            measurement.getMinLatency(), measurement.getAvgLatency(), measurement.getMaxLatency(), measurement.getThroughput(), timeId);
+                }
+            } else {
+                entryIds[i] = assertionIds[assertions.getRows()];
+                assertions.row(entryIds[i], entry.getTestId(), entry.getCreationTime(), packed == null ? entry.getFullEntry() : null, packed == null ? null : packed[i],
+                        PayloadFilter.payload(entry.getFullEntry()), entry.getContentHash());
+            }
+        }
+
+        //COPY cannot skip duplicates, so rows are copied into temporary tables and inserted from there
+        jdbcTemplate.execute("create temp table if not exists reported_time_staging (like reported_time including defaults) on commit delete rows");
+        jdbcTemplate.execute("create temp table if not exists reported_assertion_staging (like reported_assertion including defaults) on commit delete rows");
+        jdbcTemplate.execute("create temp table if not exists time_measurement_staging (like time_measurement including defaults, entry_id bigint) on commit delete rows");
+        //connection of the surrounding transaction
+        val connection = DataSourceUtils.getConnection(dataSource);
+        try {
+            //payloads are valid JSON, so they can be copied into the jsonb column directly
+            times.copyInto(connection, "reported_time_staging", ENTRY_COLUMNS);
+            assertions.copyInto(connection, "reported_assertion_staging", ENTRY_COLUMNS);
+            measurements.copyInto(connection, "time_measurement_staging", MEASUREMENT_COLUMNS + ", entry_id");
+        } catch (SQLException e) {
+            throw jdbcTemplate.getExceptionTranslator().translate("COPY", null, e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+        //ids of the entries that are not duplicates
+        Set<Long> insertedTimes = Collections.emptySet();
+        Set<Long> insertedAssertions = Collections.emptySet();
+        if (times.getRows() > 0) {
+            //measurements are only written for times that are not duplicates
+            insertedTimes = new HashSet<>(jdbcTemplate.queryForList("with inserted as (" +
+                    "  insert into reported_time (" + ENTRY_COLUMNS + ") select " + ENTRY_COLUMNS + " from reported_time_staging order by id" +
+                    "  on conflict do nothing returning id" +
+                    "), measured as (" +
+                    "  insert into time_measurement (" + MEASUREMENT_COLUMNS + ") select " + prefixed("m.", MEASUREMENT_COLUMNS) +
+                    "  from time_measurement_staging m join inserted i on m.entry_id = i.id" +
+                    ") select id from inserted", Long.class));
+        }
+        if (assertions.getRows() > 0) {
+            insertedAssertions = new HashSet<>(jdbcTemplate.queryForList(
+                    "insert into reported_assertion (" + ENTRY_COLUMNS + ") select " + ENTRY_COLUMNS + " from reported_assertion_staging order by id" +
+                    " on conflict do nothing returning id", Long.class));
+        }
+        if (!insertedTimes.isEmpty()) {
+            summaries.addStagedMeasurements();
+        }
+        if (!insertedAssertions.isEmpty()) {
+            summaries.addStagedAssertions();
+        }
+        if (!insertedTimes.isEmpty()) {
+            //measurements might be late for rollups that have been computed already
+            val earliest = new HashMap<Long, Long>();
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).getKind() == IngestEntry.Kind.TIME && insertedTimes.contains(entryIds[i])) {
+                    for (val measurement : entries.get(i).getMeasurements()) {
+                        if (measurement.getCreationTime() != null) {
+                            earliest.merge(measurement.getTestId(), measurement.getCreationTime(), Math::min);
+                        }
+                    }
+                }
+            }
+            if (!earliest.isEmpty()) {
+                rollups.added(earliest);
+            }
+        }
+        val written = insertedTimes.size() + insertedAssertions.size();
+        if (written > 0) {
+            val finalInsertedTimes = insertedTimes;
+            val finalInsertedAssertions = insertedAssertions;
+            //readers must not see the new entries or a new version before they can read them from the database
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    val testIds = new HashSet<Long>();
+                    for (int i = 0; i < entries.size(); i++) {
+                        val entry = entries.get(i);
+                        val isTime = entry.getKind() == IngestEntry.Kind.TIME;
+                        if ((isTime ? finalInsertedTimes : finalInsertedAssertions).contains(entryIds[i])) {
+                            hotTier.added(isTime ? EntrySearch.TIMES : EntrySearch.ASSERTIONS, entry.getTestId(), entryIds[i], entry.getCreationTime(), entry.getFullEntry());
+                            //only inserted entries, a redelivered duplicate has been pushed already
+                            liveFeed.publish(entry);
+                            testIds.add(entry.getTestId());
+                        }
+                    }
+                    testIds.forEach(entryVersions::changed);
+                    //entries of a test that has been archived already, e.g. replayed after an outage
+                    testIds.forEach(archive::written);
+                }
+            });
+        }
+        return written;
+    }
+
+    private static String prefixed(String prefix, String columns) {
+        return prefix + String.join(", " + prefix, columns.split(", "));
+    }
+
+    /**
+     * Every value returned by the sequence stands for a block of Sequences.ALLOCATION_SIZE ids, so one query allocates ids for many rows.
+     */
+    private long[] allocateIds(String sequence, int count) {
+        val ids = new long[count];
+        if (count == 0) {
+            return ids;
+        }
+        val blocks = (count + Sequences.ALLOCATION_SIZE - 1) / Sequences.ALLOCATION_SIZE;
+        int i = 0;
+        for (val high : jdbcTemplate.queryForList("select nextval('" + sequence + "') from generate_series(1, ?)", Long.class, blocks)) {
+            for (long id = high - Sequences.ALLOCATION_SIZE + 1; id <= high && i < count; id++) {
+                ids[i++] = id;
+            }
+        }
+        return ids;
+    }
+}
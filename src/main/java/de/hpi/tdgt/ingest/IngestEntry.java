@@ -0,0 +1,98 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.ingest;
+
+import de.hpi.tdgt.test.TimeMeasurement;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * A received time or assertion that has been accepted by the ingest path, but not yet been written to the database.
+ */
+@Getter
+@RequiredArgsConstructor
+@ToString
+public class IngestEntry {
+    //estimated sizes besides the text, which compact strings store with one byte per character for Latin-1 text, see HotTier
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int MEASUREMENT_OVERHEAD = 128;
+
+    public enum Kind {
+        TIME, ASSERTION
+    }
+
+    private final Kind kind;
+    private final long testId;
+    //null if the entry did not contain a creationTime
+    private final Long creationTime;
+    private final String fullEntry;
+    //identifies a message that is delivered again, see EntryParser.contentHash. null if the entry did not contain a creationTime,
+    //other entries with the same content are not necessarily the same report
+    private final Long contentHash;
+    //typed rows extracted from a time, empty for assertions
+    private final List<TimeMeasurement> measurements;
+    //confirms the entry to its source once it has been written, null if the source does not need that
+    @Setter
+    @ToString.Exclude
+    private Runnable acknowledgement;
+    //called instead if the entry had to be dropped, null if the source does not need that
+    @Setter
+    @ToString.Exclude
+    private Runnable rejection;
+
+    /**
+     * @return estimated bytes of heap the entry takes until it has been written, used to bound the queues it waits in
+     */
+    public int estimateSize() {
+        int size = fullEntry.length() + ENTRY_OVERHEAD;
+        for (TimeMeasurement measurement : measurements) {
+            size += MEASUREMENT_OVERHEAD + length(measurement.getUrl()) + length(measurement.getMethod()) + length(measurement.getStory());
+        }
+        return size;
+    }
+
+    private static int length(String text) {
+        return text == null ? 0 : text.length();
+    }
+
+    /**
+     * Called after the transaction containing the entry has been committed.
+     */
+    public void acknowledge() {
+        if (acknowledgement != null) {
+            acknowledgement.run();
+        }
+    }
+
+    /**
+     * Called if the entry could not be written and has been dropped.
+     */
+    public void reject() {
+        if (rejection != null) {
+            rejection.run();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.ingest;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Entry point for received entries. Without a configured directory, entries are handed to the ingest pipeline directly.
+ * Otherwise they are appended to a write-ahead log and acknowledged once it has been synced, and a replayer hands them to the pipeline.
+ * Ingest then continues at disk speed while the database is slow or unavailable, and accepted entries survive a crash of the service.
+ * Entries the pipeline drops are handed to it again with a back-off on a separate thread, new entries are replayed meanwhile.
+ * Once ingest.wal.retry-capacity entries wait for a retry, e.g. while the database is unavailable, replaying new entries pauses.
+ */
+@Component
+@Log4j2
+public class IngestLog {
+    public enum Sync {
+        //sync before every acknowledgement
+        ALWAYS,
+        //sync periodically and acknowledge everything appended before
+        INTERVAL,
+        //acknowledge right away and leave writing to the operating system
+        NEVER
+    }
+
+    private final IngestPipeline pipeline;
+    private final DuplicateFilter duplicateFilter;
+    private final WriteAheadLog wal;
+    private final Sync sync;
+    private final long syncIntervalMs;
+    private final long checkpointIntervalMs;
+    private final int maxAttempts;
+    private final int retryCapacity;
+    private final long shutdownTimeoutMs;
+    private final Counter duplicates;
+    private final Counter appendFailed;
+    private final Counter gaveUp;
+
+    //acknowledgements waiting for the next sync
+    private List<Runnable> unsynced = new ArrayList<>();
+    //positions of records that have been replayed but not been written yet
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    private final AtomicInteger inPipeline = new AtomicInteger();
+    //positions of records the pipeline dropped and the number of attempts so far, until they have been written or given up
+    private final Map<Long, Integer> attempts = new ConcurrentHashMap<>();
+    //position of the next record to replay
+    private volatile long replayed;
+    private long checkpoint;
+    private volatile boolean running = false;
+    private Thread replayer;
+    private Thread syncer;
+    //hands dropped records to the pipeline again once their back-off has passed
+    private ScheduledExecutorService retrier;
+
+    public IngestLog(IngestPipeline pipeline, DuplicateFilter duplicateFilter,
+                     @Value("${ingest.wal.directory}") String directory,
+                     @Value("${ingest.wal.segment-size}") int segmentSize,
+                     @Value("${ingest.wal.sync}") String sync,
+                     @Value("${ingest.wal.sync-interval-ms}") long syncIntervalMs,
+                     @Value("${ingest.wal.checkpoint-interval-ms}") long checkpointIntervalMs,
+                     @Value("${ingest.wal.max-attempts}") int maxAttempts,
+                     @Value("${ingest.wal.retry-capacity}") int retryCapacity,
+                     @Value("${ingest.shutdown.timeout-ms}") long shutdownTimeoutMs,
+                     MeterRegistry meterRegistry) throws IOException {
+        this.pipeline = pipeline;
+        this.duplicateFilter = duplicateFilter;
+        this.wal = directory.isEmpty() ? null : new WriteAheadLog(Paths.get(directory), segmentSize);
+        this.sync = Sync.valueOf(sync.toUpperCase());
+        this.syncIntervalMs = syncIntervalMs;
+        this.checkpointIntervalMs = checkpointIntervalMs;
+        this.maxAttempts = maxAttempts;
+        this.retryCapacity = retryCapacity;
+        this.shutdownTimeoutMs = shutdownTimeoutMs;
+        this.duplicates = meterRegistry.counter("ingest.entries.duplicate");
+        this.appendFailed = meterRegistry.counter("ingest.entries.dropped", "reason", "wal");
+        this.gaveUp = meterRegistry.counter("ingest.entries.dropped", "reason", "attempts");
+    }
+
+    @PostConstruct
+    public void start() {
+        if (wal == null) {
+            return;
+        }
+        replayed = wal.getCheckpoint();
+        checkpoint = replayed;
+        if (wal.getEnd() > replayed) {
+            log.info("Replaying " + (wal.getEnd() - replayed) + " bytes of the write-ahead log");
+        }
+        running = true;
+        retrier = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "wal-retry"));
+        replayer = new Thread(this::replayLoop, "wal-replayer");
+        replayer.start();
+        syncer = new Thread(this::syncLoop, "wal-sync");
+        syncer.start();
+    }
+
+    /**
+     * Stops replaying, waits for the pipeline to write what has been replayed and stores the checkpoint. Everything else is replayed after the next start.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (wal == null) {
+            return;
+        }
+        running = false;
+        //records waiting for a retry are still in flight, so they are replayed after the next start
+        retrier.shutdownNow();
+        replayer.join(shutdownTimeoutMs);
+        syncer.join(shutdownTimeoutMs);
+        retrier.awaitTermination(shutdownTimeoutMs, TimeUnit.MILLISECONDS);
+        val deadline = System.currentTimeMillis() + shutdownTimeoutMs;
+        while (inPipeline.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        syncAndAcknowledge();
+        checkpoint();
+        wal.close();
+    }
+
+    /**
+     * Accepts an entry. Its acknowledgement is run once it is durable: written to the database without a write-ahead log, else synced to the log.
+     * @return true if the entry has been accepted, false if it had to be dropped
+     */
+    public boolean submit(IngestEntry entry) {
+        //has been written before, the broker delivered it again because the acknowledgement got lost
+        if (duplicateFilter.isDuplicate(entry)) {
+            duplicates.increment();
+            entry.acknowledge();
+            return true;
+        }
+        if (wal == null) {
+            return pipeline.submit(entry);
+        }
+        if (!running) {
+            log.error("Write-ahead log is not running, dropping entry of test " + entry.getTestId());
+            appendFailed.increment();
+            return false;
+        }
+        try {
+            wal.append((byte) entry.getKind().ordinal(), entry.getFullEntry().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Could not append entry of test " + entry.getTestId() + " to the write-ahead log", e);
+            appendFailed.increment();
+            return false;
+        }
+        switch (sync) {
+            case ALWAYS:
+                wal.sync();
+                entry.acknowledge();
+                break;
+            case INTERVAL:
+                synchronized (this) {
+                    unsynced.add(entry::acknowledge);
+                }
+                break;
+            default:
+                entry.acknowledge();
+        }
+        return true;
+    }
+
+    private void replayLoop() {
+        try {
+            while (running) {
+                if (attempts.size() >= retryCapacity) {
+                    Thread.sleep(10);
+                    continue;
+                }
+                if (!wal.await(replayed, 200)) {
+                    continue;
+                }
+                val record = wal.read(replayed);
+                //null at the end of a segment if the next one has no records yet
+                if (record != null && replay(record)) {
+                    replayed = record.getNext();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Write-ahead log replayer interrupted", e);
+        }
+    }
+
+    /**
+     * @return false if the replayer has been stopped before the pipeline took the entry
+     */
+    private boolean replay(WriteAheadLog.Record record) throws InterruptedException {
+        val position = record.getPosition();
+        IngestEntry entry;
+        try {
+            entry = EntryParser.parse(IngestEntry.Kind.values()[record.getKind()], record.getMessage());
+        } catch (IOException | RuntimeException e) {
+            //has been parsed before it was appended, so the record can only be damaged
+            log.error("Skipping unreadable record at position " + position + " of the write-ahead log", e);
+            entry = null;
+        }
+        if (entry == null) {
+            inFlight.remove(position);
+            return true;
+        }
+        inFlight.add(position);
+        entry.setAcknowledgement(() -> {
+            inFlight.remove(position);
+            attempts.remove(position);
+            inPipeline.decrementAndGet();
+        });
+        entry.setRejection(() -> {
+            rejected(position);
+            inPipeline.decrementAndGet();
+        });
+        while (!pipeline.enqueue(entry, 1000)) {
+            if (!running) {
+                return false;
+            }
+        }
+        inPipeline.incrementAndGet();
+        return true;
+    }
+
+    private void rejected(long position) {
+        val count = attempts.merge(position, 1, Integer::sum);
+        if (count >= maxAttempts) {
+            log.error("Giving up on record at position " + position + " of the write-ahead log after " + count + " attempts");
+            gaveUp.increment();
+            attempts.remove(position);
+            inFlight.remove(position);
+            return;
+        }
+        try {
+            retrier.schedule(() -> retry(position), Math.min(100L << Math.min(count, 10), 10_000), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //stopping, the record is still in flight and replayed after the next start
+        }
+    }
+
+    private void retry(long position) {
+        try {
+            replay(wal.read(position));
+        } catch (InterruptedException e) {
+            //stopped, see above
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void syncLoop() {
+        long lastCheckpoint = System.currentTimeMillis();
+        while (running) {
+            try {
+                Thread.sleep(sync == Sync.INTERVAL ? syncIntervalMs : checkpointIntervalMs);
+            } catch (InterruptedException e) {
+                log.warn("Write-ahead log sync interrupted", e);
+                return;
+            }
+            syncAndAcknowledge();
+            if (System.currentTimeMillis() - lastCheckpoint >= checkpointIntervalMs) {
+                checkpoint();
+                lastCheckpoint = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void syncAndAcknowledge() {
+        List<Runnable> acknowledgements;
+        synchronized (this) {
+            if (unsynced.isEmpty()) {
+                return;
+            }
+            acknowledgements = unsynced;
+            unsynced = new ArrayList<>();
+        }
+        wal.sync();
+        acknowledgements.forEach(Runnable::run);
+    }
+
+    private void checkpoint() {
+        //read before inFlight: a record replayed in between is either still in flight or before the replay position
+        val position = replayed;
+        val first = inFlight.ceiling(Long.MIN_VALUE);
+        val next = first != null ? Math.min(first, position) : position;
+        if (next <= checkpoint) {
+            return;
+        }
+        try {
+            wal.checkpoint(next);
+            checkpoint = next;
+        } catch (IOException e) {
+            log.warn("Could not store checkpoint of the write-ahead log", e);
+        }
+    }
+}
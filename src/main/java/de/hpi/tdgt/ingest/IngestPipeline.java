@@ -0,0 +1,266 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.ingest;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decouples receiving times and assertions from writing them.
+ * MQTT callbacks hand entries to a queue bounded by their estimated size (ingest.queue.max-bytes), writer threads drain it and write the entries in batches.
+ * A batch is written as soon as it is full or the flush interval has passed since its first entry was taken from the queue.
+ * Entries are acknowledged to their source only after their batch has been committed.
+ */
+@Component
+//created before and stopped after the pipeline, so acknowledgements of the last batches can still be sent
+@DependsOn("mqttConnection")
+@Log4j2
+public class IngestPipeline {
+    private final EntryWriter writer;
+    private final DuplicateFilter duplicateFilter;
+    private final BlockingQueue<IngestEntry> queue = new LinkedBlockingQueue<>();
+    //bytes of the entries that are queued or being written, entries are counted with at most maxBytes so a single large one still fits
+    private final Semaphore queuedBytes;
+    private final int maxBytes;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final int writerThreadCount;
+    private final long shutdownTimeoutMs;
+    private final int retries;
+
+    private final Timer writeTimer;
+    private final DistributionSummary batchSizes;
+    private final Counter stopped;
+    private final Counter writeFailed;
+
+    private final List<Thread> writerThreads = new ArrayList<>();
+    private volatile boolean running = false;
+
+    public IngestPipeline(EntryWriter writer, DuplicateFilter duplicateFilter,
+                          @Value("${ingest.queue.max-bytes}") int maxBytes,
+                          @Value("${ingest.batch.size}") int batchSize,
+                          @Value("${ingest.flush.interval-ms}") long flushIntervalMs,
+                          @Value("${ingest.writer.threads}") int writerThreadCount,
+                          @Value("${ingest.write.retries}") int retries,
+                          @Value("${ingest.shutdown.timeout-ms}") long shutdownTimeoutMs,
+                          MeterRegistry meterRegistry) {
+        this.writer = writer;
+        this.duplicateFilter = duplicateFilter;
+        this.queuedBytes = new Semaphore(maxBytes);
+        this.maxBytes = maxBytes;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.writerThreadCount = writerThreadCount;
+        this.retries = retries;
+        this.shutdownTimeoutMs = shutdownTimeoutMs;
+        //time of a successful write of a whole batch, including its commit
+        this.writeTimer = Timer.builder("ingest.write")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("ingest.batch.size").register(meterRegistry);
+        this.stopped = meterRegistry.counter("ingest.entries.dropped", "reason", "stopped");
+        this.writeFailed = meterRegistry.counter("ingest.entries.dropped", "reason", "write");
+        meterRegistry.gauge("ingest.queue.depth", queue, BlockingQueue::size);
+        meterRegistry.gauge("ingest.queue.bytes", queuedBytes, bytes -> maxBytes - bytes.availablePermits());
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        for (int i = 0; i < writerThreadCount; i++) {
+            val thread = new Thread(this::writeLoop, "ingest-writer-" + i);
+            writerThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops accepting new entries and waits until the writer threads have written everything that is still queued.
+     */
+    @PreDestroy
+    public void stop() {
+        running = false;
+        for (val thread : writerThreads) {
+            try {
+                thread.join(shutdownTimeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!queue.isEmpty()) {
+            log.error("Ingest pipeline stopped with " + queue.size() + " unwritten entries!");
+        }
+    }
+
+    /**
+     * Hands an entry to the writer threads. Blocks as long as the queue is full, i.e. its entries take ingest.queue.max-bytes,
+     * so a slow database slows down receiving instead of losing entries.
+     * @param entry entry to write
+     * @return true if the entry has been queued, false if the pipeline has been stopped before
+     */
+    public boolean submit(IngestEntry entry) {
+        try {
+            while (running) {
+                if (enqueue(entry, 1000)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while queueing entry of test " + entry.getTestId());
+            return false;
+        }
+        log.error("Ingest pipeline is not running, rejecting entry of test " + entry.getTestId());
+        stopped.increment();
+        return false;
+    }
+
+    /**
+     * Like submit, for callers that handle a full queue themselves.
+     * @return true if the entry has been queued, false if the queue stayed full or the pipeline is not running
+     */
+    public boolean enqueue(IngestEntry entry, long timeoutMs) throws InterruptedException {
+        if (!running || !queuedBytes.tryAcquire(size(entry), timeoutMs, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        queue.add(entry);
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void writeLoop() {
+        val batch = new ArrayList<IngestEntry>(batchSize);
+        //keep going after stop() until the queue is drained
+        while (running || !queue.isEmpty()) {
+            try {
+                fillBatch(batch);
+            } catch (InterruptedException e) {
+                //entries already taken from the queue are still written below
+                log.warn("Ingest writer interrupted", e);
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                //written or dropped, the batch does not hold the entries anymore
+                queuedBytes.release(batch.stream().mapToInt(this::size).sum());
+                batch.clear();
+            }
+        }
+    }
+
+    private void fillBatch(List<IngestEntry> batch) throws InterruptedException {
+        val first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        while (batch.size() < batchSize) {
+            //take whatever is already there without waiting
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+            val remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !running) {
+                return;
+            }
+            val next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void write(List<IngestEntry> batch) {
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            try {
+                val start = System.nanoTime();
+                writer.write(batch);
+                writeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                batchSizes.record(batch.size());
+                //EntryWriter publishes the entries it inserted to the live feed, duplicates are only acknowledged
+                for (val entry : batch) {
+                    duplicateFilter.remember(entry);
+                    entry.acknowledge();
+                }
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Writing batch of " + batch.size() + " entries failed (attempt " + (attempt + 1) + ")", e);
+                backOff(attempt);
+            }
+        }
+        //a single broken entry should not cost the whole batch
+        if (batch.size() > 1) {
+            for (val entry : batch) {
+                try {
+                    writer.write(Collections.singletonList(entry));
+                    duplicateFilter.remember(entry);
+                    entry.acknowledge();
+                } catch (RuntimeException e) {
+                    log.error("Dropping entry that could not be written: " + entry, e);
+                    writeFailed.increment();
+                    entry.reject();
+                }
+            }
+        } else {
+            log.error("Dropping entry that could not be written: " + batch.get(0));
+            writeFailed.increment();
+            batch.get(0).reject();
+        }
+        //the source of a rejected entry decides what happens to it, e.g. the write-ahead log tries again later
+    }
+
+    private int size(IngestEntry entry) {
+        return Math.min(entry.estimateSize(), maxBytes);
+    }
+
+    private void backOff(int attempt) {
+        try {
+            Thread.sleep(Math.min(flushIntervalMs << attempt, 10_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.ingest;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.hpi.tdgt.test.TimeMeasurement;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Explodes the times of a time message (url -> method -> story -> {minLatency, avgLatency, maxLatency, throughput}) into one TimeMeasurement per story.
+ */
+public class MeasurementExtractor {
+    private MeasurementExtractor() {
+    }
+
+    /**
+     * Reads the value of the "times" key of a message. testId and creationTime of the measurements are left for the caller to set.
+     * @param parser positioned at the first token of the value, afterwards positioned at its last token
+     * @param measurements receives one measurement per story, parts that do not have the expected format are skipped
+     */
+    public static void extract(JsonParser parser, List<TimeMeasurement> measurements) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val url = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                val method = parser.getCurrentName();
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    val story = parser.getCurrentName();
+                    if (parser.nextToken() != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    measurements.add(readValues(parser, url, method, story));
+                }
+            }
+        }
+    }
+
+    private static TimeMeasurement readValues(JsonParser parser, String url, String method, String story) throws IOException {
+        val measurement = new TimeMeasurement();
+        measurement.setUrl(url);
+        measurement.setMethod(method);
+        measurement.setStory(story);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val field = parser.getCurrentName();
+            val value = toDouble(parser, parser.nextToken());
+            switch (field) {
+                case "minLatency":
+                    measurement.setMinLatency(value);
+                    break;
+                case "avgLatency":
+                    measurement.setAvgLatency(value);
+                    break;
+                case "maxLatency":
+                    measurement.setMaxLatency(value);
+                    break;
+                case "throughput":
+                    measurement.setThroughput(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return measurement;
+    }
+
+    //the generator sends the values as strings
+    private static Double toDouble(JsonParser parser, JsonToken token) throws IOException {
+        if (token.isNumeric()) {
+            return parser.getDoubleValue();
+        }
+        if (token == JsonToken.VALUE_STRING) {
+            try {
+                return Double.parseDouble(parser.getText());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        parser.skipChildren();
+        return null;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.ingest;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of received messages, split into memory-mapped segment files of fixed size.
+ * A record is [int length of the body][int crc32 of the body][body], the body is the kind of the entry followed by the message.
+ * Segments are zero when they are created, so a length of zero marks the end of the records in a segment.
+ * Positions are global: segment n covers the positions [n * segmentSize, (n + 1) * segmentSize).
+ * The checkpoint file holds the position before which every record has been processed; segments before it are deleted.
+ * Appending and reading are thread-safe.
+ */
+@Log4j2
+public class WriteAheadLog implements Closeable {
+    private static final int HEADER_SIZE = 8;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{20})\\.log");
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ConcurrentNavigableMap<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+    private final long checkpoint;
+
+    //segment that is appended to, and the offset of the next record in it
+    private long writeSegment;
+    private ByteBuffer writeBuffer;
+    private int writeOffset;
+    //position after the last complete record
+    private volatile long end;
+
+    //cached view of the segment the reader is in
+    private long readSegment = -1;
+    private ByteBuffer readBuffer;
+
+    /**
+     * Opens the log in a directory, creating it if needed. Records after the last one that is complete and intact, e.g. after a crash, are discarded.
+     */
+    public WriteAheadLog(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        val checkpointFile = directory.resolve(CHECKPOINT);
+        long storedCheckpoint = 0;
+        if (Files.exists(checkpointFile)) {
+            storedCheckpoint = Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.US_ASCII).trim());
+        }
+        try (val files = Files.list(directory)) {
+            for (val file : (Iterable<Path>) files::iterator) {
+                val matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                val segment = Long.parseLong(matcher.group(1));
+                if ((segment + 1) * segmentSize <= storedCheckpoint) {
+                    Files.delete(file);
+                } else {
+                    segments.put(segment, map(file, false));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            writeSegment = storedCheckpoint / segmentSize;
+            segments.put(writeSegment, map(segmentPath(writeSegment), true));
+        }
+        //checkpoints older than the first segment do not hold anything
+        checkpoint = Math.max(storedCheckpoint, segments.firstKey() * segmentSize);
+        recover();
+    }
+
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Appends a record. Its content may only be durable after the next call to sync.
+     * @return position after the record
+     * @throws IllegalArgumentException if the record does not fit into a segment
+     */
+    public synchronized long append(byte kind, byte[] message) throws IOException {
+        val size = HEADER_SIZE + 1 + message.length;
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("Record of " + size + " bytes exceeds the segment size of " + segmentSize);
+        }
+        if (writeOffset + size > segmentSize) {
+            roll();
+        }
+        val crc = new CRC32();
+        crc.update(kind);
+        crc.update(message);
+        writeBuffer.position(writeOffset);
+        writeBuffer.putInt(1 + message.length);
+        writeBuffer.putInt((int) crc.getValue());
+        writeBuffer.put(kind);
+        writeBuffer.put(message);
+        writeOffset += size;
+        end = writeSegment * segmentSize + writeOffset;
+        notifyAll();
+        return end;
+    }
+
+    /**
+     * Writes everything appended so far to the disk.
+     */
+    public void sync() {
+        MappedByteBuffer segment;
+        synchronized (this) {
+            segment = segments.get(writeSegment);
+        }
+        //earlier segments have been synced when they were completed
+        segment.force();
+    }
+
+    /**
+     * Waits until there is a record at the position or the timeout has passed.
+     * @return true if there is a record at the position
+     */
+    public synchronized boolean await(long position, long timeoutMs) throws InterruptedException {
+        if (position < end) {
+            return true;
+        }
+        wait(timeoutMs);
+        return position < end;
+    }
+
+    /**
+     * @param position position of a record, or the end of a segment
+     * @return the record at the position, or null if no record has been appended there yet
+     */
+    public synchronized Record read(long position) {
+        while (position < end) {
+            val segment = position / segmentSize;
+            val offset = (int) (position % segmentSize);
+            if (segment != readSegment) {
+                val mapped = segments.get(segment);
+                if (mapped == null) {
+                    throw new IllegalStateException("Segment " + segment + " has been deleted");
+                }
+                readBuffer = mapped.duplicate();
+                readSegment = segment;
+            }
+            val length = offset + HEADER_SIZE <= segmentSize ? readBuffer.getInt(offset) : 0;
+            if (length == 0) {
+                //rest of the segment is unused
+                position = (segment + 1) * segmentSize;
+                continue;
+            }
+            val body = new byte[length - 1];
+            readBuffer.position(offset + HEADER_SIZE + 1);
+            readBuffer.get(body);
+            return new Record(position, readBuffer.get(offset + HEADER_SIZE), body, position + HEADER_SIZE + length);
+        }
+        return null;
+    }
+
+    /**
+     * Stores that every record before the position has been processed, and deletes segments that only contain such records.
+     */
+    public void checkpoint(long position) throws IOException {
+        val temporary = directory.resolve(CHECKPOINT + ".tmp");
+        Files.write(temporary, Long.toString(position).getBytes(StandardCharsets.US_ASCII));
+        try (val channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        long current;
+        synchronized (this) {
+            current = writeSegment;
+        }
+        for (val segment : segments.headMap(Math.min(position / segmentSize, current)).keySet()) {
+            segments.remove(segment);
+            Files.deleteIfExists(segmentPath(segment));
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        segments.get(writeSegment).force();
+    }
+
+    /**
+     * Finds the end of the intact records of every segment and zeroes everything after it, so it cannot be mistaken for records later.
+     */
+    private void recover() {
+        long position = checkpoint;
+        long discarded = 0;
+        for (val segment : segments.entrySet()) {
+            val buffer = segment.getValue().duplicate();
+            val start = segment.getKey() * segmentSize;
+            int offset = position > start ? (int) (position - start) : 0;
+            while (offset + HEADER_SIZE <= segmentSize) {
+                val length = buffer.getInt(offset);
+                if (length == 0) {
+                    break;
+                }
+                if (length < 0 || offset + HEADER_SIZE + length > segmentSize || !intact(buffer, offset, length)) {
+                    discarded++;
+                    break;
+                }
+                offset += HEADER_SIZE + length;
+            }
+            //readers skip to the next segment at the first zero length
+            for (int i = offset; i < segmentSize; i++) {
+                if (buffer.get(i) != 0) {
+                    buffer.put(i, (byte) 0);
+                }
+            }
+            writeSegment = segment.getKey();
+            writeOffset = offset;
+            position = start + offset;
+        }
+        writeBuffer = segments.get(writeSegment).duplicate();
+        end = position;
+        if (discarded > 0) {
+            log.warn("Discarded damaged records in " + discarded + " segments of the write-ahead log");
+        }
+    }
+
+    private static boolean intact(ByteBuffer buffer, int offset, int length) {
+        val body = new byte[length];
+        val view = buffer.duplicate();
+        view.position(offset + HEADER_SIZE);
+        view.get(body);
+        val crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue() == buffer.getInt(offset + 4);
+    }
+
+    private void roll() throws IOException {
+        segments.get(writeSegment).force();
+        writeSegment++;
+        val mapped = map(segmentPath(writeSegment), true);
+        segments.put(writeSegment, mapped);
+        writeBuffer = mapped.duplicate();
+        writeOffset = 0;
+    }
+
+    private MappedByteBuffer map(Path file, boolean create) throws IOException {
+        val options = create ? new StandardOpenOption[]{StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE};
+        //the mapping stays valid after the channel has been closed
+        try (val channel = FileChannel.open(file, options)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("segment-%020d.log", segment));
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Record {
+        private final long position;
+        private final byte kind;
+        private final byte[] message;
+        //position of the next record
+        private final long next;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.live;
+
+import de.hpi.tdgt.ingest.IngestEntry;
+import de.hpi.tdgt.test.TestEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes newly written entries to clients subscribed to a test as server-sent events.
+ * Entries are only kept for tests someone has subscribed to, in a ring buffer of the last live.replay-capacity entries,
+ * so a client that reconnects with Last-Event-ID receives what it missed in between.
+ * Publishing never blocks: every subscriber has a bounded queue that sender threads drain,
+ * and a subscriber that does not keep up is disconnected and has to catch up by reconnecting.
+ */
+@Component
+@Log4j2
+public class LiveFeed {
+    private final int replayCapacity;
+    private final int queueCapacity;
+    private final long timeoutMs;
+    private final ExecutorService senders;
+    private final Map<Key, Feed> feeds = new ConcurrentHashMap<>();
+    private final Counter slowSubscribers;
+
+    public LiveFeed(@Value("${live.replay-capacity}") int replayCapacity,
+                    @Value("${live.subscriber-queue-capacity}") int queueCapacity,
+                    @Value("${live.timeout-ms}") long timeoutMs,
+                    @Value("${live.sender-threads}") int senderThreads,
+                    MeterRegistry meterRegistry) {
+        this.replayCapacity = replayCapacity;
+        this.queueCapacity = queueCapacity;
+        this.timeoutMs = timeoutMs;
+        val threadCount = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(senderThreads, runnable -> {
+            val thread = new Thread(runnable, "live-sender-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.slowSubscribers = meterRegistry.counter("live.subscribers.dropped");
+        meterRegistry.gauge("live.subscribers", feeds, f -> f.values().stream().mapToInt(feed -> feed.subscribers.size()).sum());
+    }
+
+    /**
+     * @param lastEventId id of the last event the client has received, entries after it are sent first if they are still buffered
+     */
+    public SseEmitter subscribe(IngestEntry.Kind kind, long testId, Long lastEventId) {
+        val feed = feeds.computeIfAbsent(new Key(kind, testId), key -> new Feed());
+        val subscriber = new Subscriber(new SseEmitter(timeoutMs));
+        subscriber.emitter.onCompletion(() -> feed.subscribers.remove(subscriber));
+        subscriber.emitter.onTimeout(() -> feed.subscribers.remove(subscriber));
+        synchronized (feed) {
+            //everything before is replayed, everything after is published to the subscriber
+            if (lastEventId != null) {
+                for (long id = Math.max(Math.max(lastEventId + 1, feed.next - feed.buffer.length), 0); id < feed.next; id++) {
+                    subscriber.queue.offer(new Event(id, feed.buffer[(int) (id % feed.buffer.length)]));
+                }
+            }
+            feed.subscribers.add(subscriber);
+        }
+        schedule(subscriber);
+        return subscriber.emitter;
+    }
+
+    /**
+     * Called once an entry has been inserted, entries that were already stored are not published again. Does nothing if nobody has subscribed to its test.
+     */
+    public void publish(IngestEntry entry) {
+        val feed = feeds.get(new Key(entry.getKind(), entry.getTestId()));
+        if (feed == null) {
+            return;
+        }
+        //a line break would end the data of the event
+        val data = entry.getFullEntry().replace('\n', ' ').replace('\r', ' ');
+        synchronized (feed) {
+            val event = new Event(feed.next, data);
+            feed.buffer[(int) (feed.next % feed.buffer.length)] = data;
+            feed.next++;
+            for (val subscriber : feed.subscribers) {
+                if (!subscriber.queue.offer(event)) {
+                    log.warn("Disconnecting subscriber of test " + entry.getTestId() + " that does not keep up");
+                    slowSubscribers.increment();
+                    feed.subscribers.remove(subscriber);
+                    subscriber.closed = true;
+                }
+                schedule(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Called once a test has ended, its subscribers are disconnected.
+     */
+    @EventListener
+    public void testEnded(TestEvent event) {
+        forget(event.getTestId());
+    }
+
+    private void forget(long testId) {
+        for (val kind : IngestEntry.Kind.values()) {
+            val feed = feeds.remove(new Key(kind, testId));
+            if (feed != null) {
+                for (val subscriber : feed.subscribers) {
+                    subscriber.closed = true;
+                    schedule(subscriber);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        feeds.keySet().stream().map(Key::getTestId).distinct().forEach(this::forget);
+        senders.shutdown();
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.scheduled.compareAndSet(false, true)) {
+            senders.execute(() -> send(subscriber));
+        }
+    }
+
+    private void send(Subscriber subscriber) {
+        try {
+            Event event;
+            while ((event = subscriber.queue.poll()) != null) {
+                subscriber.emitter.send(SseEmitter.event().id(String.valueOf(event.id)).data(event.data));
+            }
+            if (subscriber.closed) {
+                subscriber.emitter.complete();
+                return;
+            }
+        } catch (IOException | IllegalStateException e) {
+            //client has gone away
+            subscriber.closed = true;
+            subscriber.emitter.completeWithError(e);
+            return;
+        } finally {
+            subscriber.scheduled.set(false);
+        }
+        //published while the flag was still set
+        if (!subscriber.queue.isEmpty()) {
+            schedule(subscriber);
+        }
+    }
+
+    private class Feed {
+        private final String[] buffer = new String[replayCapacity];
+        //id of the next event
+        private long next = 0;
+        private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    }
+
+    @RequiredArgsConstructor
+    private class Subscriber {
+        private final SseEmitter emitter;
+        private final Queue<Event> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closed = false;
+    }
+
+    @RequiredArgsConstructor
+    private static class Event {
+        private final long id;
+        private final String data;
+    }
+
+    @RequiredArgsConstructor
+    @EqualsAndHashCode
+    @Getter
+    private static class Key {
+        private final IngestEntry.Kind kind;
+        private final long testId;
+    }
+}
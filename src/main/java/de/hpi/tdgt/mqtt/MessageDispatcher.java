@@ -0,0 +1,254 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.mqtt;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the handling of received messages on worker threads instead of the MQTT client's thread.
+ * Every test is assigned to one worker, so messages of a test are handled in the order they arrived, while different tests are handled in parallel.
+ * The queue of every worker is bounded by the size of the queued messages (mqtt.dispatch.queue-max-bytes).
+ * Control messages have a small queue and a worker of their own, so they neither wait behind entries nor run on the client's thread.
+ * Dispatching never blocks, the client's thread has to keep receiving and acknowledging messages.
+ */
+@Component
+@Log4j2
+//created before and stopped after the dispatcher, so handled messages can still be acknowledged
+@DependsOn("mqttConnection")
+public class MessageDispatcher {
+    private final List<BlockingQueue<Runnable>> queues = new ArrayList<>();
+    //bytes of the messages in the queue of every worker, including the one being handled
+    private final List<Semaphore> queuedBytes = new ArrayList<>();
+    private final int maxBytes;
+    private final List<Thread> workers = new ArrayList<>();
+    private final BlockingQueue<Runnable> controlQueue;
+    //number of control messages that have been queued and handled, guarded by controlLock
+    private long controlQueued = 0;
+    private long controlHandled = 0;
+    private final Object controlLock = new Object();
+    private final long shutdownTimeoutMs;
+    private final Counter rejected;
+    private volatile boolean running = false;
+
+    public MessageDispatcher(@Value("${mqtt.dispatch.workers}") int workerCount,
+                             @Value("${mqtt.dispatch.queue-max-bytes}") int maxBytes,
+                             @Value("${mqtt.dispatch.control-queue-capacity}") int controlQueueCapacity,
+                             @Value("${ingest.shutdown.timeout-ms}") long shutdownTimeoutMs,
+                             MeterRegistry meterRegistry) {
+        for (int i = 0; i < workerCount; i++) {
+            queues.add(new LinkedBlockingQueue<>());
+            queuedBytes.add(new Semaphore(maxBytes));
+        }
+        this.maxBytes = maxBytes;
+        this.controlQueue = new ArrayBlockingQueue<>(controlQueueCapacity);
+        this.shutdownTimeoutMs = shutdownTimeoutMs;
+        this.rejected = meterRegistry.counter("mqtt.dispatch.rejected");
+        meterRegistry.gauge("mqtt.dispatch.queue.depth", queues, q -> q.stream().mapToInt(BlockingQueue::size).sum());
+        meterRegistry.gauge("mqtt.dispatch.queue.bytes", queuedBytes, b -> b.stream().mapToInt(bytes -> maxBytes - bytes.availablePermits()).sum());
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        for (int i = 0; i < queues.size(); i++) {
+            val queue = queues.get(i);
+            val thread = new Thread(() -> work(queue), "mqtt-worker-" + i);
+            workers.add(thread);
+            thread.start();
+        }
+        val control = new Thread(this::workOnControlMessages, "mqtt-control");
+        workers.add(control);
+        control.start();
+    }
+
+    /**
+     * Stops accepting messages and waits until the workers have handled everything that is still queued.
+     */
+    @PreDestroy
+    public void stop() {
+        running = false;
+        for (val thread : workers) {
+            try {
+                thread.join(shutdownTimeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Hands a message to the worker of a test.
+     * @param testId test the message belongs to
+     * @param size estimated bytes the message takes until it has been handled, counted with at most mqtt.dispatch.queue-max-bytes
+     * @param handler handles the message, may block
+     * @return true if the message has been queued, false if the queue of the worker is full or the dispatcher is not running
+     */
+    public boolean dispatch(long testId, int size, Runnable handler) {
+        if (!running) {
+            log.error("Dispatcher is not running, rejecting message of test " + testId);
+            rejected.increment();
+            return false;
+        }
+        val worker = Math.floorMod(Long.hashCode(testId), queues.size());
+        val bytes = queuedBytes.get(worker);
+        val permits = Math.min(size, maxBytes);
+        if (!bytes.tryAcquire(permits)) {
+            log.warn("Dispatch queue is full, rejecting message of test " + testId);
+            rejected.increment();
+            return false;
+        }
+        queues.get(worker).add(() -> {
+            try {
+                handler.run();
+            } finally {
+                bytes.release(permits);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Hands a control message to the control worker, which handles them in the order they arrived.
+     * @return true if the message has been queued, false if the queue is full (mqtt.dispatch.control-queue-capacity) or the dispatcher is not running
+     */
+    public boolean dispatchControl(Runnable handler) {
+        synchronized (controlLock) {
+            if (!running || !controlQueue.offer(handler)) {
+                log.error("Cannot queue control message, the dispatcher is not running or its control queue is full");
+                rejected.increment();
+                return false;
+            }
+            controlQueued++;
+            return true;
+        }
+    }
+
+    /**
+     * Like {@link #dispatchControl(Runnable)}, but the message is handled after the messages of the test that have been dispatched so far, e.g. its testEnd after its last times.
+     */
+    public boolean dispatchControl(long testId, Runnable handler) {
+        val dispatched = new CountDownLatch(1);
+        //not counted with mqtt.dispatch.queue-max-bytes, it must not be rejected. If the control message is rejected instead, nobody waits for it
+        queues.get(Math.floorMod(Long.hashCode(testId), queues.size())).add(dispatched::countDown);
+        return dispatchControl(() -> {
+            try {
+                dispatched.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the messages of test " + testId, e);
+            }
+            handler.run();
+        });
+    }
+
+    /**
+     * @return number of control messages that have been queued so far, to wait for them with {@link #awaitControlMessages(long, long)}
+     */
+    public long getQueuedControlMessages() {
+        synchronized (controlLock) {
+            return controlQueued;
+        }
+    }
+
+    /**
+     * Waits until the control messages that had been queued when a message arrived are handled, e.g. the testStart of a test whose times arrive right after it.
+     * Only waits for control messages queued before, those queued later may wait for the worker calling this.
+     * @param queued result of {@link #getQueuedControlMessages()} when the message arrived
+     * @return false if they have not been handled within the timeout
+     */
+    public boolean awaitControlMessages(long queued, long timeoutMs) {
+        val deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (controlLock) {
+            while (controlHandled < queued) {
+                val remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    controlLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void workOnControlMessages() {
+        work(controlQueue, () -> {
+            synchronized (controlLock) {
+                controlHandled++;
+                controlLock.notifyAll();
+            }
+        });
+    }
+
+    private void work(BlockingQueue<Runnable> queue) {
+        work(queue, () -> {
+        });
+    }
+
+    /**
+     * @param handled called after every message, also if handling it failed
+     */
+    private void work(BlockingQueue<Runnable> queue, Runnable handled) {
+        //keep going after stop() until the queue is drained
+        while (running || !queue.isEmpty()) {
+            Runnable handler;
+            try {
+                handler = queue.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.warn("MQTT worker interrupted", e);
+                return;
+            }
+            if (handler == null) {
+                continue;
+            }
+            try {
+                handler.run();
+            } catch (RuntimeException e) {
+                log.error("Handling message failed", e);
+            } finally {
+                handled.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.mqtt;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The one connection to the broker that all controllers subscribe through.
+ * Listeners are called on the client's thread and must not block, hand the message to the MessageDispatcher instead.
+ * In durable mode, the session outlives the connection and messages are only confirmed to the broker when acknowledge is called,
+ * so the broker keeps everything that has not been handled and delivers it again after a reconnect or restart.
+ * Messages that could not be handled are released instead, the connection is then re-established so the broker delivers them again.
+ */
+@Component
+@Log4j2
+public class MqttConnection {
+    private final MqttAsyncClient client;
+    private final MqttConnectOptions options = new MqttConnectOptions();
+    private final boolean durable;
+    private final Map<String, IMqttMessageListener> subscriptions = new ConcurrentHashMap<>();
+    private final Map<String, Counter> received = new ConcurrentHashMap<>();
+    private final MeterRegistry meterRegistry;
+    private final long redeliveryDelayMs;
+    private final Counter released;
+    //received on the current connection and neither acknowledged nor released. Ids are only unique per connection,
+    //acknowledging a message of a previous one might confirm another message
+    private final Set<MqttMessage> unacknowledged = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean redeliveryScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "mqtt-redelivery"));
+    private volatile boolean closed = false;
+
+    /**
+     * @param clientId identifies the session at the broker in durable mode, has to be the same after a restart and different for every instance
+     * @param durable whether to use a persistent session and acknowledge messages only after they have been handled
+     * @param redeliveryDelayMs time between releasing a message and reconnecting, so whatever failed to handle it can recover in the meantime
+     */
+    public MqttConnection(@Value("${mqtt.host}") String mqtt_host, @Value("${mqtt.client-id}") String clientId, @Value("${mqtt.durable}") boolean durable,
+                          @Value("${mqtt.redelivery-delay-ms}") long redeliveryDelayMs, MeterRegistry meterRegistry) throws MqttException {
+        this.durable = durable;
+        this.meterRegistry = meterRegistry;
+        this.redeliveryDelayMs = redeliveryDelayMs;
+        this.released = meterRegistry.counter("mqtt.messages.released");
+        //unacknowledged messages are kept by the broker, so there is nothing the client would have to persist
+        client = new MqttAsyncClient(mqtt_host, durable ? clientId : UUID.randomUUID().toString(), new MemoryPersistence());
+        client.setManualAcks(durable);
+        client.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                //clean sessions lose their subscriptions, and the broker might have lost a durable one
+                if (reconnect) {
+                    subscriptions.forEach(MqttConnection.this::sendSubscription);
+                }
+            }
+
+            @Override
+            public void connectionLost(Throwable cause) {
+                log.warn("Lost connection to mqtt broker", cause);
+                //delivered again after reconnecting
+                unacknowledged.clear();
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                //a durable session delivers queued messages right after connecting, before the subscription listeners are registered again
+                val listener = subscriptions.get(topic);
+                if (listener != null) {
+                    received.get(topic).increment();
+                    if (durable) {
+                        unacknowledged.add(message);
+                    }
+                    listener.messageArrived(topic, message);
+                } else {
+                    log.warn("Received message on topic " + topic + " without subscription");
+                }
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+                //nothing is published
+            }
+        });
+        options.setAutomaticReconnect(true);
+        options.setCleanSession(!durable);
+        options.setConnectionTimeout(10);
+    }
+
+    /**
+     * Connects once all controllers have subscribed, so no message arrives before its listener is known.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void connect() throws MqttException {
+        client.connect(options).waitForCompletion();
+        for (val subscription : subscriptions.entrySet()) {
+            client.subscribe(subscription.getKey(), 1, subscription.getValue()).waitForCompletion();
+        }
+    }
+
+    public void disconnect() throws MqttException {
+        client.disconnect().waitForCompletion();
+        //delivered again after reconnecting
+        unacknowledged.clear();
+    }
+
+    /**
+     * Subscribes to a topic with QoS 1, also after the connection has been re-established.
+     * @param topic exact topic
+     * @param listener called on the client's thread for every message
+     */
+    public void subscribe(String topic, IMqttMessageListener listener) throws MqttException {
+        received.put(topic, meterRegistry.counter("mqtt.messages.received", "topic", topic));
+        subscriptions.put(topic, listener);
+        if (client.isConnected()) {
+            client.subscribe(topic, 1, listener).waitForCompletion();
+        }
+    }
+
+    /**
+     * Confirms to the broker that a message has been handled. Does nothing if the connection is not durable, then messages are confirmed on receipt,
+     * or if the message has been received before the last reconnect, then the broker has delivered it again.
+     */
+    public void acknowledge(MqttMessage message) {
+        if (!durable || !unacknowledged.remove(message)) {
+            return;
+        }
+        try {
+            client.messageArrivedComplete(message.getId(), message.getQos());
+        } catch (MqttException e) {
+            //the broker delivers the message again after reconnecting
+            log.warn("Could not acknowledge message " + message.getId(), e);
+        }
+    }
+
+    /**
+     * Hands a message that could not be handled, e.g. because the storage is overloaded or the database unavailable, back to the broker.
+     * The broker only delivers unconfirmed messages again after a reconnect, so the connection is re-established after mqtt.redelivery-delay-ms.
+     * Until then, the broker does not send more messages than its in-flight window allows, which slows down the publishers.
+     * Without a durable session, messages have been confirmed on receipt and are lost.
+     */
+    public void release(MqttMessage message) {
+        if (!durable) {
+            log.error("Dropping message " + message.getId() + ", it cannot be delivered again without a durable session");
+            return;
+        }
+        if (unacknowledged.remove(message)) {
+            released.increment();
+            scheduleRedelivery();
+        }
+    }
+
+    private void scheduleRedelivery() {
+        if (closed || !redeliveryScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reconnector.schedule(this::redeliver, redeliveryDelayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //closing, the broker delivers the messages after the next start
+        }
+    }
+
+    private void redeliver() {
+        redeliveryScheduled.set(false);
+        log.info("Reconnecting to mqtt broker, so it delivers released messages again");
+        try {
+            if (client.isConnected()) {
+                disconnect();
+            }
+            connect();
+        } catch (MqttException e) {
+            log.warn("Could not reconnect to mqtt broker, trying again", e);
+            scheduleRedelivery();
+        }
+    }
+
+    private void sendSubscription(String topic, IMqttMessageListener listener) {
+        //must not wait here, this runs on the client's thread
+        try {
+            client.subscribe(topic, 1, listener);
+        } catch (MqttException e) {
+            log.error("Could not subscribe to " + topic + " after reconnect", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        closed = true;
+        reconnector.shutdownNow();
+        try {
+            if (client.isConnected()) {
+                disconnect();
+            }
+            client.close();
+        } catch (MqttException e) {
+            log.warn("Could not disconnect from mqtt broker", e);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import de.hpi.tdgt.ingest.IngestEntry;
+import de.hpi.tdgt.test.EntryView;
+import de.hpi.tdgt.test.StoredEntry;
+import de.hpi.tdgt.test.TestEvent;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compresses the entries written by the ingest pipeline and decompresses them when they are read.
+ * The first entries of a test that arrive in a batch become the dictionary for its times or assertions,
+ * which is stored in compression_dictionary. Entries that have been written as text are returned as they are.
+ */
+@Component
+public class EntryCompression {
+    private static final RowMapper<EntryDictionary> DICTIONARY = (resultSet, row) -> new EntryDictionary(resultSet.getInt(1), resultSet.getBytes(2));
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate ownTransaction;
+    private final boolean enabled;
+    private final int level;
+    private final int dictionarySize;
+    private final int samples;
+    //dictionaries that new entries of running tests are packed with
+    private final Map<Key, EntryDictionary> current = new ConcurrentHashMap<>();
+    //dictionaries that have been used recently, by id
+    private final Map<Integer, EntryDictionary> cached;
+
+    public EntryCompression(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                            @Value("${entry-compression.enabled:true}") boolean enabled,
+                            @Value("${entry-compression.level:6}") int level,
+                            @Value("${entry-compression.dictionary-size:16384}") int dictionarySize,
+                            @Value("${entry-compression.samples:8}") int samples,
+                            @Value("${entry-compression.cached-dictionaries:256}") int cachedDictionaries) {
+        this.jdbcTemplate = jdbcTemplate;
+        //dictionaries have to survive a rollback of the batch that created them, other writers might already use them
+        this.ownTransaction = new TransactionTemplate(transactionManager);
+        this.ownTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.enabled = enabled;
+        this.level = level;
+        this.dictionarySize = dictionarySize;
+        this.samples = samples;
+        this.cached = new LinkedHashMap<Integer, EntryDictionary>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, EntryDictionary> eldest) {
+                return size() > cachedDictionaries;
+            }
+        };
+    }
+
+    /**
+     * @return the full entries packed, in the order of entries, or null if compression is disabled
+     */
+    public byte[][] pack(List<IngestEntry> entries) {
+        if (!enabled) {
+            return null;
+        }
+        val packed = new byte[entries.size()][];
+        for (int i = 0; i < entries.size(); i++) {
+            val entry = entries.get(i);
+            val key = new Key(entry.getTestId(), entry.getKind());
+            var dictionary = current.get(key);
+            if (dictionary == null) {
+                //not inside computeIfAbsent, obtain runs its own transaction. Concurrent writers get the same stored dictionary anyway
+                val obtained = obtain(key, samples(entries, i, key));
+                val previous = current.putIfAbsent(key, obtained);
+                dictionary = previous != null ? previous : obtained;
+            }
+            packed[i] = dictionary.pack(entry.getFullEntry(), level);
+        }
+        return packed;
+    }
+
+    /**
+     * @return stored entry with its full entry as text
+     */
+    public EntryView unpack(StoredEntry entry) {
+        return new Unpacked(entry.getId(), unpack(entry.getFullEntry(), entry.getPackedEntry()));
+    }
+
+    /**
+     * @param fullEntry text of an entry that has not been packed
+     * @param packedEntry packed entry, null if it has not been packed
+     */
+    public String unpack(String fullEntry, byte[] packedEntry) {
+        if (packedEntry == null) {
+            return fullEntry;
+        }
+        val id = EntryDictionary.idOf(packedEntry);
+        EntryDictionary dictionary;
+        synchronized (cached) {
+            dictionary = cached.get(id);
+        }
+        if (dictionary == null) {
+            dictionary = jdbcTemplate.queryForObject("select id, dictionary from compression_dictionary where id = ?", DICTIONARY, id);
+            synchronized (cached) {
+                cached.put(id, dictionary);
+            }
+        }
+        return dictionary.unpack(packedEntry);
+    }
+
+    /**
+     * Called once a test has ended, its dictionaries are only needed for reading afterwards.
+     */
+    @EventListener
+    public void testEnded(TestEvent event) {
+        current.keySet().removeIf(key -> key.getTestId() == event.getTestId());
+    }
+
+    private List<String> samples(List<IngestEntry> entries, int first, Key key) {
+        val samples = new ArrayList<String>();
+        for (int i = first; i < entries.size() && samples.size() < this.samples; i++) {
+            val entry = entries.get(i);
+            if (entry.getTestId() == key.getTestId() && entry.getKind() == key.getKind()) {
+                samples.add(entry.getFullEntry());
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * @return the dictionary of the test, which is created from the samples if there is none yet, e.g. by another instance or before a restart
+     */
+    private EntryDictionary obtain(Key key, List<String> samples) {
+        val table = key.getKind() == IngestEntry.Kind.TIME ? EntrySearch.TIMES : EntrySearch.ASSERTIONS;
+        EntryDictionary dictionary = ownTransaction.execute(status -> {
+            jdbcTemplate.update("insert into compression_dictionary (test_created_at, entry_table, dictionary) values (?, ?, ?) on conflict do nothing",
+                    key.getTestId(), table, EntryDictionary.train(samples, dictionarySize));
+            return jdbcTemplate.queryForObject("select id, dictionary from compression_dictionary where test_created_at = ? and entry_table = ?",
+                    DICTIONARY, key.getTestId(), table);
+        });
+        synchronized (cached) {
+            cached.put(dictionary.getId(), dictionary);
+        }
+        return dictionary;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class Key {
+        private final long testId;
+        private final IngestEntry.Kind kind;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Unpacked implements EntryView {
+        private final long id;
+        private final String fullEntry;
+    }
+}
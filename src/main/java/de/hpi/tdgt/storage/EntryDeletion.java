@@ -0,0 +1,100 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Deletes the rows of a test without loading them. Partitions of the test are dropped, other rows are deleted in chunks
+ * with a pause in between, so the deletion of a large test does not hold locks or I/O that ingest needs.
+ */
+@Component
+public class EntryDeletion {
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+    private final EntryPartitions partitions;
+    private final int chunkSize;
+    private final long chunkPauseMs;
+    private final MeterRegistry meterRegistry;
+
+    public EntryDeletion(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, EntryPartitions partitions,
+                         @Value("${retention.chunk-size}") int chunkSize, @Value("${retention.chunk-pause-ms}") long chunkPauseMs, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.partitions = partitions;
+        this.chunkSize = chunkSize;
+        this.chunkPauseMs = chunkPauseMs;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Deletes all times, assertions and measurements of a test.
+     */
+    public void deleteEntries(long testId) throws InterruptedException {
+        //takes no time, the chunks afterwards only find rows that are not in a partition of their own
+        partitions.drop(testId);
+        deleteInChunks(EntrySearch.TIMES, "test_created_at", testId);
+        deleteInChunks(EntrySearch.ASSERTIONS, "test_created_at", testId);
+        deleteInChunks("time_measurement", "test_id", testId);
+    }
+
+    /**
+     * Deletes the times, assertions and measurements of a test with ids below the given ones, e.g. the rows that have been archived.
+     * Rows with greater ids are kept, partitions are not dropped.
+     */
+    public void deleteEntries(long testId, long timesBefore, long assertionsBefore, long measurementsBefore) throws InterruptedException {
+        deleteInChunks(EntrySearch.TIMES, "test_created_at", testId, timesBefore);
+        deleteInChunks(EntrySearch.ASSERTIONS, "test_created_at", testId, assertionsBefore);
+        deleteInChunks(IdWatermark.MEASUREMENTS, "test_id", testId, measurementsBefore);
+    }
+
+    public void deleteRollups(long testId) throws InterruptedException {
+        deleteInChunks("time_rollup", "test_id", testId);
+    }
+
+    /**
+     * Every chunk is deleted in its own short transaction. Selecting the ids first uses the index on the test column
+     * and limits the number of rows that are locked at once.
+     */
+    private void deleteInChunks(String table, String testColumn, long testId) throws InterruptedException {
+        deleteInChunks(table, testColumn, testId, Long.MAX_VALUE);
+    }
+
+    private void deleteInChunks(String table, String testColumn, long testId, long before) throws InterruptedException {
+        val counter = meterRegistry.counter("retention.rows.deleted", "table", table);
+        int deleted;
+        do {
+            deleted = transaction.execute(status -> jdbcTemplate.update("delete from " + table + " where id in (select id from " + table + " where " + testColumn + " = ? and id < ? limit ?)",
+                    testId, before, chunkSize));
+            counter.increment(deleted);
+            if (deleted > 0) {
+                Thread.sleep(chunkPauseMs);
+            }
+        } while (deleted == chunkSize);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import lombok.Getter;
+import lombok.val;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Preset dictionary for DEFLATE, shared by the entries of a test. Entries of one test repeat the same keys, urls and stories,
+ * so once they are known from the dictionary, even a short entry compresses well.
+ * A packed entry starts with a format byte and the id of its dictionary, so it can be unpacked without knowing its test.
+ */
+@Getter
+public class EntryDictionary {
+    public static final byte FORMAT_DEFLATE = 1;
+    //DEFLATE cannot refer further back than its window
+    public static final int MAX_SIZE = 32 * 1024;
+    private static final int HEADER_SIZE = 5;
+    //creating them allocates native memory, so every thread keeps its own
+    private static final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> buffer = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private final int id;
+    private final byte[] bytes;
+
+    public EntryDictionary(int id, byte[] bytes) {
+        this.id = id;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Builds a dictionary from sample entries. DEFLATE refers to the end of the dictionary most cheaply,
+     * so the first sample, which is the most likely to be representative, ends up there.
+     * @param samples entries of the test, duplicates are ignored
+     * @param size maximum size in bytes, at most MAX_SIZE
+     */
+    public static byte[] train(List<String> samples, int size) {
+        val out = new ByteArrayOutputStream();
+        val distinct = new ArrayList<>(new LinkedHashSet<>(samples));
+        for (int i = distinct.size() - 1; i >= 0; i--) {
+            val sample = distinct.get(i).getBytes(StandardCharsets.UTF_8);
+            out.write(sample, 0, sample.length);
+        }
+        val trained = out.toByteArray();
+        val length = Math.min(trained.length, Math.min(size, MAX_SIZE));
+        val dictionary = new byte[length];
+        System.arraycopy(trained, trained.length - length, dictionary, 0, length);
+        return dictionary;
+    }
+
+    /**
+     * @param level DEFLATE compression level from 1 (fastest) to 9 (smallest)
+     */
+    public byte[] pack(String entry, int level) {
+        val input = entry.getBytes(StandardCharsets.UTF_8);
+        val deflater = EntryDictionary.deflater.get();
+        val buffer = EntryDictionary.buffer.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setDictionary(bytes);
+        deflater.setInput(input);
+        deflater.finish();
+        val out = new ByteArrayOutputStream(HEADER_SIZE + input.length / 4);
+        out.write(FORMAT_DEFLATE);
+        out.write(id >>> 24);
+        out.write(id >>> 16);
+        out.write(id >>> 8);
+        out.write(id);
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param packed entry packed with this dictionary
+     * @throws IllegalArgumentException if the entry has not been packed with this dictionary or is corrupt
+     */
+    public String unpack(byte[] packed) {
+        if (idOf(packed) != id) {
+            throw new IllegalArgumentException("Entry has been packed with dictionary " + idOf(packed) + ", not " + id);
+        }
+        val inflater = EntryDictionary.inflater.get();
+        val buffer = EntryDictionary.buffer.get();
+        inflater.reset();
+        inflater.setDictionary(bytes);
+        inflater.setInput(packed, HEADER_SIZE, packed.length - HEADER_SIZE);
+        val out = new ByteArrayOutputStream(packed.length * 4);
+        try {
+            while (!inflater.finished()) {
+                val read = inflater.inflate(buffer);
+                if (read == 0 && inflater.needsInput()) {
+                    throw new IllegalArgumentException("Packed entry is truncated");
+                }
+                out.write(buffer, 0, read);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Packed entry is corrupt", e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return id of the dictionary the entry has been packed with
+     * @throws IllegalArgumentException if the entry is not in a known format
+     */
+    public static int idOf(byte[] packed) {
+        if (packed.length < HEADER_SIZE || packed[0] != FORMAT_DEFLATE) {
+            throw new IllegalArgumentException("Unknown format of packed entry");
+        }
+        return (packed[1] & 0xff) << 24 | (packed[2] & 0xff) << 16 | (packed[3] & 0xff) << 8 | (packed[4] & 0xff);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Optionally stores the entries and measurements of every test in their own partitions (PostgreSQL 11 or newer),
+ * so queries for a test only touch its partition and a deleted test is dropped as a whole.
+ * The tables are converted on the first start with storage.partitioning.enabled; rows stored before stay in a partition
+ * named like the table with the suffix _legacy, which holds the tests that had rows at that time.
+ * There is no default partition, so the partitions of a test have to exist before its rows are written.
+ */
+@Component
+@Log4j2
+public class EntryPartitions {
+    //partitioned tables and the column referencing the test
+    private static final Map<String, String> TABLES = new LinkedHashMap<>();
+    static {
+        TABLES.put(EntrySearch.TIMES, "test_created_at");
+        TABLES.put(EntrySearch.ASSERTIONS, "test_created_at");
+        TABLES.put("time_measurement", "test_id");
+    }
+    private static final Pattern BOUND_VALUE = Pattern.compile("-?\\d+");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+    private final TransactionTemplate ownTransaction;
+    private final SchemaMigration schemaMigration;
+    private final boolean requested;
+    private volatile boolean enabled = false;
+    //tests whose rows have a partition, either their own or the legacy one
+    private final Set<Long> partitioned = ConcurrentHashMap.newKeySet();
+
+    public EntryPartitions(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, SchemaMigration schemaMigration,
+                           @Value("${storage.partitioning.enabled}") boolean requested) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transaction = new TransactionTemplate(transactionManager);
+        //partitions have to be visible to every writer, even if the batch that needed them is rolled back
+        this.ownTransaction = new TransactionTemplate(transactionManager);
+        this.ownTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.schemaMigration = schemaMigration;
+        this.requested = requested;
+    }
+
+    @PostConstruct
+    public void migrate() {
+        val partitionedTables = jdbcTemplate.queryForObject("select count(*) from pg_class where relkind = 'p' and oid in (" +
+                TABLES.keySet().stream().map(table -> "to_regclass('" + table + "')").collect(Collectors.joining(", ")) + ")", Long.class);
+        if (!requested) {
+            if (partitionedTables > 0) {
+                //converting them back would mean copying every row, the partitions are kept up to date instead
+                log.warn("Entry tables are partitioned, partitions are created although storage.partitioning.enabled is false");
+            } else {
+                return;
+            }
+        }
+        if (partitionedTables < TABLES.size()) {
+            if (jdbcTemplate.queryForObject("select current_setting('server_version_num')::int", Integer.class) < 110000) {
+                log.warn("Entry tables are not partitioned, PostgreSQL 11 or newer is required");
+                return;
+            }
+            transaction.execute(status -> {
+                TABLES.forEach(this::convert);
+                return null;
+            });
+        }
+        for (val table : TABLES.keySet()) {
+            val bound = jdbcTemplate.queryForList("select pg_get_expr(relpartbound, oid) from pg_class where oid = to_regclass(?)", String.class, table + "_legacy");
+            if (!bound.isEmpty()) {
+                val matcher = BOUND_VALUE.matcher(bound.get(0));
+                while (matcher.find()) {
+                    partitioned.add(Long.parseLong(matcher.group()));
+                }
+            }
+        }
+        enabled = true;
+    }
+
+    /**
+     * @return true if rows of tests are stored in their own partitions
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Creates the partitions of the tests that do not have them yet. Takes a short exclusive lock on the tables
+     * for every new test, which makes concurrent writers wait.
+     */
+    public void create(Collection<Long> testIds) {
+        if (!enabled) {
+            return;
+        }
+        for (val testId : testIds) {
+            if (!partitioned.contains(testId)) {
+                ownTransaction.execute(status -> {
+                    for (val table : TABLES.keySet()) {
+                        val partition = partitionName(table, testId);
+                        jdbcTemplate.execute("create table if not exists " + partition + " partition of " + table + " for values in (" + testId + ")");
+                        if (!table.equals("time_measurement")) {
+                            schemaMigration.createPayloadTrigger(table, partition);
+                        }
+                    }
+                    return null;
+                });
+                partitioned.add(testId);
+            }
+        }
+    }
+
+    /**
+     * Drops the partitions of a test together with its rows. Rows in the legacy partition are not affected.
+     */
+    public void drop(long testId) {
+        if (!enabled) {
+            return;
+        }
+        transaction.execute(status -> {
+            for (val table : TABLES.keySet()) {
+                jdbcTemplate.execute("drop table if exists " + partitionName(table, testId));
+            }
+            return null;
+        });
+        partitioned.remove(testId);
+    }
+
+    private static String partitionName(String table, long testId) {
+        return table + "_" + (testId < 0 ? "m" + -testId : Long.toString(testId));
+    }
+
+    /**
+     * Replaces a table by a partitioned one with the same columns, indexes and foreign keys. The existing table becomes the legacy partition;
+     * attaching it checks its rows once, its indexes are reused.
+     */
+    private void convert(String table, String testColumn) {
+        if (jdbcTemplate.queryForObject("select relkind = 'p' from pg_class where oid = ?::regclass", Boolean.class, table)) {
+            return;
+        }
+        val legacy = table + "_legacy";
+        val primaryKey = jdbcTemplate.queryForObject("select conindid::regclass::text from pg_constraint where conrelid = ?::regclass and contype = 'p'", String.class, table);
+        val indexes = new LinkedHashMap<String, String>();
+        jdbcTemplate.query("select indexrelid::regclass::text, pg_get_indexdef(indexrelid) from pg_index where indrelid = ?::regclass", resultSet -> {
+            indexes.put(resultSet.getString(1), resultSet.getString(2));
+        }, table);
+        val foreignKeys = new LinkedHashMap<String, String>();
+        jdbcTemplate.query("select quote_ident(conname), pg_get_constraintdef(oid) from pg_constraint where conrelid = ?::regclass and contype = 'f'", resultSet -> {
+            foreignKeys.put(resultSet.getString(1), resultSet.getString(2));
+        }, table);
+        val testIds = jdbcTemplate.queryForList("select distinct " + testColumn + " from " + table, Long.class);
+
+        jdbcTemplate.execute("alter table " + table + " rename to " + legacy);
+        for (val index : indexes.keySet()) {
+            jdbcTemplate.execute("alter index " + index + " rename to " + index + "_legacy");
+        }
+        //added again for all partitions
+        for (val foreignKey : foreignKeys.keySet()) {
+            jdbcTemplate.execute("alter table " + legacy + " drop constraint " + foreignKey);
+        }
+        jdbcTemplate.execute("create table " + table + " (like " + legacy + " including defaults including storage) partition by list (" + testColumn + ")");
+        //unique constraints of partitioned tables have to contain the partition key
+        jdbcTemplate.execute("alter table " + table + " add primary key (" + testColumn + ", id)");
+        if (testIds.isEmpty()) {
+            jdbcTemplate.execute("drop table " + legacy);
+        } else {
+            jdbcTemplate.execute("alter table " + table + " attach partition " + legacy + " for values in (" +
+                    testIds.stream().map(String::valueOf).collect(Collectors.joining(", ")) + ")");
+        }
+        for (val index : indexes.entrySet()) {
+            if (!index.getKey().equals(primaryKey)) {
+                jdbcTemplate.execute(index.getValue());
+            }
+        }
+        for (val foreignKey : foreignKeys.entrySet()) {
+            jdbcTemplate.execute("alter table " + table + " add constraint " + foreignKey.getKey() + " " + foreignKey.getValue());
+        }
+        log.info("Partitioned " + table + ", rows of " + testIds.size() + " tests remain in " + legacy);
+    }
+}
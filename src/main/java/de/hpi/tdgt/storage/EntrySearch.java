@@ -0,0 +1,114 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import de.hpi.tdgt.test.EntryView;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.val;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads entries filtered by their payload. The filter is evaluated by Postgres, so only matching entries are transferred.
+ * Supports the same parameters as the queries of EntryRepository.
+ */
+@Component
+public class EntrySearch {
+    public static final String TIMES = "reported_time";
+    public static final String ASSERTIONS = "reported_assertion";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final RowMapper<EntryView> entry;
+
+    public EntrySearch(JdbcTemplate jdbcTemplate, EntryCompression compression) {
+        //own template, so results are read through a cursor
+        this.jdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.jdbcTemplate.setFetchSize(500);
+        this.entry = (resultSet, row) -> new Entry(resultSet.getLong(1), compression.unpack(resultSet.getString(2), resultSet.getBytes(3)));
+    }
+
+    /**
+     * @param table TIMES or ASSERTIONS
+     * @param testId test the entries belong to
+     * @param after only entries with a greater id are returned
+     * @param before only entries with a lower id are returned, see IdWatermark
+     * @param from if not null, only entries with creationTime >= from are returned
+     * @param to if not null, only entries with creationTime <= to are returned
+     * @param filter condition on the payload
+     * @param limit maximum number of entries, or null for all
+     * @return entries ordered by id
+     */
+    public List<EntryView> find(String table, long testId, long after, long before, Long from, Long to, PayloadFilter filter, Integer limit) {
+        val args = new ArrayList<Object>();
+        val sql = query(table, testId, after, before, from, to, filter, args);
+        if (limit != null) {
+            sql.append(" limit ?");
+            args.add(limit);
+        }
+        return jdbcTemplate.query(sql.toString(), args.toArray(), entry);
+    }
+
+    /**
+     * Like find without limit, but passes the entries to the consumer while they are read. Has to be called inside a transaction.
+     */
+    public void forEach(String table, long testId, long after, long before, Long from, Long to, PayloadFilter filter, Consumer<EntryView> consumer) {
+        val args = new ArrayList<Object>();
+        val sql = query(table, testId, after, before, from, to, filter, args);
+        jdbcTemplate.query(sql.toString(), args.toArray(), resultSet -> {
+            consumer.accept(entry.mapRow(resultSet, 0));
+        });
+    }
+
+    private static StringBuilder query(String table, long testId, long after, long before, Long from, Long to, PayloadFilter filter, List<Object> args) {
+        if (!TIMES.equals(table) && !ASSERTIONS.equals(table)) {
+            throw new IllegalArgumentException("Unknown entry table " + table);
+        }
+        val sql = new StringBuilder("select id, full_entry, packed_entry from ").append(table).append(" where test_created_at = ? and id > ? and id < ?");
+        args.add(testId);
+        args.add(after);
+        args.add(before);
+        if (from != null) {
+            sql.append(" and creation_time >= ?");
+            args.add(from);
+        }
+        if (to != null) {
+            sql.append(" and creation_time <= ?");
+            args.add(to);
+        }
+        filter.appendTo(sql, args);
+        sql.append(" order by id");
+        return sql;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Entry implements EntryView {
+        private final long id;
+        private final String fullEntry;
+    }
+}
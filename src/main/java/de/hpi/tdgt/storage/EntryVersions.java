@@ -0,0 +1,62 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import lombok.val;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the changes to the entries of every test, so clients polling a test can be answered with 304 Not Modified
+ * without reading the entry tables. Versions are only kept in memory; the epoch changes with every start,
+ * so an ETag handed out before a restart never matches again.
+ */
+@Component
+public class EntryVersions {
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final Map<Long, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    /**
+     * @return quoted entity tag that changes whenever entries of the test have been written or deleted
+     */
+    public String getETag(long testId) {
+        val version = versions.get(testId);
+        return toETag(version != null ? version.get() : 0);
+    }
+
+    /**
+     * @return quoted entity tag for a version counted elsewhere, valid until the next restart
+     */
+    public String toETag(long version) {
+        return "\"" + epoch + "-" + version + "\"";
+    }
+
+    /**
+     * Called once a transaction that changed entries of the test has been committed.
+     */
+    public void changed(long testId) {
+        versions.computeIfAbsent(testId, id -> new AtomicLong()).incrementAndGet();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import de.hpi.tdgt.test.EntryView;
+import de.hpi.tdgt.test.Test;
+import de.hpi.tdgt.test.TestEvent;
+import de.hpi.tdgt.test.TestRepository;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the recent entries of running tests in memory, so polling them does not have to read the entry tables.
+ * EntryWriter adds entries once they have been committed. For every test, the tier knows the id after which it holds all entries
+ * of the test; reads starting before that id are left to the database. The entries of all tests together are limited to
+ * hot-tier.max-bytes, the oldest entries of a test are evicted first. Entries must not be written except through EntryWriter.
+ */
+@Component
+public class HotTier {
+    //estimated size of an entry besides its text, which compact strings store with one byte per character for Latin-1 text
+    private static final int ENTRY_OVERHEAD = 96;
+    private final TestRepository repository;
+    private final JdbcTemplate jdbcTemplate;
+    private final IdWatermark watermark;
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final Map<Key, Entries> entries = new ConcurrentHashMap<>();
+    private final Map<Long, Test> tests = new ConcurrentHashMap<>();
+
+    public HotTier(TestRepository repository, JdbcTemplate jdbcTemplate, IdWatermark watermark, @Value("${hot-tier.max-bytes}") long maxBytes) {
+        this.repository = repository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.watermark = watermark;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Starts keeping entries of a running test, does nothing if they are kept already.
+     */
+    public void track(long testId) {
+        if (tests.containsKey(testId)) {
+            return;
+        }
+        val test = repository.findWithoutEntriesById(testId).orElse(null);
+        if (test == null) {
+            return;
+        }
+        for (val table : new String[]{EntrySearch.TIMES, EntrySearch.ASSERTIONS}) {
+            val key = new Key(table, testId);
+            val tracked = new Entries();
+            if (entries.putIfAbsent(key, tracked) != null) {
+                continue;
+            }
+            //entries committed from now on are added, everything committed before has a lower id than the current maximum
+            tracked.completeAfter = jdbcTemplate.queryForObject("select coalesce(max(id), 0) from " + table + " where test_created_at = ?", Long.class, testId);
+        }
+        tests.put(testId, test);
+    }
+
+    /**
+     * Called once an entry has been committed. Ignored if the test is not tracked.
+     */
+    public synchronized void added(String table, long testId, long id, Long creationTime, String fullEntry) {
+        val tracked = entries.get(new Key(table, testId));
+        if (tracked == null) {
+            return;
+        }
+        val size = fullEntry.length() + ENTRY_OVERHEAD;
+        if (tracked.entries.put(id, new Entry(id, creationTime, fullEntry)) == null) {
+            bytes.addAndGet(size);
+        }
+        //the tier only helps if it keeps the entries of the tests that are written to
+        if (bytes.get() > maxBytes) {
+            evictOldest(tracked);
+            for (val other : entries.values()) {
+                if (bytes.get() <= maxBytes) {
+                    break;
+                }
+                evictOldest(other);
+            }
+        }
+    }
+
+    /**
+     * @return the test, if it is tracked
+     */
+    public Test getTest(long testId) {
+        return tests.get(testId);
+    }
+
+    /**
+     * Same conditions as the queries of EntryRepository. Entries are only returned below the lowest id of a batch that has not
+     * been committed yet, see IdWatermark.
+     * @param limit maximum number of entries, null for all
+     * @return entries of the test with id > after, ordered by id; null if the tier does not hold all of them
+     */
+    public synchronized List<EntryView> find(String table, long testId, long after, Long from, Long to, Integer limit) {
+        val tracked = entries.get(new Key(table, testId));
+        if (tracked == null || after < tracked.completeAfter) {
+            return null;
+        }
+        //no entry can be added or evicted while holding the lock, so the watermark stays valid until all entries have been read
+        val before = watermark.lowestPending(table, testId);
+        val found = new ArrayList<EntryView>();
+        if (after >= before) {
+            return found;
+        }
+        for (val entry : tracked.entries.subMap(after, false, before, false).values()) {
+            if (limit != null && found.size() >= limit) {
+                break;
+            }
+            if ((from != null || to != null) && (entry.creationTime == null
+                    || from != null && entry.creationTime < from || to != null && entry.creationTime > to)) {
+                continue;
+            }
+            found.add(entry);
+        }
+        return found;
+    }
+
+    /**
+     * Called once a test has ended. Its entries are committed already, so they are only dropped from memory.
+     */
+    @EventListener
+    public void testEnded(TestEvent event) {
+        evict(event.getTestId());
+    }
+
+    public synchronized void evict(long testId) {
+        tests.remove(testId);
+        for (val table : new String[]{EntrySearch.TIMES, EntrySearch.ASSERTIONS}) {
+            val tracked = entries.remove(new Key(table, testId));
+            if (tracked != null) {
+                bytes.addAndGet(-tracked.entries.values().stream().mapToLong(entry -> entry.fullEntry.length() + ENTRY_OVERHEAD).sum());
+            }
+        }
+    }
+
+    private void evictOldest(Entries tracked) {
+        while (bytes.get() > maxBytes) {
+            val oldest = tracked.entries.firstEntry();
+            if (oldest == null) {
+                return;
+            }
+            //reads starting before the evicted entry are left to the database from now on
+            tracked.completeAfter = Math.max(tracked.completeAfter, oldest.getKey());
+            tracked.entries.remove(oldest.getKey());
+            bytes.addAndGet(-(oldest.getValue().fullEntry.length() + ENTRY_OVERHEAD));
+        }
+    }
+
+    private static class Entries {
+        private final ConcurrentSkipListMap<Long, Entry> entries = new ConcurrentSkipListMap<>();
+        //the tier holds all entries with a greater id; nothing can be answered until the test has been looked up
+        private volatile long completeAfter = Long.MAX_VALUE;
+    }
+
+    @RequiredArgsConstructor
+    @Getter
+    private static class Entry implements EntryView {
+        private final long id;
+        private final Long creationTime;
+        private final String fullEntry;
+    }
+
+    @RequiredArgsConstructor
+    @EqualsAndHashCode
+    private static class Key {
+        private final String table;
+        private final long testId;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import de.hpi.tdgt.test.Sequences;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Ids are taken from the sequences in blocks and batches commit in any order, so an entry can become visible after entries with a greater id.
+ * Readers that page by id only return entries below the watermark, so a client that continues after the last returned id cannot skip
+ * an entry that is committed later. Covers the entries written by EntryWriter of this instance.
+ * EntryWriter takes ids while holding the lock of this object, so no reader computes a watermark between taking and registering them.
+ */
+@Component
+public class IdWatermark {
+    //measurements are registered like entries, so the archive can tell which of them have been committed
+    public static final String MEASUREMENTS = "time_measurement";
+
+    private final JdbcTemplate jdbcTemplate;
+    //lowest id of every batch that has taken ids but not completed yet, with the number of batches starting at it
+    private final Map<Key, TreeMap<Long, Integer>> pending = new HashMap<>();
+
+    public IdWatermark(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Called once a batch has taken ids for entries of the test.
+     * @param lowestId lowest id the batch uses for the test
+     */
+    public synchronized void begin(String table, long testId, long lowestId) {
+        pending.computeIfAbsent(new Key(table, testId), key -> new TreeMap<>()).merge(lowestId, 1, Integer::sum);
+    }
+
+    /**
+     * Called once the batch has been committed or rolled back, with the same arguments as begin.
+     */
+    public synchronized void end(String table, long testId, long lowestId) {
+        val key = new Key(table, testId);
+        val batches = pending.get(key);
+        if (batches == null) {
+            return;
+        }
+        batches.computeIfPresent(lowestId, (id, count) -> count > 1 ? count - 1 : null);
+        if (batches.isEmpty()) {
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * Sufficient for readers of entries that are visible already, e.g. in HotTier.
+     * @return lowest id of a batch of the test that has not completed yet, Long.MAX_VALUE if there is none
+     */
+    public synchronized long lowestPending(String table, long testId) {
+        val batches = pending.get(new Key(table, testId));
+        return batches == null ? Long.MAX_VALUE : batches.firstKey();
+    }
+
+    /**
+     * Has to be called before the query is started.
+     * @param table EntrySearch.TIMES, EntrySearch.ASSERTIONS or MEASUREMENTS
+     * @return entries of the test with a lower id can be returned without skipping entries that commit later
+     */
+    public long get(String table, long testId) {
+        //ids taken after this query are greater than the current value, their entries might commit before the reader's query starts
+        val taken = jdbcTemplate.queryForObject("select last_value from " + sequence(table), Long.class);
+        return Math.min(taken + 1, lowestPending(table, testId));
+    }
+
+    private static String sequence(String table) {
+        switch (table) {
+            case EntrySearch.TIMES:
+                return Sequences.REPORTED_TIME;
+            case EntrySearch.ASSERTIONS:
+                return Sequences.REPORTED_ASSERTION;
+            case MEASUREMENTS:
+                return Sequences.TIME_MEASUREMENT;
+            default:
+                throw new IllegalArgumentException("Unknown entry table " + table);
+        }
+    }
+
+    @RequiredArgsConstructor
+    @EqualsAndHashCode
+    private static class Key {
+        private final String table;
+        private final long testId;
+    }
+}
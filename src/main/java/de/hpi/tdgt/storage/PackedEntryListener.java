@@ -0,0 +1,52 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import de.hpi.tdgt.test.ReportedAssertion;
+import de.hpi.tdgt.test.ReportedTime;
+import lombok.val;
+
+import javax.persistence.PostLoad;
+
+/**
+ * Unpacks the full entry of times and assertions that are loaded through JPA, so their entities look the same
+ * no matter whether they have been written by the ingest pipeline or by JPA. Created by Hibernate through Spring,
+ * so the compression can be injected.
+ */
+public class PackedEntryListener {
+    private final EntryCompression compression;
+
+    public PackedEntryListener(EntryCompression compression) {
+        this.compression = compression;
+    }
+
+    @PostLoad
+    public void unpack(Object entity) {
+        if (entity instanceof ReportedTime) {
+            val time = (ReportedTime) entity;
+            time.setFullEntry(compression.unpack(time.getFullEntry(), time.getPackedEntry()));
+        } else if (entity instanceof ReportedAssertion) {
+            val assertion = (ReportedAssertion) entity;
+            assertion.setFullEntry(compression.unpack(assertion.getFullEntry(), assertion.getPackedEntry()));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.val;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Condition on the jsonb payload of entries. Times are nested as times -> url -> method -> story, assertions as actuals -> name.
+ * Given keys at the start of the path become a containment check, which can use the GIN index of the payload.
+ * Keys after a missing one are matched by walking the levels.
+ * The payload EntryWriter stores only contains these keys, see payload.
+ */
+public class PayloadFilter {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    //levels of keys below the roots that filters match
+    private static final Map<String, Integer> LEVELS = Map.of("times", 3, "actuals", 1);
+
+    private final String root;
+    private final List<String> keys;
+
+    private PayloadFilter(String root, String... keys) {
+        this.root = root;
+        this.keys = Arrays.asList(keys);
+    }
+
+    /**
+     * Matches times that contain a story with the given url, method and story name. Every parameter may be null.
+     */
+    public static PayloadFilter times(String url, String method, String story) {
+        return new PayloadFilter("times", url, method, story);
+    }
+
+    /**
+     * Matches assertions that contain an assertion with the given name, which may be null.
+     */
+    public static PayloadFilter assertions(String name) {
+        return new PayloadFilter("actuals", name);
+    }
+
+    public boolean isEmpty() {
+        return keys.stream().allMatch(key -> key == null);
+    }
+
+    /**
+     * Appends the condition as "and ..." to a where clause.
+     * @param sql query to append to
+     * @param args receives the parameters of the condition
+     */
+    public void appendTo(StringBuilder sql, List<Object> args) {
+        int prefix = 0;
+        while (prefix < keys.size() && keys.get(prefix) != null) {
+            prefix++;
+        }
+        int last = keys.size() - 1;
+        while (last >= 0 && keys.get(last) == null) {
+            last--;
+        }
+        if (prefix > 0) {
+            sql.append(" and payload @> cast(? as jsonb)");
+            args.add(containment(prefix));
+        }
+        if (last >= prefix) {
+            sql.append(" and exists(select 1 from ");
+            var parent = "payload->'" + root + "'";
+            for (int i = 0; i <= last; i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                //jsonb_each fails for anything but objects
+                sql.append("jsonb_each(case when jsonb_typeof(").append(parent).append(") = 'object' then ").append(parent).append(" end) l").append(i);
+                parent = "l" + i + ".value";
+            }
+            sql.append(" where true");
+            for (int i = 0; i <= last; i++) {
+                if (keys.get(i) != null) {
+                    sql.append(" and l").append(i).append(".key = ?");
+                    args.add(keys.get(i));
+                }
+            }
+            sql.append(")");
+        }
+    }
+
+    /**
+     * Evaluates the condition on an entry that is not in the database, with the same result as appendTo.
+     */
+    public boolean matches(String fullEntry) {
+        if (isEmpty()) {
+            return true;
+        }
+        JsonNode payload;
+        try {
+            payload = mapper.readTree(fullEntry);
+        } catch (IOException e) {
+            //invalid JSON has no payload
+            return false;
+        }
+        int prefix = 0;
+        while (prefix < keys.size() && keys.get(prefix) != null) {
+            prefix++;
+        }
+        return payload != null && matches(payload.get(root), 0, prefix);
+    }
+
+    /**
+     * Reduces an entry to what filters and summaries read from the payload, the entry itself is stored packed. Below the roots, only the keys
+     * of the levels filters match are kept, with objects as {} and anything else as null. Failures of assertions keep their numeric key
+     * for SummaryService. Filters match the reduced payload the same way as the whole entry.
+     * @return payload to store, or null if the entry is not a JSON object
+     */
+    public static String payload(String fullEntry) {
+        val payload = new StringWriter();
+        try (val parser = mapper.getFactory().createParser(fullEntry); val generator = mapper.getFactory().createGenerator(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                val field = parser.getCurrentName();
+                parser.nextToken();
+                val levels = LEVELS.get(field);
+                if (levels == null) {
+                    parser.skipChildren();
+                    continue;
+                }
+                generator.writeFieldName(field);
+                copyKeys(parser, generator, levels, field.equals("actuals"));
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            //invalid JSON has no payload, like try_jsonb
+            return null;
+        }
+        return payload.toString();
+    }
+
+    private static void copyKeys(JsonParser parser, JsonGenerator generator, int levels, boolean failures) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            //only objects can contain keys that are matched
+            parser.skipChildren();
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val field = parser.getCurrentName();
+            val token = parser.nextToken();
+            if (levels > 0) {
+                generator.writeFieldName(field);
+                copyKeys(parser, generator, levels - 1, failures);
+            } else if (failures && field.equals("key") && token.isNumeric()) {
+                generator.writeFieldName(field);
+                generator.copyCurrentEvent(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private boolean matches(JsonNode node, int level, int prefix) {
+        if (keys.subList(level, keys.size()).stream().allMatch(key -> key == null)) {
+            return true;
+        }
+        if (node == null || !node.isObject()) {
+            return false;
+        }
+        val fields = node.fields();
+        while (fields.hasNext()) {
+            val field = fields.next();
+            val key = keys.get(level);
+            //the containment check only matches objects
+            if ((key == null || key.equals(field.getKey())) && (level >= prefix || field.getValue().isObject()) && matches(field.getValue(), level + 1, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //e.g. {"times":{"url":{"method":{}}}}
+    private String containment(int levels) {
+        Object document = Collections.emptyMap();
+        for (int i = levels - 1; i >= 0; i--) {
+            document = Collections.singletonMap(keys.get(i), document);
+        }
+        try {
+            return mapper.writeValueAsString(Collections.singletonMap(root, document));
+        } catch (JsonProcessingException e) {
+            //maps of strings can always be written
+            throw new IllegalStateException(e);
+        }
+    }
+}
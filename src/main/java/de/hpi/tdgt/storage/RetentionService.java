@@ -0,0 +1,179 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import de.hpi.tdgt.test.PendingDeletion;
+import de.hpi.tdgt.test.PendingDeletionRepository;
+import de.hpi.tdgt.test.TestDeletedEvent;
+import de.hpi.tdgt.test.TestRegistry;
+import de.hpi.tdgt.test.TestRepository;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Deletes finished tests, on request or once they fall out of the retention policy (retention.ttl-ms, retention.max-finished-tests).
+ * A test is hidden as soon as it is marked in pending_deletion; its archive and rows are deleted afterwards on a background thread, see EntryDeletion.
+ */
+@Service
+@Log4j2
+public class RetentionService {
+    //entries might be written while the test is being deleted, the test row can only be deleted after them
+    private static final int ATTEMPTS = 3;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+    private final TestRepository repository;
+    private final PendingDeletionRepository pendingDeletions;
+    private final TestRegistry registry;
+    private final ApplicationEventPublisher events;
+    private final EntryVersions entryVersions;
+    private final EntryDeletion entryDeletion;
+    private final TestArchive archive;
+    private final long ttlMs;
+    private final int maxFinishedTests;
+    //tests that have been handed to the purger and are not deleted yet
+    private final Set<Long> purging = ConcurrentHashMap.newKeySet();
+    private final ExecutorService purger = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "test-purger"));
+
+    public RetentionService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, TestRepository repository, PendingDeletionRepository pendingDeletions,
+                            TestRegistry registry, ApplicationEventPublisher events, EntryVersions entryVersions, EntryDeletion entryDeletion, TestArchive archive,
+                            @Value("${retention.ttl-ms}") long ttlMs, @Value("${retention.max-finished-tests}") int maxFinishedTests) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.repository = repository;
+        this.pendingDeletions = pendingDeletions;
+        this.registry = registry;
+        this.events = events;
+        this.entryVersions = entryVersions;
+        this.entryDeletion = entryDeletion;
+        this.archive = archive;
+        this.ttlMs = ttlMs;
+        this.maxFinishedTests = maxFinishedTests;
+    }
+
+    @PreDestroy
+    public void stop() {
+        //a deletion that has been interrupted is resumed after the next start
+        purger.shutdownNow();
+    }
+
+    /**
+     * Hides a finished test right away and deletes it in the background.
+     * @return false if the test does not exist or is still running
+     */
+    public boolean delete(long testId) {
+        if (!Boolean.FALSE.equals(repository.findIsActiveById(testId).orElse(null))) {
+            return false;
+        }
+        pendingDeletions.save(new PendingDeletion(testId, System.currentTimeMillis()));
+        registry.deleted(testId);
+        events.publishEvent(new TestDeletedEvent(testId));
+        entryVersions.changed(testId);
+        schedule(testId);
+        return true;
+    }
+
+    /**
+     * Marks finished tests that fall out of the retention policy for deletion and resumes deletions that have been interrupted.
+     */
+    @Scheduled(fixedDelayString = "${retention.interval-ms}")
+    public void enforce() {
+        if (ttlMs > 0 || maxFinishedTests > 0) {
+            val finished = repository.findIdsByIsActive(false);
+            //ids are the creation times, newest first
+            finished.sort(Comparator.reverseOrder());
+            val createdBefore = System.currentTimeMillis() - ttlMs;
+            for (int i = 0; i < finished.size(); i++) {
+                val testId = finished.get(i);
+                if ((ttlMs > 0 && testId < createdBefore) || (maxFinishedTests > 0 && i >= maxFinishedTests)) {
+                    log.info("Deleting test " + testId + ", it is out of the retention policy");
+                    delete(testId);
+                }
+            }
+        }
+        for (val pending : pendingDeletions.findAll()) {
+            schedule(pending.getTestId());
+        }
+    }
+
+    private void schedule(long testId) {
+        if (purging.add(testId)) {
+            purger.execute(() -> {
+                try {
+                    purge(testId);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    //stays marked, the next run of enforce tries again
+                    log.error("Could not delete test " + testId + ": ", e);
+                } finally {
+                    purging.remove(testId);
+                }
+            });
+        }
+    }
+
+    private void purge(long testId) throws InterruptedException {
+        val started = System.currentTimeMillis();
+        archive.delete(testId);
+        for (int attempt = 1; ; attempt++) {
+            entryDeletion.deleteEntries(testId);
+            entryDeletion.deleteRollups(testId);
+            try {
+                transaction.execute(status -> {
+                    jdbcTemplate.update("delete from rollup_state where test_id = ?", testId);
+                    jdbcTemplate.update("delete from pending_rollup where test_id = ?", testId);
+                    jdbcTemplate.update("delete from story_summary where test_id = ?", testId);
+                    jdbcTemplate.update("delete from assertion_summary where test_id = ?", testId);
+                    jdbcTemplate.update("delete from story_summary_delta where test_id = ?", testId);
+                    jdbcTemplate.update("delete from assertion_summary_delta where test_id = ?", testId);
+                    jdbcTemplate.update("delete from summary_state where test_id = ?", testId);
+                    jdbcTemplate.update("delete from compression_dictionary where test_created_at = ?", testId);
+                    jdbcTemplate.update("delete from test where created_at = ?", testId);
+                    return jdbcTemplate.update("delete from pending_deletion where test_id = ?", testId);
+                });
+                break;
+            } catch (DataIntegrityViolationException e) {
+                if (attempt == ATTEMPTS) {
+                    throw e;
+                }
+                log.info("Entries of test " + testId + " have been written while deleting it, deleting them as well");
+            }
+        }
+        log.info("Deleted test " + testId + " in " + (System.currentTimeMillis() - started) + " ms");
+    }
+}
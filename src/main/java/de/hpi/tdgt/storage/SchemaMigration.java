@@ -0,0 +1,176 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import de.hpi.tdgt.test.Sequences;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Adapts data of existing databases to the current schema. Hibernate only adds tables, columns and indexes,
+ * everything else happens here. Every step checks whether it is needed, so the migration can run on every startup.
+ */
+@Component
+@Log4j2
+public class SchemaMigration {
+    //tables storing entries, their full_entry is copied to a jsonb column for querying
+    private static final List<String> PAYLOAD_TABLES = Arrays.asList("reported_time", "reported_assertion");
+    private static final long PAYLOAD_CHUNK_SIZE = 10000;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+
+    /**
+     * @param entityManagerFactory not used, but requiring it makes sure that Hibernate has updated the schema before
+     */
+    public SchemaMigration(EntityManagerFactory entityManagerFactory, JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transaction = new TransactionTemplate(transactionManager);
+    }
+
+    @PostConstruct
+    public void migrate() {
+        List<String> addedPayloads = transaction.execute(status -> {
+            alignSequence("reported_time", Sequences.REPORTED_TIME);
+            alignSequence("reported_assertion", Sequences.REPORTED_ASSERTION);
+            alignSequence("time_measurement", Sequences.TIME_MEASUREMENT);
+            if (jdbcTemplate.queryForObject("select exists(select 1 from pg_largeobject_metadata)", Boolean.class)) {
+                convertLargeObjects("reported_time", "id", "full_entry");
+                convertLargeObjects("reported_assertion", "id", "full_entry");
+                convertLargeObjects("test", "created_at", "test_config");
+            }
+            createPayloadFunctions();
+            List<String> added = new ArrayList<>();
+            for (val table : PAYLOAD_TABLES) {
+                //packed entries are compressed already, TOAST would only try again
+                jdbcTemplate.execute("alter table " + table + " alter column packed_entry set storage external");
+                if (addPayload(table)) {
+                    added.add(table);
+                }
+            }
+            return added;
+        });
+        for (val table : addedPayloads) {
+            fillPayload(table);
+        }
+    }
+
+    /**
+     * try_jsonb returns null instead of failing for invalid JSON. fill_payload is the trigger that keeps payload in sync with full_entry
+     * for writers that do not set it themselves, e.g. JPA.
+     */
+    private void createPayloadFunctions() {
+        jdbcTemplate.execute("create or replace function try_jsonb(value text) returns jsonb as $$ " +
+                "begin return value::jsonb; exception when others then return null; end; " +
+                "$$ language plpgsql immutable");
+        jdbcTemplate.execute("create or replace function fill_payload() returns trigger as $$ " +
+                "begin if tg_op = 'UPDATE' or new.payload is null then new.payload := try_jsonb(new.full_entry); end if; return new; end; " +
+                "$$ language plpgsql");
+    }
+
+    /**
+     * Adds the jsonb copy of full_entry, its GIN index and the trigger filling it.
+     * @return true if the column did not exist before, so existing rows have to be filled
+     */
+    private boolean addPayload(String table) {
+        val exists = jdbcTemplate.queryForObject("select exists(select 1 from information_schema.columns where table_schema = current_schema() and table_name = ? and column_name = 'payload')",
+                Boolean.class, table);
+        if (!exists) {
+            jdbcTemplate.execute("alter table " + table + " add column payload jsonb");
+        }
+        jdbcTemplate.execute("create index if not exists " + table + "_payload_idx on " + table + " using gin (payload)");
+        if (jdbcTemplate.queryForObject("select relkind = 'p' from pg_class where oid = ?::regclass", Boolean.class, table)) {
+            //row triggers cannot be created on partitioned tables before PostgreSQL 13, so every partition has its own
+            for (val partition : jdbcTemplate.queryForList("select i.inhrelid::regclass::text from pg_inherits i where i.inhparent = ?::regclass " +
+                    "and not exists (select 1 from pg_trigger t where t.tgrelid = i.inhrelid and t.tgname = ?)", String.class, table, table + "_payload")) {
+                createPayloadTrigger(table, partition);
+            }
+        } else {
+            createPayloadTrigger(table, table);
+        }
+        return !exists;
+    }
+
+    /**
+     * Creates the trigger filling payload on a table storing entries, or on a partition of it, see EntryPartitions.
+     * @param table reported_time or reported_assertion, which the trigger is named after
+     * @param target the table itself or one of its partitions
+     */
+    public void createPayloadTrigger(String table, String target) {
+        jdbcTemplate.execute("drop trigger if exists " + table + "_payload on " + target);
+        jdbcTemplate.execute("create trigger " + table + "_payload before insert or update of full_entry on " + target + " for each row execute procedure fill_payload()");
+    }
+
+    /**
+     * Fills payload of existing rows in chunks, so a large table is not locked in one long transaction.
+     */
+    private void fillPayload(String table) {
+        val maxId = jdbcTemplate.queryForObject("select coalesce(max(id), 0) from " + table, Long.class);
+        long filled = 0;
+        for (long start = 0; start < maxId; start += PAYLOAD_CHUNK_SIZE) {
+            val chunkStart = start;
+            filled += transaction.execute(status -> jdbcTemplate.update("update " + table + " set payload = try_jsonb(full_entry) where id > ? and id <= ? and payload is null",
+                    chunkStart, chunkStart + PAYLOAD_CHUNK_SIZE));
+        }
+        log.info("Filled payload of " + filled + " rows in " + table);
+    }
+
+    /**
+     * Tables that used identity columns already contain ids, so the sequence that replaces them has to start above.
+     */
+    private void alignSequence(String table, String sequence) {
+        val aligned = jdbcTemplate.queryForList("select setval('" + sequence + "', m.max_id + " + Sequences.ALLOCATION_SIZE + ") " +
+                "from (select coalesce(max(id), 0) as max_id from " + table + ") m, " + sequence + " s " +
+                "where s.last_value < m.max_id + " + Sequences.ALLOCATION_SIZE, Long.class);
+        if (!aligned.isEmpty()) {
+            log.info("Moved sequence " + sequence + " to " + aligned.get(0));
+        }
+    }
+
+    /**
+     * Hibernate stored @Lob strings as large objects and only kept their oid in the text column.
+     * Replaces such oids by the content of the large object and deletes the large object.
+     */
+    private void convertLargeObjects(String table, String key, String column) {
+        val converted = jdbcTemplate.queryForObject("with candidates as (" +
+                //case guarantees that only short digit strings are cast
+                "  select " + key + " as key, case when " + column + " ~ '^[0-9]{1,10}$' and cast(" + column + " as bigint) <= 4294967295 then cast(" + column + " as oid) end as lo" +
+                "  from " + table +
+                "), converted as (" +
+                "  update " + table + " t set " + column + " = convert_from(lo_get(c.lo), 'UTF8') from candidates c" +
+                "  where t." + key + " = c.key and c.lo in (select oid from pg_largeobject_metadata)" +
+                "  returning c.lo" +
+                ") select count(lo_unlink(lo)) from converted", Long.class);
+        if (converted > 0) {
+            log.info("Converted " + converted + " large objects in " + table + "." + column + " to text");
+        }
+    }
+}
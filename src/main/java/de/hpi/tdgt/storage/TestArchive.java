@@ -0,0 +1,841 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.storage;
+
+import de.hpi.tdgt.aggregation.RollupService;
+import de.hpi.tdgt.aggregation.SummaryService;
+import de.hpi.tdgt.test.EntryView;
+import de.hpi.tdgt.test.TestFinishedEvent;
+import de.hpi.tdgt.test.TestRegistry;
+import de.hpi.tdgt.test.TestRepository;
+import de.hpi.tdgt.test.TimeMeasurement;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Cold tier for finished tests. Some time after its testEnd, the times, assertions and measurements of a test are written to a file
+ * in archive.directory and deleted from the database; the test itself and its rollups stay there.
+ * <p>
+ * Times and assertions are stored ordered by id in DEFLATE-compressed blocks of BLOCK_SIZE entries, with an index of the ids
+ * and creation times in every block, so a page only decompresses the blocks it needs. Measurements are stored as one compressed column
+ * per field, url, method and story as codes into a dictionary of their distinct values. Archives are read through memory-mapped buffers.
+ * <p>
+ * An archive contains the rows below the IdWatermark of the test at the time it was written, only these rows are deleted.
+ * Rows that commit while it is written or arrive afterwards, e.g. replayed from the write-ahead log, are added by archiving the test again.
+ */
+@Component
+@Log4j2
+public class TestArchive {
+    private static final int MAGIC = 0x54444741;
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".archive";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int BLOCK_SIZE = 64;
+    //creation_time, url, method, story, min_latency, avg_latency, max_latency, throughput
+    private static final int COLUMNS = 8;
+    //null in the columns, a creation time of Long.MIN_VALUE or a NaN latency is read back as null as well
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final int NO_CODE = -1;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readOnlyTransaction;
+    private final TestRepository repository;
+    private final TestRegistry registry;
+    private final RollupService rollupService;
+    private final SummaryService summaries;
+    private final EntryCompression compression;
+    private final EntryVersions entryVersions;
+    private final EntryDeletion entryDeletion;
+    private final IdWatermark watermark;
+    //null if archiving is disabled
+    private final Path directory;
+    private final long delayMs;
+    private final Set<Long> archived = ConcurrentHashMap.newKeySet();
+    //tests that are waiting to be archived
+    private final Set<Long> queued = ConcurrentHashMap.newKeySet();
+    //tests whose archive would exceed the size of a memory-mapped buffer, they stay in the database
+    private final Set<Long> tooLarge = ConcurrentHashMap.newKeySet();
+    //archives that have been read recently
+    private final Map<Long, Archive> open;
+    private final ScheduledExecutorService archiver = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "test-archiver"));
+
+    public TestArchive(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, TestRepository repository, TestRegistry registry,
+                       RollupService rollupService, SummaryService summaries, EntryCompression compression, EntryVersions entryVersions, EntryDeletion entryDeletion,
+                       IdWatermark watermark, @Value("${archive.directory}") String directory, @Value("${archive.delay-ms}") long delayMs,
+                       @Value("${archive.open-files}") int openFiles) throws IOException {
+        //own template, so entries are read through a cursor
+        this.jdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.jdbcTemplate.setFetchSize(500);
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.repository = repository;
+        this.registry = registry;
+        this.rollupService = rollupService;
+        this.summaries = summaries;
+        this.compression = compression;
+        this.entryVersions = entryVersions;
+        this.entryDeletion = entryDeletion;
+        this.watermark = watermark;
+        this.directory = directory.isEmpty() ? null : Paths.get(directory);
+        this.delayMs = delayMs;
+        this.open = new LinkedHashMap<Long, Archive>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Archive> eldest) {
+                return size() > openFiles;
+            }
+        };
+        if (this.directory != null) {
+            Files.createDirectories(this.directory);
+            try (val files = Files.list(this.directory)) {
+                for (val file : (Iterable<Path>) files::iterator) {
+                    val name = file.getFileName().toString();
+                    if (name.endsWith(TEMPORARY_SUFFIX)) {
+                        //left over from an interrupted archiving, the entries are still in the database
+                        Files.delete(file);
+                    } else if (name.endsWith(SUFFIX)) {
+                        val testId = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                        archived.add(testId);
+                        //in case the instance stopped before the archived rows were deleted, or rows have been written since
+                        schedule(testId);
+                    }
+                }
+            }
+            log.info("Found " + archived.size() + " archived tests in " + this.directory);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        //an archive that has not been completed is written again after the next start
+        archiver.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * @return true if the entries of the test are read from its archive
+     */
+    public boolean contains(long testId) {
+        return archived.contains(testId);
+    }
+
+    /**
+     * Archives a test once it has been finished for archive.delay-ms, so entries that are still in the ingest pipeline are included.
+     */
+    @EventListener
+    public void testFinished(TestFinishedEvent event) {
+        if (isEnabled()) {
+            schedule(event.getTestId());
+        }
+    }
+
+    /**
+     * Called after entries of the test have been committed. If it has been archived already, they are added to its archive after archive.delay-ms.
+     */
+    public void written(long testId) {
+        if (archived.contains(testId)) {
+            schedule(testId);
+        }
+    }
+
+    /**
+     * Archives finished tests that have not been archived yet, e.g. because they ended before the last restart.
+     */
+    @Scheduled(fixedDelayString = "${archive.interval-ms}")
+    public void archiveFinishedTests() {
+        if (!isEnabled()) {
+            return;
+        }
+        for (val testId : repository.findIdsByIsActive(false)) {
+            if (!archived.contains(testId) && !tooLarge.contains(testId)) {
+                schedule(testId);
+            }
+        }
+    }
+
+    private void schedule(long testId) {
+        if (queued.add(testId)) {
+            archiver.schedule(() -> {
+                //entries written from now on schedule it again
+                queued.remove(testId);
+                try {
+                    archive(testId);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException | RuntimeException e) {
+                    //the next run of archiveFinishedTests or the next write tries again
+                    log.error("Could not archive test " + testId + ": ", e);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the archive of a finished test and deletes the archived times, assertions and measurements from the database.
+     * If the test has been archived before, its remaining rows are added to a new archive that replaces the previous one.
+     * Completes the rollups and the summary of the test first, aggregations that fit a rollup tier do not read the archive.
+     * @return false if archiving is disabled, the test does not exist or is running, or it has been archived and has no rows in the database
+     */
+    public boolean archive(long testId) throws IOException, InterruptedException {
+        if (!isEnabled() || !registry.exists(testId) || registry.isActive(testId)) {
+            return false;
+        }
+        val previous = archived.contains(testId) ? open(testId) : null;
+        if (previous != null) {
+            //e.g. the instance stopped before they were deleted
+            deleteEntries(testId, previous.getBounds());
+            if (!hasEntries(testId)) {
+                return false;
+            }
+        }
+        val started = System.currentTimeMillis();
+        rollupService.rollUp(testId, true);
+        summaries.complete(testId);
+        //every row below has been committed, rows that commit while the archive is written stay in the database
+        val bounds = new Bounds(watermark.get(EntrySearch.TIMES, testId), watermark.get(EntrySearch.ASSERTIONS, testId), watermark.get(IdWatermark.MEASUREMENTS, testId));
+        val temporary = directory.resolve(testId + SUFFIX + TEMPORARY_SUFFIX);
+        long size;
+        try {
+            size = write(testId, temporary, previous, bounds);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        if (size >= Integer.MAX_VALUE) {
+            Files.delete(temporary);
+            tooLarge.add(testId);
+            log.warn("Test " + testId + " is not archived, its archive would have " + size + " bytes and could not be memory-mapped");
+            return false;
+        }
+        synchronized (this) {
+            //deleted while it was written
+            if (!registry.exists(testId)) {
+                Files.delete(temporary);
+                return false;
+            }
+            Files.move(temporary, file(testId), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            synchronized (open) {
+                //readers that still hold the previous archive can finish reading it
+                open.remove(testId);
+            }
+            archived.add(testId);
+        }
+        entryVersions.changed(testId);
+        deleteEntries(testId, bounds);
+        log.info("Archived test " + testId + " into " + size + " bytes in " + (System.currentTimeMillis() - started) + " ms");
+        //committed after the bounds had been taken
+        if (hasEntries(testId)) {
+            schedule(testId);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the archive of a test that is being deleted.
+     */
+    public synchronized void delete(long testId) {
+        if (!isEnabled()) {
+            return;
+        }
+        archived.remove(testId);
+        synchronized (open) {
+            open.remove(testId);
+        }
+        try {
+            Files.deleteIfExists(file(testId));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void deleteEntries(long testId, Bounds bounds) throws InterruptedException {
+        entryDeletion.deleteEntries(testId, bounds.getTimes(), bounds.getAssertions(), bounds.getMeasurements());
+    }
+
+    private boolean hasEntries(long testId) {
+        return jdbcTemplate.queryForObject("select exists(select 1 from reported_time where test_created_at = ?) or exists(select 1 from reported_assertion where test_created_at = ?) " +
+                "or exists(select 1 from time_measurement where test_id = ?)", Boolean.class, testId, testId, testId);
+    }
+
+    private Path file(long testId) {
+        return directory.resolve(testId + SUFFIX);
+    }
+
+    /**
+     * Reads entries of an archived test with the same parameters and results as EntrySearch.find.
+     */
+    public List<EntryView> find(String table, long testId, long after, Long from, Long to, PayloadFilter filter, Integer limit) {
+        val entries = new ArrayList<EntryView>();
+        forEach(table, testId, after, from, to, filter, limit, entries::add);
+        return entries;
+    }
+
+    /**
+     * Like find without limit, but passes the entries to the consumer while they are decompressed.
+     */
+    public void forEach(String table, long testId, long after, Long from, Long to, PayloadFilter filter, Consumer<EntryView> consumer) {
+        forEach(table, testId, after, from, to, filter, null, consumer);
+    }
+
+    private void forEach(String table, long testId, long after, Long from, Long to, PayloadFilter filter, Integer limit, Consumer<EntryView> consumer) {
+        val archive = open(testId);
+        val blocks = archive.getBlocks(table);
+        val inRange = from != null || to != null;
+        val lower = from != null ? from : Long.MIN_VALUE;
+        val upper = to != null ? to : Long.MAX_VALUE;
+        int found = 0;
+        for (int i = firstBlockAfter(blocks, after); i < blocks.size() && (limit == null || found < limit); i++) {
+            val block = blocks.get(i);
+            //entries without creation time are not in any range, a block of them has minTime > maxTime
+            if (inRange && (block.getMaxTime() < lower || block.getMinTime() > upper)) {
+                continue;
+            }
+            val data = ByteBuffer.wrap(inflate(archive.getBuffer(), block));
+            while (data.hasRemaining() && (limit == null || found < limit)) {
+                val id = data.getLong();
+                val creationTime = data.getLong();
+                val length = data.getInt();
+                val start = data.position();
+                data.position(start + length);
+                if (id <= after || (inRange && (creationTime == NO_TIME || creationTime < lower || creationTime > upper))) {
+                    continue;
+                }
+                val fullEntry = new String(data.array(), start, length, StandardCharsets.UTF_8);
+                if (filter.matches(fullEntry)) {
+                    consumer.accept(new Entry(id, fullEntry));
+                    found++;
+                }
+            }
+        }
+    }
+
+    //index of the first block that contains an id greater than after
+    private static int firstBlockAfter(List<Block> blocks, long after) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            val middle = (low + high) >>> 1;
+            if (blocks.get(middle).getLastId() <= after) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Passes the measurements of an archived test to the consumer, in no particular order.
+     */
+    public void forEachMeasurement(long testId, Consumer<TimeMeasurement> consumer) {
+        forEachMeasurement(open(testId), testId, consumer);
+    }
+
+    private static void forEachMeasurement(Archive archive, long testId, Consumer<TimeMeasurement> consumer) {
+        val columns = new DataInputStream[COLUMNS];
+        try {
+            for (int i = 0; i < COLUMNS; i++) {
+                val column = archive.getBuffer().duplicate();
+                column.position(archive.getColumnOffsets()[i]);
+                column.limit(archive.getColumnOffsets()[i] + archive.getColumnLengths()[i]);
+                columns[i] = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new BufferInputStream(column))));
+            }
+            for (long row = 0; row < archive.getRows(); row++) {
+                val creationTime = columns[0].readLong();
+                consumer.accept(new TimeMeasurement(0, testId, creationTime != NO_TIME ? creationTime : null,
+                        archive.decode(columns[1].readInt()), archive.decode(columns[2].readInt()), archive.decode(columns[3].readInt()),
+                        number(columns[4].readDouble()), number(columns[5].readDouble()), number(columns[6].readDouble()), number(columns[7].readDouble())));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (val column : columns) {
+                if (column != null) {
+                    try {
+                        //releases the inflater
+                        column.close();
+                    } catch (IOException e) {
+                        log.warn("Could not close column of archive " + testId + ": ", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Double number(double value) {
+        return Double.isNaN(value) ? null : value;
+    }
+
+    private Archive open(long testId) {
+        synchronized (open) {
+            var archive = open.get(testId);
+            if (archive == null) {
+                try (val channel = FileChannel.open(file(testId), StandardOpenOption.READ)) {
+                    archive = new Archive(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                open.put(testId, archive);
+            }
+            return archive;
+        }
+    }
+
+    private static byte[] inflate(ByteBuffer buffer, Block block) {
+        val compressed = new byte[block.getLength()];
+        val source = buffer.duplicate();
+        source.position(block.getOffset());
+        source.get(compressed);
+        val data = new byte[block.getSize()];
+        val inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int read = 0;
+            while (read < data.length && !inflater.finished()) {
+                read += inflater.inflate(data, read, data.length - read);
+            }
+            if (read != data.length) {
+                throw new IllegalStateException("Block of archive is truncated");
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Block of archive is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Layout: magic, version and test id; blocks of times and assertions; columns of measurements;
+     * a footer with the block index of times and assertions, the column offsets, the dictionary and the bounds; the offset of the footer and magic.
+     * @param previous archive of the test the rows are added to, null if there is none
+     * @param bounds only rows with lower ids are written
+     * @return size of the file
+     */
+    private long write(long testId, Path file, Archive previous, Bounds bounds) throws IOException {
+        try (val stream = new FileOutputStream(file.toFile()); val out = new DataOutputStream(new BufferedOutputStream(stream, 65536))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(testId);
+            val times = writeEntries(out, EntrySearch.TIMES, testId, previous, bounds.getTimes());
+            val assertions = writeEntries(out, EntrySearch.ASSERTIONS, testId, previous, bounds.getAssertions());
+            val measurements = writeMeasurements(out, testId, previous, bounds.getMeasurements());
+            val footer = out.size();
+            writeIndex(out, times);
+            writeIndex(out, assertions);
+            out.writeLong(measurements.getRows());
+            for (int i = 0; i < COLUMNS; i++) {
+                out.writeInt(measurements.getColumnOffsets()[i]);
+                out.writeInt(measurements.getColumnLengths()[i]);
+            }
+            out.writeInt(measurements.getDictionary().size());
+            for (val value : measurements.getDictionary()) {
+                val bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeLong(bounds.getTimes());
+            out.writeLong(bounds.getAssertions());
+            out.writeLong(bounds.getMeasurements());
+            out.writeInt(footer);
+            out.writeInt(MAGIC);
+            out.flush();
+            stream.getChannel().force(true);
+            //size() stops counting at Integer.MAX_VALUE
+            return out.size() < Integer.MAX_VALUE ? out.size() : stream.getChannel().size();
+        }
+    }
+
+    private List<Block> writeEntries(DataOutputStream out, String table, long testId, Archive previous, long before) throws IOException {
+        val blocks = new BlockWriter(out);
+        //ids of the previous archive are below its bound, and the rows read below are not, so the entries stay ordered by id
+        val after = previous != null ? previous.getBounds().get(table) : Long.MIN_VALUE;
+        if (previous != null) {
+            for (val block : previous.getBlocks(table)) {
+                blocks.copy(previous.getBuffer(), block);
+            }
+        }
+        try {
+            readOnlyTransaction.execute(status -> {
+                jdbcTemplate.query("select id, creation_time, full_entry, packed_entry from " + table + " where test_created_at = ? and id >= ? and id < ? order by id",
+                        new Object[]{testId, after, before}, (RowCallbackHandler) resultSet -> {
+                    val id = resultSet.getLong(1);
+                    var creationTime = resultSet.getLong(2);
+                    if (resultSet.wasNull()) {
+                        creationTime = NO_TIME;
+                    }
+                    val fullEntry = compression.unpack(resultSet.getString(3), resultSet.getBytes(4));
+                    try {
+                        blocks.add(id, creationTime, fullEntry);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                return null;
+            });
+            return blocks.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void writeIndex(DataOutputStream out, List<Block> blocks) throws IOException {
+        out.writeInt(blocks.size());
+        for (val block : blocks) {
+            out.writeLong(block.getLastId());
+            out.writeLong(block.getMinTime());
+            out.writeLong(block.getMaxTime());
+            out.writeInt(block.getOffset());
+            out.writeInt(block.getLength());
+            out.writeInt(block.getSize());
+        }
+    }
+
+    /**
+     * Reads the measurements once and writes every field to a compressed temporary file of its own, which are appended afterwards.
+     * Measurements of the previous archive are written again, their codes change with the dictionary.
+     */
+    private Columns writeMeasurements(DataOutputStream out, long testId, Archive previous, long before) throws IOException {
+        val files = new Path[COLUMNS];
+        val columns = new DataOutputStream[COLUMNS];
+        val codes = new LinkedHashMap<String, Integer>();
+        val rows = new long[1];
+        try {
+            for (int i = 0; i < COLUMNS; i++) {
+                files[i] = Files.createTempFile(directory, testId + ".column", TEMPORARY_SUFFIX);
+                columns[i] = new DataOutputStream(new DeflaterOutputStream(new BufferedOutputStream(Files.newOutputStream(files[i]), 65536)));
+            }
+            val after = previous != null ? previous.getBounds().getMeasurements() : Long.MIN_VALUE;
+            if (previous != null) {
+                forEachMeasurement(previous, testId, measurement -> {
+                    writeMeasurement(columns, codes, measurement);
+                    rows[0]++;
+                });
+            }
+            readOnlyTransaction.execute(status -> {
+                jdbcTemplate.query("select creation_time, url, method, story, min_latency, avg_latency, max_latency, throughput from time_measurement where test_id = ? and id >= ? and id < ?",
+                        new Object[]{testId, after, before}, (RowCallbackHandler) resultSet -> {
+                    writeMeasurement(columns, codes, new TimeMeasurement(0, testId, (Long) resultSet.getObject(1), resultSet.getString(2), resultSet.getString(3), resultSet.getString(4),
+                            (Double) resultSet.getObject(5), (Double) resultSet.getObject(6), (Double) resultSet.getObject(7), (Double) resultSet.getObject(8)));
+                    rows[0]++;
+                });
+                return null;
+            });
+            val offsets = new int[COLUMNS];
+            val lengths = new int[COLUMNS];
+            for (int i = 0; i < COLUMNS; i++) {
+                columns[i].close();
+                offsets[i] = out.size();
+                Files.copy(files[i], out);
+                lengths[i] = out.size() - offsets[i];
+            }
+            return new Columns(rows[0], offsets, lengths, new ArrayList<>(codes.keySet()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (int i = 0; i < COLUMNS; i++) {
+                if (columns[i] != null) {
+                    columns[i].close();
+                }
+                if (files[i] != null) {
+                    Files.deleteIfExists(files[i]);
+                }
+            }
+        }
+    }
+
+    private static void writeMeasurement(DataOutputStream[] columns, Map<String, Integer> codes, TimeMeasurement measurement) {
+        try {
+            columns[0].writeLong(measurement.getCreationTime() != null ? measurement.getCreationTime() : NO_TIME);
+            val values = new String[]{measurement.getUrl(), measurement.getMethod(), measurement.getStory()};
+            for (int i = 0; i < values.length; i++) {
+                columns[i + 1].writeInt(values[i] != null ? codes.computeIfAbsent(values[i], key -> codes.size()) : NO_CODE);
+            }
+            val numbers = new Double[]{measurement.getMinLatency(), measurement.getAvgLatency(), measurement.getMaxLatency(), measurement.getThroughput()};
+            for (int i = 0; i < numbers.length; i++) {
+                columns[i + 4].writeDouble(numbers[i] != null ? numbers[i] : Double.NaN);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Collects entries into blocks and writes every full block compressed.
+     */
+    private static class BlockWriter {
+        private final DataOutputStream out;
+        private final List<Block> blocks = new ArrayList<>();
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream data = new DataOutputStream(buffer);
+        private final Deflater deflater = new Deflater();
+        private int count;
+        private long lastId;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+
+        BlockWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void add(long id, long creationTime, String fullEntry) throws IOException {
+            val bytes = fullEntry.getBytes(StandardCharsets.UTF_8);
+            data.writeLong(id);
+            data.writeLong(creationTime);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+            lastId = id;
+            if (creationTime != NO_TIME) {
+                minTime = Math.min(minTime, creationTime);
+                maxTime = Math.max(maxTime, creationTime);
+            }
+            if (++count == BLOCK_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes a compressed block of another archive as it is. Has to be called before add.
+         */
+        void copy(ByteBuffer source, Block block) throws IOException {
+            val compressed = new byte[block.getLength()];
+            val data = source.duplicate();
+            data.position(block.getOffset());
+            data.get(compressed);
+            blocks.add(new Block(block.getLastId(), block.getMinTime(), block.getMaxTime(), out.size(), compressed.length, block.getSize()));
+            out.write(compressed);
+            lastId = block.getLastId();
+        }
+
+        List<Block> finish() throws IOException {
+            try {
+                flush();
+                return blocks;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            deflater.reset();
+            val compressed = new ByteArrayOutputStream();
+            try (val deflating = new DeflaterOutputStream(compressed, deflater)) {
+                buffer.writeTo(deflating);
+            }
+            blocks.add(new Block(lastId, minTime, maxTime, out.size(), compressed.size(), buffer.size()));
+            compressed.writeTo(out);
+            buffer.reset();
+            count = 0;
+            minTime = Long.MAX_VALUE;
+            maxTime = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Position of a compressed block of entries in the file, with the greatest id and the range of creation times in it.
+     */
+    @Getter
+    @AllArgsConstructor
+    private static class Block {
+        private final long lastId;
+        private final long minTime;
+        private final long maxTime;
+        private final int offset;
+        private final int length;
+        //uncompressed
+        private final int size;
+    }
+
+    /**
+     * Ids below which an archive contains every committed row of its test, per table.
+     */
+    @Getter
+    @AllArgsConstructor
+    private static class Bounds {
+        private final long times;
+        private final long assertions;
+        private final long measurements;
+
+        long get(String table) {
+            return EntrySearch.TIMES.equals(table) ? times : assertions;
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Columns {
+        private final long rows;
+        private final int[] columnOffsets;
+        private final int[] columnLengths;
+        private final List<String> dictionary;
+    }
+
+    /**
+     * Memory-mapped archive file with its footer.
+     */
+    @Getter
+    private static class Archive {
+        private final ByteBuffer buffer;
+        private final List<Block> times;
+        private final List<Block> assertions;
+        private final long rows;
+        private final int[] columnOffsets = new int[COLUMNS];
+        private final int[] columnLengths = new int[COLUMNS];
+        private final String[] dictionary;
+        private final Bounds bounds;
+
+        Archive(ByteBuffer buffer) {
+            this.buffer = buffer;
+            val end = buffer.limit();
+            val version = end >= 16 ? buffer.getInt(4) : 0;
+            if (end < 16 || buffer.getInt(0) != MAGIC || version < 1 || version > VERSION || buffer.getInt(end - 4) != MAGIC) {
+                throw new IllegalStateException("Not an archive of version " + VERSION);
+            }
+            val footer = buffer.duplicate();
+            footer.position(buffer.getInt(end - 8));
+            times = readIndex(footer);
+            assertions = readIndex(footer);
+            rows = footer.getLong();
+            for (int i = 0; i < COLUMNS; i++) {
+                columnOffsets[i] = footer.getInt();
+                columnLengths[i] = footer.getInt();
+            }
+            dictionary = new String[footer.getInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                val bytes = new byte[footer.getInt()];
+                footer.get(bytes);
+                dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            if (version >= 2) {
+                bounds = new Bounds(footer.getLong(), footer.getLong(), footer.getLong());
+            } else {
+                //version 1 contained all rows up to its last entries and deleted all measurements
+                bounds = new Bounds(nextId(times), nextId(assertions), Long.MAX_VALUE);
+            }
+        }
+
+        private static long nextId(List<Block> blocks) {
+            return blocks.isEmpty() ? Long.MIN_VALUE : blocks.get(blocks.size() - 1).getLastId() + 1;
+        }
+
+        private static List<Block> readIndex(ByteBuffer footer) {
+            val blocks = new ArrayList<Block>();
+            for (int i = footer.getInt(); i > 0; i--) {
+                blocks.add(new Block(footer.getLong(), footer.getLong(), footer.getLong(), footer.getInt(), footer.getInt(), footer.getInt()));
+            }
+            return blocks;
+        }
+
+        List<Block> getBlocks(String table) {
+            if (EntrySearch.TIMES.equals(table)) {
+                return times;
+            }
+            if (EntrySearch.ASSERTIONS.equals(table)) {
+                return assertions;
+            }
+            throw new IllegalArgumentException("Unknown entry table " + table);
+        }
+
+        String decode(int code) {
+            return code != NO_CODE ? dictionary[code] : null;
+        }
+    }
+
+    /**
+     * Reads a slice of a memory-mapped archive without copying it first.
+     */
+    @AllArgsConstructor
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            val read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Entry implements EntryView {
+        private final long id;
+        private final String fullEntry;
+    }
+}
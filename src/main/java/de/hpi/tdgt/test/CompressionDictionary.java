@@ -0,0 +1,48 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.test;
+
+import lombok.*;
+
+import javax.persistence.*;
+
+/**
+ * Dictionary that the times or the assertions of a test are compressed with, see EntryDictionary.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@EqualsAndHashCode
+@Table(uniqueConstraints = @UniqueConstraint(name = "compression_dictionary_test_table_key", columnNames = {"test_created_at", "entry_table"}))
+@ToString
+public class CompressionDictionary {
+    //referenced by packed entries, which have room for an int
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private int id;
+    private long testCreatedAt;
+    //reported_time or reported_assertion
+    private String entryTable;
+    @Column(columnDefinition = "bytea")
+    private byte[] dictionary;
+}
@@ -0,0 +1,71 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.test;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.NoRepositoryBean;
+
+import javax.persistence.QueryHint;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
+/**
+ * Queries shared by times and assertions. They select entries by the foreign key, so the test and its other entries are never loaded.
+ * @param <T> ReportedTime or ReportedAssertion
+ */
+@NoRepositoryBean
+public interface EntryRepository<T> extends CrudRepository<T, Long> {
+    /**
+     * @param testId test the entries belong to
+     * @param after only entries with a greater id are returned
+     * @param before only entries with a lower id are returned, see IdWatermark
+     * @param page limits the number of returned entries
+     * @return entries ordered by id
+     */
+    @Query("select e.id as id, e.fullEntry as fullEntry, e.packedEntry as packedEntry from #{#entityName} e where e.test.createdAt = ?1 and e.id > ?2 and e.id < ?3 order by e.id")
+    List<StoredEntry> findPage(long testId, long after, long before, Pageable page);
+
+    /**
+     * Like findPage, but only returns entries with from <= creationTime <= to.
+     */
+    @Query("select e.id as id, e.fullEntry as fullEntry, e.packedEntry as packedEntry from #{#entityName} e where e.test.createdAt = ?1 and e.id > ?2 and e.id < ?3 and e.creationTime between ?4 and ?5 order by e.id")
+    List<StoredEntry> findPageInTimeRange(long testId, long after, long before, long from, long to, Pageable page);
+
+    /**
+     * Like findPage without limit, but reads the entries through a database cursor. Has to be consumed inside a transaction and closed afterwards.
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "500"))
+    @Query("select e.id as id, e.fullEntry as fullEntry, e.packedEntry as packedEntry from #{#entityName} e where e.test.createdAt = ?1 and e.id > ?2 and e.id < ?3 order by e.id")
+    Stream<StoredEntry> streamAll(long testId, long after, long before);
+
+    /**
+     * Like findPageInTimeRange without limit, but reads the entries through a database cursor. Has to be consumed inside a transaction and closed afterwards.
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "500"))
+    @Query("select e.id as id, e.fullEntry as fullEntry, e.packedEntry as packedEntry from #{#entityName} e where e.test.createdAt = ?1 and e.id > ?2 and e.id < ?3 and e.creationTime between ?4 and ?5 order by e.id")
+    Stream<StoredEntry> streamInTimeRange(long testId, long after, long before, long from, long to);
+}
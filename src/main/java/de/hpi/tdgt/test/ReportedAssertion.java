@@ -21,6 +21,8 @@
 
 package de.hpi.tdgt.test;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import de.hpi.tdgt.storage.PackedEntryListener;
 import lombok.*;
 
 import javax.persistence.*;
@@ -30,17 +32,38 @@ import javax.persistence.*;
 @Setter
 @NoArgsConstructor
 @EqualsAndHashCode
-@Table
+@Table(indexes = {
+        //keyset pagination and time range queries per test
+        @Index(name = "reported_assertion_test_id_idx", columnList = "test_created_at, id"),
+        @Index(name = "reported_assertion_test_creation_time_idx", columnList = "test_created_at, creation_time"),
+        //messages that are delivered again are only stored once. Entries without content hash are not covered, NULLs never conflict
+        @Index(name = "reported_assertion_test_content_hash_idx", columnList = "test_created_at, content_hash", unique = true)
+})
 @ToString
+@EntityListeners(PackedEntryListener.class)
 public class ReportedAssertion {
+    //sequence instead of identity, so ids can be allocated for a whole batch
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = Sequences.REPORTED_ASSERTION)
+    @SequenceGenerator(name = Sequences.REPORTED_ASSERTION, sequenceName = Sequences.REPORTED_ASSERTION, allocationSize = Sequences.ALLOCATION_SIZE)
     private long id;
 
-    @ManyToOne(fetch = FetchType.EAGER, cascade = CascadeType.REMOVE)
+    //no cascade, deleting an entry must not delete its test. Tests are deleted with RetentionService
+    @ManyToOne(fetch = FetchType.EAGER)
     private Test test;
-    @Lob
+    //plain text instead of a large object, so entries can be written with COPY.
+    //Not updatable, so unpacking a packed entry does not make the entity dirty
+    @Column(columnDefinition = "text", updatable = false)
     private String fullEntry;
+    //fullEntry compressed by EntryCompression, in which case the text column is null. Unpacked into fullEntry when loaded
+    @JsonIgnore
+    @Column(columnDefinition = "bytea")
+    private byte[] packedEntry;
+    //creationTime of the entry as reported by the generator, if present
+    private Long creationTime;
+    //hash of fullEntry, see EntryParser; null for entries without creationTime and entries that have not been received as messages
+    @JsonIgnore
+    private Long contentHash;
 
     public ReportedAssertion(Test test, String fullEntry) {
         this.test = test;
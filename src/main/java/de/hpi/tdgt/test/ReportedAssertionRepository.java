@@ -21,7 +21,5 @@
 
 package de.hpi.tdgt.test;
 
-import org.springframework.data.repository.CrudRepository;
-
-public interface ReportedAssertionRepository extends CrudRepository<ReportedAssertion, Long> {
+public interface ReportedAssertionRepository extends EntryRepository<ReportedAssertion> {
 }
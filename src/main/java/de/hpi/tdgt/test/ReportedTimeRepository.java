@@ -21,7 +21,5 @@
 
 package de.hpi.tdgt.test;
 
-import org.springframework.data.repository.CrudRepository;
-
-public interface ReportedTimeRepository  extends CrudRepository<ReportedTime, Long> {
+public interface ReportedTimeRepository extends EntryRepository<ReportedTime> {
 }
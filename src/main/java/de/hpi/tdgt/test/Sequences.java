@@ -0,0 +1,36 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.test;
+
+/**
+ * Id sequences of the entry tables. Hibernate and the bulk writer both take blocks of ALLOCATION_SIZE ids from them:
+ * a value v returned by nextval stands for the ids v - ALLOCATION_SIZE + 1 to v.
+ */
+public final class Sequences {
+    public static final int ALLOCATION_SIZE = 50;
+    public static final String REPORTED_TIME = "reported_time_seq";
+    public static final String REPORTED_ASSERTION = "reported_assertion_seq";
+    public static final String TIME_MEASUREMENT = "time_measurement_seq";
+
+    private Sequences() {
+    }
+}
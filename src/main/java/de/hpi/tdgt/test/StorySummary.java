@@ -0,0 +1,54 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.test;
+
+import lombok.*;
+
+import javax.persistence.*;
+
+/**
+ * Latencies and throughput of one story over the whole test, maintained while its times are written.
+ * Sums instead of averages are stored, so new measurements can be added, see TimeRollup.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@EqualsAndHashCode
+@Table(uniqueConstraints = @UniqueConstraint(name = "story_summary_test_story_key", columnNames = {"test_id", "story"}))
+@ToString
+public class StorySummary {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    private long testId;
+    @Column(length = 1024)
+    private String story;
+    private Double minLatency;
+    private Double maxLatency;
+    private Double latencySum;
+    private Double latencyWeight;
+    private Double avgSum;
+    private Long avgCount;
+    private Double throughput;
+}
@@ -39,7 +39,8 @@ import java.util.List;
 public class Test {
     @Id
     private long createdAt;
-    @Lob
+    //plain text instead of a large object; not necessarily JSON, so it is not stored as jsonb
+    @Column(columnDefinition = "text")
     private String testConfig;
 
     private boolean isActive = true;
@@ -47,15 +48,23 @@ public class Test {
     //do not export them as JSON, else there is a cycle
     //workaround for multiplebagfetchexception, see https://stackoverflow.com/questions/17566304/multiple-fetches-with-eager-type-in-hibernate-with-jpa
     //lists should not be settable,they are managed by hibernate
+    //no cascade, removing a test through JPA would load and delete every entry one by one; RetentionService deletes them in bulk
     @Fetch(FetchMode.SELECT)
-    @OneToMany(fetch = FetchType.EAGER, cascade = CascadeType.REMOVE, orphanRemoval = true, mappedBy = "test")
+    @OneToMany(fetch = FetchType.EAGER, mappedBy = "test")
     @JsonIgnore
     @Setter(AccessLevel.NONE)
     private List<ReportedTime> times;
 
     @Fetch(FetchMode.SELECT)
-    @OneToMany(fetch = FetchType.EAGER, cascade = CascadeType.REMOVE, orphanRemoval = true, mappedBy = "test")
+    @OneToMany(fetch = FetchType.EAGER, mappedBy = "test")
     @JsonIgnore
     @Setter(AccessLevel.NONE)
     private List<ReportedAssertion> assertions;
+
+    //for queries that must not fetch times and assertions
+    public Test(long createdAt, String testConfig, boolean isActive) {
+        this.createdAt = createdAt;
+        this.testConfig = testConfig;
+        this.isActive = isActive;
+    }
 }
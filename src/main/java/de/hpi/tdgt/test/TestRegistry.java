@@ -0,0 +1,125 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.test;
+
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Knows which tests exist and whether they are running, so the ingest path does not have to ask the database for every message.
+ * Filled from the database on startup and kept current by control messages.
+ */
+@Component
+@Log4j2
+public class TestRegistry {
+    private final TestRepository repository;
+    //test id -> active
+    private final Map<Long, Boolean> tests = new ConcurrentHashMap<>();
+    //changes whenever a test starts or ends
+    private final AtomicLong version = new AtomicLong();
+
+    public TestRegistry(TestRepository repository) {
+        this.repository = repository;
+    }
+
+    @PostConstruct
+    public void reload() {
+        tests.clear();
+        for (val id : repository.findIdsByIsActive(true)) {
+            tests.put(id, true);
+        }
+        for (val id : repository.findIdsByIsActive(false)) {
+            tests.put(id, false);
+        }
+        version.incrementAndGet();
+        log.info("Loaded " + tests.size() + " known tests");
+    }
+
+    /**
+     * @param id id of the test
+     * @return true if a test with this id has been stored
+     */
+    public boolean exists(long id) {
+        return lookup(id) != null;
+    }
+
+    /**
+     * @param id id of the test
+     * @return true if a test with this id has been stored and has not ended yet
+     */
+    public boolean isActive(long id) {
+        return Boolean.TRUE.equals(lookup(id));
+    }
+
+    /**
+     * @return ids of all tests that have not ended yet
+     */
+    public List<Long> getActiveTests() {
+        return tests.entrySet().stream().filter(Map.Entry::getValue).map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+    public void started(long id) {
+        tests.put(id, true);
+        version.incrementAndGet();
+    }
+
+    public void finished(long id) {
+        tests.put(id, false);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Called once the test has been marked for deletion, the repository does not return it anymore.
+     */
+    public void deleted(long id) {
+        tests.remove(id);
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return number that changes whenever the set of running or finished tests has changed
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    private Boolean lookup(long id) {
+        val known = tests.get(id);
+        if (known != null) {
+            return known;
+        }
+        //might have been stored by someone else since the last reload, only cache positive answers
+        val stored = repository.findIsActiveById(id).orElse(null);
+        if (stored != null && tests.putIfAbsent(id, stored) == null) {
+            version.incrementAndGet();
+        }
+        return stored;
+    }
+}
@@ -21,10 +21,30 @@
 
 package de.hpi.tdgt.test;
 
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
+import java.util.Optional;
 
 public interface TestRepository extends CrudRepository<Test, Long> {
     public List<Test> findAllByIsActiveEquals(boolean active);
+
+    //the following queries do not load the entity, so times and assertions are not fetched. Tests that are being deleted are left out
+
+    @Query("select t.createdAt from Test t where t.isActive = ?1 and t.createdAt not in (select d.testId from PendingDeletion d)")
+    public List<Long> findIdsByIsActive(boolean active);
+
+    @Query("select new de.hpi.tdgt.test.Test(t.createdAt, t.testConfig, t.isActive) from Test t where t.createdAt = ?1 and t.createdAt not in (select d.testId from PendingDeletion d)")
+    public Optional<Test> findWithoutEntriesById(long id);
+
+    @Query("select t.isActive from Test t where t.createdAt = ?1 and t.createdAt not in (select d.testId from PendingDeletion d)")
+    public Optional<Boolean> findIsActiveById(long id);
+
+    @Modifying
+    @Transactional
+    @Query("update Test t set t.isActive = false where t.createdAt = ?1")
+    public int markFinished(long id);
 }
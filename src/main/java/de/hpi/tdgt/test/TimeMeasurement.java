@@ -0,0 +1,62 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.test;
+
+import lombok.*;
+
+import javax.persistence.*;
+
+/**
+ * One story of one reported time: the latencies and throughput of a story for a url and method, as typed columns.
+ * Stored in addition to the ReportedTime, so the database can filter and aggregate them.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@EqualsAndHashCode
+@Table(indexes = {
+        @Index(name = "time_measurement_test_creation_time_idx", columnList = "test_id, creation_time"),
+        @Index(name = "time_measurement_test_story_idx", columnList = "test_id, story")
+})
+@ToString
+public class TimeMeasurement {
+    //sequence instead of identity, so ids can be allocated for a whole batch
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = Sequences.TIME_MEASUREMENT)
+    @SequenceGenerator(name = Sequences.TIME_MEASUREMENT, sequenceName = Sequences.TIME_MEASUREMENT, allocationSize = Sequences.ALLOCATION_SIZE)
+    private long id;
+
+    //plain id instead of a relation, measurements are never navigated to from a test
+    private long testId;
+    private Long creationTime;
+    @Column(length = 2048)
+    private String url;
+    private String method;
+    @Column(length = 1024)
+    private String story;
+    private Double minLatency;
+    private Double avgLatency;
+    private Double maxLatency;
+    private Double throughput;
+}
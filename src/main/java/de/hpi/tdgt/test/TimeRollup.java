@@ -0,0 +1,63 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt.test;
+
+import lombok.*;
+
+import javax.persistence.*;
+
+/**
+ * Measurements of a test pre-aggregated into buckets of a fixed resolution, per url, method and story.
+ * Sums instead of averages are stored, so buckets can be merged into coarser ones.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@EqualsAndHashCode
+@Table(indexes = {
+        @Index(name = "time_rollup_test_resolution_bucket_idx", columnList = "test_id, resolution_ms, bucket_start")
+})
+@ToString
+public class TimeRollup {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    private long testId;
+    private long resolutionMs;
+    private long bucketStart;
+    @Column(length = 2048)
+    private String url;
+    private String method;
+    @Column(length = 1024)
+    private String story;
+    private Double minLatency;
+    private Double maxLatency;
+    //sum of avgLatency * throughput and sum of the throughput of the measurements that have an avgLatency
+    private Double latencySum;
+    private Double latencyWeight;
+    //plain sum and count of avgLatency, used if there is no throughput
+    private Double avgSum;
+    private Long avgCount;
+    private Double throughput;
+}
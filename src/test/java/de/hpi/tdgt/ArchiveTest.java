@@ -0,0 +1,180 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.aggregation.AggregateBucket;
+import de.hpi.tdgt.controller.TestController;
+import de.hpi.tdgt.storage.TestArchive;
+import de.hpi.tdgt.test.TestRepository;
+import de.hpi.tdgt.test.TimeMeasurement;
+import de.hpi.tdgt.test.TimeMeasurementRepository;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.junit.ClassRule;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.util.TestPropertyValues;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.RequestEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(classes = Application.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "archive.directory=target/archive-test")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@ContextConfiguration(initializers = ArchiveTest.Initializer.class)
+public class ArchiveTest {
+    @ClassRule
+    public static PostgreSQLContainer postgreSQLContainer = new PostgreSQLContainer().withPassword("inmemory")
+            .withUsername("inmemory");
+
+    @LocalServerPort
+    private int localPort;
+
+    public TestRestTemplate testRestTemplate = new TestRestTemplate();
+
+    public static class Initializer implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+
+        @Override
+        public void initialize(@NotNull ConfigurableApplicationContext configurableApplicationContext) {
+            postgreSQLContainer.start();
+            TestPropertyValues values = TestPropertyValues.of(
+                    "spring.datasource.url=" + postgreSQLContainer.getJdbcUrl(),
+                    "spring.datasource.password=" + postgreSQLContainer.getPassword(),
+                    "spring.datasource.username=" + postgreSQLContainer.getUsername()
+            );
+            values.applyTo(configurableApplicationContext);
+        }
+    }
+
+    @Autowired
+    private TestRepository testRepository;
+
+    @Autowired
+    private TimeMeasurementRepository timeMeasurementRepository;
+
+    @Autowired
+    private TestArchive archive;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private String time(long testId, long creationTime, String url, String story) {
+        return "{\"testId\":" + testId + ",\"creationTime\":" + creationTime + ",\"times\":{\"" + url + "\":{\"GET\":{\"" + story + "\":{\"minLatency\":\"10\",\"avgLatency\":\"10\",\"maxLatency\":\"10\",\"throughput\":\"1\"}}}}}";
+    }
+
+    @Test
+    public void archivedTestsAreReadFromTheirArchive() throws IOException, InterruptedException, URISyntaxException {
+        assertThat(archive.isEnabled(), is(true));
+        val testId = System.currentTimeMillis();
+        testRepository.save(new de.hpi.tdgt.test.Test(testId, "TestConfig", false, new LinkedList<>(), new LinkedList<>()));
+        val times = new LinkedList<String>();
+        for (int i = 0; i < 100; i++) {
+            times.add(time(testId, 1000L * i, "http://localhost:900" + (i % 2) + "/", "story" + (i % 3)));
+        }
+        val imported = RequestEntity.post(new URL("http://localhost:"+localPort+"/test/"+testId+"/times").toURI()).contentType(TestController.NDJSON).body(String.join("\n", times) + "\n");
+        assertThat(testRestTemplate.exchange(imported, Long.class).getBody(), is(100L));
+        timeMeasurementRepository.save(new TimeMeasurement(0, testId, 2500L, "http://localhost:9000/", "POST", null, 5.0, null, 50.0, null));
+        val aggregate = new URL("http://localhost:"+localPort+"/test/"+testId+"/aggregate?bucket=1500ms&groupBy=story,url&from=1000&to=60000").toURI();
+        val aggregatedBefore = testRestTemplate.exchange(RequestEntity.get(aggregate).accept(MediaType.APPLICATION_JSON).build(), AggregateBucket[].class).getBody();
+        assertThat(aggregatedBefore, not(emptyArray()));
+
+        assertThat(archive.archive(testId), is(true));
+        assertThat(archive.contains(testId), is(true));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from reported_time where test_created_at = ?", Long.class, testId), is(0L));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from time_measurement where test_id = ?", Long.class, testId), is(0L));
+
+        val all = testRestTemplate.exchange(RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+testId+"/times").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class).getBody();
+        assertThat(Arrays.asList(all), equalTo(times));
+        val firstPage = testRestTemplate.exchange(RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+testId+"/times?limit=10&from=5000&story=story1").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class);
+        assertThat(Arrays.asList(firstPage.getBody()), contains(times.get(7), times.get(10), times.get(13), times.get(16), times.get(19), times.get(22), times.get(25), times.get(28), times.get(31), times.get(34)));
+        assertThat(firstPage.getHeaders().getFirst(HttpHeaders.LINK), containsString("after="));
+        val streamed = testRestTemplate.exchange(RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+testId+"/times?url=http://localhost:9001/").toURI()).accept(TestController.NDJSON).build(), String.class).getBody();
+        assertThat(streamed.split("\n").length, is(50));
+        val aggregatedAfter = testRestTemplate.exchange(RequestEntity.get(aggregate).accept(MediaType.APPLICATION_JSON).build(), AggregateBucket[].class).getBody();
+        assertThat(Arrays.asList(aggregatedAfter), equalTo(Arrays.asList(aggregatedBefore)));
+
+        val deleted = testRestTemplate.exchange(RequestEntity.delete(new URL("http://localhost:"+localPort+"/test/"+testId).toURI()).build(), Void.class);
+        assertThat(deleted.getStatusCode(), is(HttpStatus.ACCEPTED));
+        for (int i = 0; i < 50 && testRepository.existsById(testId); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(archive.contains(testId), is(false));
+    }
+
+    @Test
+    public void entriesWrittenAfterArchivingAreAddedToTheArchive() throws IOException, InterruptedException, URISyntaxException {
+        val testId = System.currentTimeMillis() + 2;
+        testRepository.save(new de.hpi.tdgt.test.Test(testId, "TestConfig", false, new LinkedList<>(), new LinkedList<>()));
+        val times = new LinkedList<String>();
+        for (int i = 0; i < 100; i++) {
+            times.add(time(testId, 1000L * i, "http://localhost:9000/", "story" + (i % 3)));
+        }
+        val url = new URL("http://localhost:"+localPort+"/test/"+testId+"/times").toURI();
+        testRestTemplate.exchange(RequestEntity.post(url).contentType(TestController.NDJSON).body(String.join("\n", times.subList(0, 70)) + "\n"), Long.class);
+        assertThat(archive.archive(testId), is(true));
+        //e.g. replayed from the write-ahead log after an outage
+        testRestTemplate.exchange(RequestEntity.post(url).contentType(TestController.NDJSON).body(String.join("\n", times.subList(70, 100)) + "\n"), Long.class);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from reported_time where test_created_at = ?", Long.class, testId), is(30L));
+
+        //what happens after archive.delay-ms and after a restart
+        assertThat(archive.archive(testId), is(true));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from reported_time where test_created_at = ?", Long.class, testId), is(0L));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from time_measurement where test_id = ?", Long.class, testId), is(0L));
+        val all = testRestTemplate.exchange(RequestEntity.get(url).accept(MediaType.APPLICATION_JSON).build(), String[].class).getBody();
+        assertThat(Arrays.asList(all), equalTo(times));
+        val counted = new long[1];
+        archive.forEachMeasurement(testId, measurement -> counted[0]++);
+        assertThat(counted[0], is(100L));
+        //nothing left to add
+        assertThat(archive.archive(testId), is(false));
+    }
+
+    @Test
+    public void runningTestsAreNotArchived() throws IOException, InterruptedException {
+        val testId = System.currentTimeMillis() + 1;
+        testRepository.save(new de.hpi.tdgt.test.Test(testId, "TestConfig", true, new LinkedList<>(), new LinkedList<>()));
+        assertThat(archive.archive(testId), is(false));
+        assertThat(archive.contains(testId), is(false));
+    }
+}
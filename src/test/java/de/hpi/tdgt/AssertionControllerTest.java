@@ -48,6 +48,7 @@ import org.springframework.context.ApplicationContextInitializer;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.testcontainers.containers.PostgreSQLContainer;
@@ -128,6 +129,9 @@ public class AssertionControllerTest {
 
     @Autowired
     private ReportedAssertionRepository assertionRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
     @Test
     public void canGetAnAssertionOfATest() throws MalformedURLException, URISyntaxException {
         val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, new LinkedList<>(), new LinkedList<>());
@@ -188,4 +192,17 @@ public class AssertionControllerTest {
         assertThat(retrievedTest.getAssertions().get(0).getFullEntry(), equalTo(exampleAssertion));
     }
 
+    @Test
+    public void identicalAssertionsAreStoredSeparately() throws MqttException, InterruptedException {
+        //assertions have no creationTime, the same failures reported twice are two reports
+        val testId = System.currentTimeMillis();
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        val assertion = exampleAssertion.replace("30847872", Long.toString(testId)).getBytes(StandardCharsets.UTF_8);
+        client.publish(AssertionController.MQTT_ASSERTION_TOPIC, assertion,2,false);
+        client.publish(AssertionController.MQTT_ASSERTION_TOPIC, assertion,2,false);
+        Thread.sleep(1000);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from reported_assertion where test_created_at = ?", Long.class, testId), is(2L));
+    }
+
 }
@@ -0,0 +1,88 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.storage.EntryDictionary;
+import lombok.val;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EntryDictionaryTest {
+    private final String exampleTime = "{\n" +
+            "    \"testId\": 30847872,\n" +
+            "    \"creationTime\": 76363421,\n" +
+            "    \"times\":{\n" +
+            "\t\"http://localhost:9000/\":{\n" +
+            "\t\t\"POST\":{\n" +
+            "\t\t\t\"story1\":{\"minLatency\":\"10\",\"avgLatency\":\"15\",\"maxLatency\":\"20\",\"throughput\":\"1\"},\n" +
+            "\t\t\t\"story2\":{\"minLatency\":20,\"avgLatency\":20,\"maxLatency\":20,\"throughput\":2}\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "    }\n" +
+            "}\n";
+    private final String nextTime = exampleTime.replace("76363421", "76364421").replace("\"15\"", "\"17\"");
+
+    @Test
+    public void unpacksWhatHasBeenPacked() {
+        val dictionary = new EntryDictionary(42, EntryDictionary.train(Collections.singletonList(exampleTime), 16384));
+        val packed = dictionary.pack(nextTime, 6);
+        assertThat(EntryDictionary.idOf(packed), is(42));
+        assertThat(dictionary.unpack(packed), equalTo(nextTime));
+    }
+
+    @Test
+    public void entriesLikeTheSamplesBecomeMuchSmaller() {
+        val dictionary = new EntryDictionary(1, EntryDictionary.train(Collections.singletonList(exampleTime), 16384));
+        val withoutSamples = new EntryDictionary(2, new byte[0]);
+        val packed = dictionary.pack(nextTime, 6);
+        assertThat(packed.length, lessThan(withoutSamples.pack(nextTime, 6).length / 4));
+        assertThat(packed.length, lessThan(nextTime.getBytes(StandardCharsets.UTF_8).length / 10));
+    }
+
+    @Test
+    public void trainingKeepsTheFirstSampleAtTheEnd() {
+        val trained = EntryDictionary.train(Arrays.asList("first", "second", "first"), 8);
+        assertThat(new String(trained, StandardCharsets.UTF_8), equalTo("ondfirst"));
+    }
+
+    @Test
+    public void entriesOfAnotherDictionaryAreRejected() {
+        val dictionary = new EntryDictionary(1, EntryDictionary.train(Collections.singletonList(exampleTime), 16384));
+        val other = new EntryDictionary(2, EntryDictionary.train(Collections.singletonList(exampleTime), 16384));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> other.unpack(dictionary.pack(exampleTime, 6)));
+    }
+
+    @Test
+    public void truncatedEntriesAreRejected() {
+        val dictionary = new EntryDictionary(1, EntryDictionary.train(Collections.singletonList(exampleTime), 16384));
+        val packed = dictionary.pack(nextTime, 6);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> dictionary.unpack(Arrays.copyOf(packed, packed.length - 2)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> dictionary.unpack(Arrays.copyOf(packed, 3)));
+    }
+}
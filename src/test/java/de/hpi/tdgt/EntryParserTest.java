@@ -0,0 +1,132 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.hpi.tdgt.ingest.EntryParser;
+import de.hpi.tdgt.ingest.IngestEntry;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Log4j2
+public class EntryParserTest {
+    private final byte[] exampleTime = ("{\n" +
+            "    \"times\":{\n" +
+            "\t\"http://localhost:9000/\":{\n" +
+            "\t\t\"POST\":{\n" +
+            "\t\t\t\"story1\":{\"minLatency\":\"10\",\"avgLatency\":\"15\",\"maxLatency\":\"20\",\"throughput\":\"1\"},\n" +
+            "\t\t\t\"story2\":{\"minLatency\":20,\"avgLatency\":20,\"maxLatency\":20,\"throughput\":2}\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "    },\n" +
+            "    \"testId\": 30847872,\n" +
+            "    \"creationTime\": \"76363421\"\n" +
+            "}\n").getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void readsTestIdCreationTimeAndMeasurements() throws IOException {
+        val entry = EntryParser.parse(IngestEntry.Kind.TIME, exampleTime);
+        assertThat(entry.getTestId(), is(30847872L));
+        assertThat(entry.getCreationTime(), is(76363421L));
+        assertThat(entry.getFullEntry(), equalTo(new String(exampleTime, StandardCharsets.UTF_8)));
+        assertThat(entry.getMeasurements().size(), is(2));
+        val first = entry.getMeasurements().get(0);
+        assertThat(first.getTestId(), is(30847872L));
+        assertThat(first.getCreationTime(), is(76363421L));
+        assertThat(first.getUrl(), equalTo("http://localhost:9000/"));
+        assertThat(first.getMethod(), equalTo("POST"));
+        assertThat(first.getStory(), equalTo("story1"));
+        assertThat(first.getAvgLatency(), is(15d));
+        assertThat(entry.getMeasurements().get(1).getThroughput(), is(2d));
+    }
+
+    @Test
+    public void rejectsInvalidMessages() throws IOException {
+        assertThat(EntryParser.parse(IngestEntry.Kind.ASSERTION, "{\"a\":0}"), nullValue());
+        assertThat(tryParse("{\"a\"=0}"), is(false));
+        assertThat(tryParse("{\"testId\":1} {}"), is(false));
+        assertThat(tryParse("{\"testId\":{}}"), is(false));
+    }
+
+    private boolean tryParse(String message) {
+        try {
+            EntryParser.parse(IngestEntry.Kind.TIME, message);
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void contentHashMatchesMd5OfTheMessage() throws IOException {
+        //('x' || substr(md5('{"testId":1,"creationTime":1}'), 1, 16))::bit(64)::bigint
+        assertThat(EntryParser.parse(IngestEntry.Kind.ASSERTION, "{\"testId\":1,\"creationTime\":1}").getContentHash(), is(0x714bbb5c56ad4101L));
+        assertThat(EntryParser.parse(IngestEntry.Kind.ASSERTION, "{\"testId\":1,\"creationTime\":1}".getBytes(StandardCharsets.UTF_8)).getContentHash(), is(0x714bbb5c56ad4101L));
+    }
+
+    @Test
+    public void entriesWithoutCreationTimeHaveNoContentHash() throws IOException {
+        //two reports of the same failures are two reports
+        assertThat(EntryParser.parse(IngestEntry.Kind.ASSERTION, "{\"testId\":1}").getContentHash(), nullValue());
+    }
+
+    /**
+     * Compares the bytes allocated per message with reading the message into a map, which is what the controllers did before.
+     */
+    @Test
+    public void allocatesLessThanReadingAMap() throws IOException {
+        val threads = ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        val allocation = (com.sun.management.ThreadMXBean) threads;
+        Assumptions.assumeTrue(allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled());
+        val mapper = new ObjectMapper();
+        val iterations = 20000;
+        val thread = Thread.currentThread().getId();
+        //warm up both paths, so class loading and compilation are not measured
+        for (int i = 0; i < iterations; i++) {
+            mapper.readValue(new String(exampleTime, StandardCharsets.UTF_8), Map.class);
+            EntryParser.parse(IngestEntry.Kind.TIME, exampleTime);
+        }
+        var before = allocation.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            mapper.readValue(new String(exampleTime, StandardCharsets.UTF_8), Map.class);
+        }
+        val treeBytes = (allocation.getThreadAllocatedBytes(thread) - before) / iterations;
+        before = allocation.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            EntryParser.parse(IngestEntry.Kind.TIME, exampleTime);
+        }
+        val streamingBytes = (allocation.getThreadAllocatedBytes(thread) - before) / iterations;
+        log.info("Bytes allocated per message: " + treeBytes + " reading a map, " + streamingBytes + " streaming");
+        assertThat(streamingBytes, lessThan(treeBytes));
+    }
+}
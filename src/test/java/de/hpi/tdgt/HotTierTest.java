@@ -0,0 +1,153 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.storage.EntrySearch;
+import de.hpi.tdgt.storage.HotTier;
+import de.hpi.tdgt.storage.IdWatermark;
+import de.hpi.tdgt.test.EntryView;
+import de.hpi.tdgt.test.TestRepository;
+import lombok.val;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HotTierTest {
+    private static final long TEST_ID = 1;
+    //greatest id that has been committed before the test was tracked
+    private static final long STORED = 10;
+    private static final String ENTRY = "{\"testId\":1}";
+    //entries use their text plus a fixed overhead
+    private static final long ENTRY_SIZE = ENTRY.length() + 96;
+    private TestRepository repository;
+    private JdbcTemplate jdbcTemplate;
+    private IdWatermark watermark;
+
+    @BeforeEach
+    public void mockDatabase() {
+        repository = mock(TestRepository.class);
+        when(repository.findWithoutEntriesById(anyLong())).thenAnswer(invocation -> Optional.of(new de.hpi.tdgt.test.Test()));
+        jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.queryForObject(anyString(), eq(Long.class), any())).thenReturn(STORED);
+        watermark = new IdWatermark(jdbcTemplate);
+    }
+
+    @Test
+    public void entriesAfterTheStoredOnesAreFound() {
+        val tier = new HotTier(repository, jdbcTemplate, watermark, Long.MAX_VALUE);
+        tier.track(TEST_ID);
+        add(tier, TEST_ID, 11, 12, 13);
+        assertThat(ids(tier.find(EntrySearch.TIMES, TEST_ID, STORED, null, null, null)), contains(11L, 12L, 13L));
+        assertThat(ids(tier.find(EntrySearch.TIMES, TEST_ID, 11, null, null, 1)), contains(12L));
+        assertThat(tier.getTest(TEST_ID), notNullValue());
+    }
+
+    @Test
+    public void readsStartingBeforeTheStoredEntriesAreLeftToTheDatabase() {
+        val tier = new HotTier(repository, jdbcTemplate, watermark, Long.MAX_VALUE);
+        tier.track(TEST_ID);
+        add(tier, TEST_ID, 11);
+        assertThat(tier.find(EntrySearch.TIMES, TEST_ID, STORED - 1, null, null, null), nullValue());
+        assertThat(tier.find(EntrySearch.TIMES, TEST_ID, 0, null, null, null), nullValue());
+    }
+
+    @Test
+    public void entriesOfUntrackedTestsAreIgnored() {
+        val tier = new HotTier(repository, jdbcTemplate, watermark, Long.MAX_VALUE);
+        add(tier, TEST_ID, 11);
+        assertThat(tier.find(EntrySearch.TIMES, TEST_ID, STORED, null, null, null), nullValue());
+        assertThat(tier.getTest(TEST_ID), nullValue());
+    }
+
+    @Test
+    public void entriesAreNotReturnedPastABatchThatIsNotCommittedYet() {
+        val tier = new HotTier(repository, jdbcTemplate, watermark, Long.MAX_VALUE);
+        tier.track(TEST_ID);
+        //the batch that took id 12 commits after the one that took 13
+        watermark.begin(EntrySearch.TIMES, TEST_ID, 12);
+        add(tier, TEST_ID, 11, 13);
+        assertThat(ids(tier.find(EntrySearch.TIMES, TEST_ID, STORED, null, null, null)), contains(11L));
+        add(tier, TEST_ID, 12);
+        watermark.end(EntrySearch.TIMES, TEST_ID, 12);
+        assertThat(ids(tier.find(EntrySearch.TIMES, TEST_ID, 11, null, null, null)), contains(12L, 13L));
+    }
+
+    @Test
+    public void oldestEntriesAreEvictedOnceTheTierIsFull() {
+        val tier = new HotTier(repository, jdbcTemplate, watermark, 2 * ENTRY_SIZE);
+        tier.track(TEST_ID);
+        add(tier, TEST_ID, 11, 12, 13);
+        //11 is not held anymore, so the tier cannot answer reads that include it
+        assertThat(tier.find(EntrySearch.TIMES, TEST_ID, STORED, null, null, null), nullValue());
+        assertThat(ids(tier.find(EntrySearch.TIMES, TEST_ID, 11, null, null, null)), contains(12L, 13L));
+    }
+
+    @Test
+    public void endedTestsAreEvicted() {
+        val tier = new HotTier(repository, jdbcTemplate, watermark, 2 * ENTRY_SIZE);
+        tier.track(TEST_ID);
+        tier.track(TEST_ID + 1);
+        add(tier, TEST_ID, 11, 12);
+        tier.evict(TEST_ID);
+        assertThat(tier.find(EntrySearch.TIMES, TEST_ID, STORED, null, null, null), nullValue());
+        assertThat(tier.getTest(TEST_ID), nullValue());
+        //the space of the evicted entries is free again
+        add(tier, TEST_ID + 1, 11, 12);
+        assertThat(ids(tier.find(EntrySearch.TIMES, TEST_ID + 1, STORED, null, null, null)), contains(11L, 12L));
+    }
+
+    @Test
+    public void timeRangesAreApplied() {
+        val tier = new HotTier(repository, jdbcTemplate, watermark, Long.MAX_VALUE);
+        tier.track(TEST_ID);
+        for (long id = 11; id <= 13; id++) {
+            tier.added(EntrySearch.TIMES, TEST_ID, id, id * 1000, ENTRY);
+        }
+        tier.added(EntrySearch.TIMES, TEST_ID, 14, null, ENTRY);
+        assertThat(ids(tier.find(EntrySearch.TIMES, TEST_ID, STORED, 12000L, null, null)), contains(12L, 13L));
+        assertThat(ids(tier.find(EntrySearch.TIMES, TEST_ID, STORED, null, 12000L, null)), contains(11L, 12L));
+    }
+
+    private static void add(HotTier tier, long testId, long... ids) {
+        for (val id : ids) {
+            tier.added(EntrySearch.TIMES, testId, id, null, ENTRY);
+        }
+    }
+
+    private static List<Long> ids(List<EntryView> entries) {
+        assertThat(entries, notNullValue());
+        return entries.stream().map(EntryView::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.controller.AssertionController;
+import de.hpi.tdgt.controller.TimeController;
+import de.hpi.tdgt.test.TestRepository;
+import io.moquette.BrokerConstants;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import lombok.extern.log4j.Log4j2;
+import lombok.val;
+import org.HdrHistogram.Histogram;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.jetbrains.annotations.NotNull;
+import org.junit.ClassRule;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.util.TestPropertyValues;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Publishes synthetic times and assertions at a fixed rate through an embedded broker into the real controllers and reports
+ * the sustained rate, the lag from publishing to the row being inserted and how many messages got lost.
+ * Only runs if requested, e.g. mvn test -Dtest=IngestLoadTest -Dloadtest=true -Dloadtest.rate=5000 -Dloadtest.tests=4
+ * Other settings: loadtest.duration-s, loadtest.stories (size of a time), loadtest.assertion-share (share of assertions among the messages),
+ * loadtest.drain-s (how long to wait for the last messages).
+ */
+@ExtendWith(SpringExtension.class)
+@Log4j2
+@SpringBootTest(classes = Application.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@ContextConfiguration(initializers = IngestLoadTest.Initializer.class)
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+public class IngestLoadTest {
+    private static final int RATE = Integer.getInteger("loadtest.rate", 1000);
+    private static final int TESTS = Integer.getInteger("loadtest.tests", 1);
+    private static final int DURATION_S = Integer.getInteger("loadtest.duration-s", 30);
+    private static final int STORIES = Integer.getInteger("loadtest.stories", 10);
+    private static final double ASSERTION_SHARE = Double.parseDouble(System.getProperty("loadtest.assertion-share", "0.5"));
+    private static final int DRAIN_S = Integer.getInteger("loadtest.drain-s", 60);
+    //publishing happens in ticks, so the rate does not depend on the resolution of sleep
+    private static final int TICK_MS = 10;
+
+    @ClassRule
+    public static PostgreSQLContainer postgreSQLContainer = new PostgreSQLContainer().withPassword("inmemory")
+            .withUsername("inmemory");
+    private static Server broker;
+    private static String brokerUrl;
+
+    public static class Initializer implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+
+        @Override
+        public void initialize(@NotNull ConfigurableApplicationContext configurableApplicationContext) {
+            postgreSQLContainer.start();
+            try {
+                startBroker();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not start embedded broker", e);
+            }
+            TestPropertyValues values = TestPropertyValues.of(
+                    "spring.datasource.url=" + postgreSQLContainer.getJdbcUrl(),
+                    "spring.datasource.password=" + postgreSQLContainer.getPassword(),
+                    "spring.datasource.username=" + postgreSQLContainer.getUsername(),
+                    "mqtt.host=" + brokerUrl
+            );
+            values.applyTo(configurableApplicationContext);
+        }
+    }
+
+    private static void startBroker() throws IOException {
+        int port;
+        try (val socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        val properties = new Properties();
+        properties.setProperty(BrokerConstants.HOST_PROPERTY_NAME, "127.0.0.1");
+        properties.setProperty(BrokerConstants.PORT_PROPERTY_NAME, String.valueOf(port));
+        properties.setProperty(BrokerConstants.WEB_SOCKET_PORT_PROPERTY_NAME, BrokerConstants.DISABLED_PORT_BIND);
+        //keep sessions in memory
+        properties.setProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, "");
+        broker = new Server();
+        broker.startServer(new MemoryConfig(properties));
+        brokerUrl = "tcp://127.0.0.1:" + port;
+    }
+
+    @AfterAll
+    public static void stopBroker() {
+        if (broker != null) {
+            broker.stopServer();
+        }
+    }
+
+    @Autowired
+    private TestRepository testRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    public void sustainsTheConfiguredRate() throws MqttException, InterruptedException {
+        //time of the insert, compared with the creationTime of a message, which is the time it has been published
+        jdbcTemplate.execute("alter table reported_time add column if not exists load_test_inserted_at timestamptz default clock_timestamp()");
+        jdbcTemplate.execute("alter table reported_assertion add column if not exists load_test_inserted_at timestamptz default clock_timestamp()");
+        val testIds = new ArrayList<Long>();
+        val firstId = System.currentTimeMillis();
+        for (int i = 0; i < TESTS; i++) {
+            testIds.add(testRepository.save(new de.hpi.tdgt.test.Test(firstId + i, "Load test", true, new LinkedList<>(), new LinkedList<>())).getCreatedAt());
+        }
+
+        val publisher = new MqttAsyncClient(brokerUrl, UUID.randomUUID().toString(), new MemoryPersistence());
+        val options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setMaxInflight(Math.max(RATE, 10));
+        publisher.connect(options).waitForCompletion();
+
+        log.info("Publishing " + RATE + " messages/s for " + DURATION_S + "s to " + TESTS + " tests");
+        long published = 0;
+        long notPublished = 0;
+        val perTick = RATE * TICK_MS / 1000.0;
+        val start = System.currentTimeMillis();
+        val end = start + DURATION_S * 1000L;
+        double due = 0;
+        long sequence = 0;
+        for (long tick = start; tick < end; tick += TICK_MS) {
+            val wait = tick - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+            due += perTick;
+            for (; due >= 1; due--, sequence++) {
+                val testId = testIds.get((int) (sequence % TESTS));
+                //spreads the assertions evenly among the messages
+                val assertion = Math.floor((sequence + 1) * ASSERTION_SHARE) > Math.floor(sequence * ASSERTION_SHARE);
+                val message = assertion ? assertion(testId, sequence) : time(testId, sequence);
+                try {
+                    publisher.publish(assertion ? AssertionController.MQTT_ASSERTION_TOPIC : TimeController.MQTT_TIME_TOPIC,
+                            message.getBytes(StandardCharsets.UTF_8), 1, false);
+                    published++;
+                } catch (MqttException e) {
+                    //too many messages in flight, the broker does not keep up
+                    notPublished++;
+                }
+            }
+        }
+        val publishedIn = System.currentTimeMillis() - start;
+        publisher.disconnect().waitForCompletion();
+        publisher.close();
+
+        //wait until everything has arrived or nothing arrives anymore
+        long stored = count(firstId);
+        long lastChange = System.currentTimeMillis();
+        while (stored < published && System.currentTimeMillis() - lastChange < DRAIN_S * 1000L) {
+            Thread.sleep(500);
+            val current = count(firstId);
+            if (current != stored) {
+                stored = current;
+                lastChange = System.currentTimeMillis();
+            }
+        }
+
+        val lag = new Histogram(3_600_000L, 3);
+        long lastInsert = start;
+        for (val table : new String[]{"reported_time", "reported_assertion"}) {
+            val inserted = "(extract(epoch from load_test_inserted_at) * 1000)::bigint";
+            val condition = " from " + table + " where test_created_at >= ? and test_created_at < ? and creation_time is not null";
+            jdbcTemplate.query("select " + inserted + " - creation_time" + condition,
+                    rs -> {
+                        lag.recordValue(Math.max(rs.getLong(1), 0));
+                    }, firstId, firstId + TESTS);
+            val tableLastInsert = jdbcTemplate.queryForObject("select max(" + inserted + ")" + condition, Long.class, firstId, firstId + TESTS);
+            if (tableLastInsert != null) {
+                lastInsert = Math.max(lastInsert, tableLastInsert);
+            }
+        }
+        val report = String.format("Load test: %d msgs/s requested, %d published in %.1fs (%d not accepted by the client), %d stored, %d dropped, " +
+                        "%.0f msgs/s sustained, lag p50 %dms, p90 %dms, p99 %dms, p99.9 %dms, max %dms",
+                RATE, published, publishedIn / 1000.0, notPublished, stored, published - stored,
+                stored * 1000.0 / Math.max(lastInsert - start, 1),
+                lag.getValueAtPercentile(50), lag.getValueAtPercentile(90), lag.getValueAtPercentile(99), lag.getValueAtPercentile(99.9), lag.getMaxValue());
+        log.info(report);
+        assertThat(stored, greaterThan(0L));
+    }
+
+    private long count(long firstId) {
+        long count = 0;
+        for (val table : new String[]{"reported_time", "reported_assertion"}) {
+            count += jdbcTemplate.queryForObject("select count(*) from " + table + " where test_created_at >= ? and test_created_at < ?",
+                    Long.class, firstId, firstId + TESTS);
+        }
+        return count;
+    }
+
+    /**
+     * Shaped like the exampleTime of TimeControllerTest. The sequence makes every message unique, so none is taken for a redelivery.
+     */
+    private static String time(long testId, long sequence) {
+        val sb = new StringBuilder("{\"testId\":").append(testId).append(",\"creationTime\":").append(System.currentTimeMillis())
+                .append(",\"sequence\":").append(sequence).append(",\"times\":{\"http://localhost:9000/\":{\"POST\":{");
+        for (int story = 0; story < STORIES; story++) {
+            sb.append(story == 0 ? "" : ",").append("\"story").append(story).append("\":{")
+                    .append("\"minLatency\":\"").append(10 + story).append("\",")
+                    .append("\"avgLatency\":\"").append(20 + story).append("\",")
+                    .append("\"maxLatency\":\"").append(30 + story).append("\",")
+                    .append("\"throughput\":\"1\"}");
+        }
+        return sb.append("}}}}").toString();
+    }
+
+    /**
+     * Shaped like the exampleAssertion of AssertionControllerTest.
+     */
+    private static String assertion(long testId, long sequence) {
+        return "{\"testId\":" + testId + ",\"creationTime\":" + System.currentTimeMillis() + ",\"sequence\":" + sequence +
+                ",\"actuals\":{\"postWithBody returns JSON\":{\"key\":1,\"value\":[\"application/json\"]}}}";
+    }
+}
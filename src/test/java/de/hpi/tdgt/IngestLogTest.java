@@ -0,0 +1,170 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.ingest.DuplicateFilter;
+import de.hpi.tdgt.ingest.EntryParser;
+import de.hpi.tdgt.ingest.IngestEntry;
+import de.hpi.tdgt.ingest.IngestLog;
+import de.hpi.tdgt.ingest.IngestPipeline;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IngestLogTest {
+    private Path directory;
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    //test ids of the entries the log handed to the pipeline, in that order
+    private final List<Long> replayed = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("wal");
+    }
+
+    @AfterEach
+    public void deleteDirectory() throws IOException {
+        try (val files = Files.walk(directory)) {
+            for (val file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void entriesThatHaveNotBeenWrittenAreReplayedAfterARestart() throws Exception {
+        //takes the entries, but the service goes down before the database confirms them
+        val first = start(pipeline(entry -> {
+        }), 10);
+        for (long testId = 1; testId <= 3; testId++) {
+            submit(first, testId);
+        }
+        awaitReplayed(3);
+        //checkpoints have been taken in the meantime
+        Thread.sleep(50);
+        first.stop();
+        replayed.clear();
+        val second = start(pipeline(IngestEntry::acknowledge), 10);
+        awaitReplayed(3);
+        assertThat(replayed, contains(1L, 2L, 3L));
+        second.stop();
+        //written now, so they are not replayed again
+        replayed.clear();
+        val third = start(pipeline(IngestEntry::acknowledge), 10);
+        Thread.sleep(300);
+        third.stop();
+        assertThat(replayed, empty());
+    }
+
+    @Test
+    public void droppedEntriesDoNotHoldBackNewOnes() throws Exception {
+        val attempts = new AtomicInteger();
+        //the first entry is dropped once, e.g. because the database was unavailable
+        val log = start(pipeline(entry -> {
+            if (entry.getTestId() == 1 && attempts.getAndIncrement() == 0) {
+                entry.reject();
+            } else {
+                entry.acknowledge();
+            }
+        }), 10);
+        submit(log, 1);
+        submit(log, 2);
+        awaitReplayed(3);
+        log.stop();
+        assertThat(replayed, contains(1L, 2L, 1L));
+    }
+
+    @Test
+    public void entriesAreGivenUpAfterTheLastAttempt() throws Exception {
+        val log = start(pipeline(IngestEntry::reject), 2);
+        submit(log, 1);
+        awaitReplayed(2);
+        await(() -> meterRegistry.counter("ingest.entries.dropped", "reason", "attempts").count() == 1);
+        log.stop();
+        replayed.clear();
+        val restarted = start(pipeline(IngestEntry::acknowledge), 2);
+        Thread.sleep(300);
+        restarted.stop();
+        assertThat(replayed, empty());
+    }
+
+    private interface Writer {
+        void write(IngestEntry entry);
+    }
+
+    /**
+     * @param writer called with every entry the pipeline takes, acknowledges or rejects it
+     */
+    private IngestPipeline pipeline(Writer writer) throws InterruptedException {
+        val pipeline = mock(IngestPipeline.class);
+        when(pipeline.enqueue(any(), anyLong())).thenAnswer(invocation -> {
+            IngestEntry entry = invocation.getArgument(0);
+            replayed.add(entry.getTestId());
+            writer.write(entry);
+            return true;
+        });
+        return pipeline;
+    }
+
+    private IngestLog start(IngestPipeline pipeline, int maxAttempts) throws IOException {
+        val log = new IngestLog(pipeline, new DuplicateFilter(100), directory.toString(), 1024 * 1024, "always", 10, 10, maxAttempts, 100, 100, meterRegistry);
+        log.start();
+        return log;
+    }
+
+    private static void submit(IngestLog log, long testId) throws IOException {
+        val entry = EntryParser.parse(IngestEntry.Kind.ASSERTION, "{\"testId\":" + testId + ",\"actuals\":{}}");
+        assertThat(log.submit(entry), is(true));
+    }
+
+    private void awaitReplayed(int count) throws InterruptedException {
+        await(() -> replayed.size() >= count);
+        assertThat(replayed.size(), is(count));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(condition.getAsBoolean(), is(true));
+    }
+}
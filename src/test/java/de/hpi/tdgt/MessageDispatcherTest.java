@@ -0,0 +1,205 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.mqtt.MessageDispatcher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class MessageDispatcherTest {
+    //estimated size of every message, queues are bounded by a multiple of it
+    private static final int SIZE = 100;
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    public void messagesOfATestAreHandledInTheOrderTheyArrived() {
+        val dispatcher = new MessageDispatcher(4, 1000 * SIZE, 1000, 5000, meterRegistry);
+        dispatcher.start();
+        val handled = new ConcurrentHashMap<Long, List<Integer>>();
+        for (int i = 0; i < 1000; i++) {
+            val testId = (long) (i % 10);
+            val message = i;
+            assertThat(dispatcher.dispatch(testId, SIZE, () -> handled.computeIfAbsent(testId, id -> Collections.synchronizedList(new ArrayList<>())).add(message)), is(true));
+        }
+        dispatcher.stop();
+        assertThat(handled.size(), is(10));
+        for (Map.Entry<Long, List<Integer>> test : handled.entrySet()) {
+            val expected = new ArrayList<Integer>();
+            for (int i = test.getKey().intValue(); i < 1000; i += 10) {
+                expected.add(i);
+            }
+            assertThat(test.getValue(), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void testsOfDifferentWorkersAreHandledInParallel() throws InterruptedException {
+        val dispatcher = new MessageDispatcher(2, 10 * SIZE, 1000, 5000, meterRegistry);
+        dispatcher.start();
+        val blocked = new CountDownLatch(1);
+        val handled = new CountDownLatch(1);
+        //test 0 is assigned to the first worker, test 1 to the second
+        dispatcher.dispatch(0, SIZE, () -> await(blocked));
+        dispatcher.dispatch(1, SIZE, handled::countDown);
+        assertThat(handled.await(5, TimeUnit.SECONDS), is(true));
+        blocked.countDown();
+        dispatcher.stop();
+    }
+
+    @Test
+    public void messagesAreRejectedIfTheQueueIsFull() throws InterruptedException {
+        val dispatcher = new MessageDispatcher(1, 2 * SIZE, 10, 5000, meterRegistry);
+        dispatcher.start();
+        val started = new CountDownLatch(1);
+        val blocked = new CountDownLatch(1);
+        val handled = new AtomicInteger();
+        assertThat(dispatcher.dispatch(1, SIZE, () -> {
+            started.countDown();
+            await(blocked);
+            handled.incrementAndGet();
+        }), is(true));
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        //the message being handled still counts, so the queue can hold only one more
+        assertThat(dispatcher.dispatch(1, SIZE, handled::incrementAndGet), is(true));
+        assertThat(dispatcher.dispatch(1, SIZE, handled::incrementAndGet), is(false));
+        assertThat(meterRegistry.counter("mqtt.dispatch.rejected").count(), is(1.0));
+        blocked.countDown();
+        dispatcher.stop();
+        assertThat(handled.get(), is(2));
+    }
+
+    @Test
+    public void queuedMessagesAreHandledBeforeStopping() {
+        val dispatcher = new MessageDispatcher(1, 1000 * SIZE, 1000, 5000, meterRegistry);
+        dispatcher.start();
+        val handled = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            dispatcher.dispatch(1, SIZE, handled::incrementAndGet);
+        }
+        dispatcher.stop();
+        assertThat(handled.get(), is(100));
+        assertThat(dispatcher.dispatch(1, SIZE, handled::incrementAndGet), is(false));
+    }
+
+    @Test
+    public void failingHandlersDoNotStopTheWorker() {
+        val dispatcher = new MessageDispatcher(1, 10 * SIZE, 1000, 5000, meterRegistry);
+        dispatcher.start();
+        val handled = new AtomicInteger();
+        dispatcher.dispatch(1, SIZE, () -> {
+            throw new IllegalStateException("broken message");
+        });
+        dispatcher.dispatch(1, SIZE, handled::incrementAndGet);
+        dispatcher.stop();
+        assertThat(handled.get(), is(1));
+    }
+
+    @Test
+    public void controlMessagesAreHandledWhileTheWorkersAreBlocked() throws InterruptedException {
+        val dispatcher = new MessageDispatcher(1, 10 * SIZE, 10, 5000, meterRegistry);
+        dispatcher.start();
+        val blocked = new CountDownLatch(1);
+        val handled = new CountDownLatch(1);
+        dispatcher.dispatch(1, SIZE, () -> await(blocked));
+        assertThat(dispatcher.dispatchControl(handled::countDown), is(true));
+        assertThat(handled.await(5, TimeUnit.SECONDS), is(true));
+        blocked.countDown();
+        dispatcher.stop();
+    }
+
+    @Test
+    public void controlMessagesOfATestAreHandledAfterItsMessages() {
+        val dispatcher = new MessageDispatcher(2, 1000 * SIZE, 10, 5000, meterRegistry);
+        dispatcher.start();
+        val handled = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 100; i++) {
+            val message = i;
+            dispatcher.dispatch(1, SIZE, () -> handled.add(message));
+        }
+        assertThat(dispatcher.dispatchControl(1, () -> handled.add(100)), is(true));
+        dispatcher.stop();
+        assertThat(handled.size(), is(101));
+        assertThat(handled.get(100), is(100));
+    }
+
+    @Test
+    public void controlMessagesAreRejectedIfTheirQueueIsFull() throws InterruptedException {
+        val dispatcher = new MessageDispatcher(1, 10 * SIZE, 1, 5000, meterRegistry);
+        dispatcher.start();
+        val started = new CountDownLatch(1);
+        val blocked = new CountDownLatch(1);
+        assertThat(dispatcher.dispatchControl(() -> {
+            started.countDown();
+            await(blocked);
+        }), is(true));
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(dispatcher.dispatchControl(() -> { }), is(true));
+        assertThat(dispatcher.dispatchControl(() -> { }), is(false));
+        assertThat(meterRegistry.counter("mqtt.dispatch.rejected").count(), is(1.0));
+        blocked.countDown();
+        dispatcher.stop();
+    }
+
+    @Test
+    public void messagesCanWaitForEarlierControlMessages() {
+        val dispatcher = new MessageDispatcher(1, 10 * SIZE, 10, 5000, meterRegistry);
+        dispatcher.start();
+        val blocked = new CountDownLatch(1);
+        val handled = new AtomicInteger();
+        dispatcher.dispatchControl(() -> {
+            await(blocked);
+            handled.incrementAndGet();
+        });
+        val queued = dispatcher.getQueuedControlMessages();
+        assertThat(dispatcher.awaitControlMessages(queued, 10), is(false));
+        blocked.countDown();
+        assertThat(dispatcher.awaitControlMessages(queued, 5000), is(true));
+        assertThat(handled.get(), is(1));
+        //a later control message is not waited for
+        val later = new CountDownLatch(1);
+        dispatcher.dispatchControl(() -> await(later));
+        assertThat(dispatcher.awaitControlMessages(queued, 10), is(true));
+        later.countDown();
+        dispatcher.stop();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
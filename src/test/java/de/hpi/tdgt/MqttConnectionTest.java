@@ -0,0 +1,163 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.mqtt.MqttConnection;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.moquette.BrokerConstants;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import lombok.val;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class MqttConnectionTest {
+    private static final String TOPIC = "de.hpi.tdgt.test";
+    private Server broker;
+    private int port;
+    private MqttConnection connection;
+
+    @BeforeEach
+    public void startBroker() throws IOException {
+        try (val socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        restartBroker();
+    }
+
+    @AfterEach
+    public void stopBroker() {
+        if (connection != null) {
+            connection.close();
+        }
+        broker.stopServer();
+    }
+
+    @Test
+    public void subscriptionsMadeBeforeConnectingAreSent() throws MqttException, IOException, InterruptedException {
+        connection = new MqttConnection(brokerUrl(), UUID.randomUUID().toString(), false, 100, new SimpleMeterRegistry());
+        val received = subscribe(connection);
+        connection.connect();
+        publish("first");
+        assertThat(received.poll(5, TimeUnit.SECONDS), equalTo("first"));
+    }
+
+    @Test
+    public void topicsAreSubscribedAgainAfterReconnecting() throws MqttException, IOException, InterruptedException {
+        connection = new MqttConnection(brokerUrl(), UUID.randomUUID().toString(), false, 100, new SimpleMeterRegistry());
+        val received = subscribe(connection);
+        connection.connect();
+        publish("before");
+        assertThat(received.poll(5, TimeUnit.SECONDS), equalTo("before"));
+        //the broker keeps sessions in memory, so the new one does not know the subscription
+        broker.stopServer();
+        restartBroker();
+        //the client reconnects on its own after a few seconds
+        String message = null;
+        for (int attempt = 0; attempt < 30 && message == null; attempt++) {
+            publish("after");
+            message = received.poll(1, TimeUnit.SECONDS);
+        }
+        assertThat(message, equalTo("after"));
+    }
+
+    @Test
+    public void messagesOfOtherTopicsAreNotPassedToTheListener() throws MqttException, IOException, InterruptedException {
+        connection = new MqttConnection(brokerUrl(), UUID.randomUUID().toString(), false, 100, new SimpleMeterRegistry());
+        val received = subscribe(connection);
+        val other = new LinkedBlockingQueue<String>();
+        connection.subscribe(TOPIC + ".other", (topic, message) -> other.add(message.toString()));
+        connection.connect();
+        publish("first");
+        assertThat(received.poll(5, TimeUnit.SECONDS), equalTo("first"));
+        assertThat(other.isEmpty(), is(true));
+    }
+
+    @Test
+    public void releasedMessagesAreDeliveredAgain() throws MqttException, IOException, InterruptedException {
+        connection = new MqttConnection(brokerUrl(), UUID.randomUUID().toString(), true, 100, new SimpleMeterRegistry());
+        val received = new LinkedBlockingQueue<String>();
+        val attempts = new AtomicInteger();
+        connection.subscribe(TOPIC, (topic, message) -> {
+            received.add(message.toString());
+            //could not be stored the first time, e.g. because the database was unavailable
+            if (attempts.getAndIncrement() == 0) {
+                connection.release(message);
+            } else {
+                connection.acknowledge(message);
+            }
+        });
+        connection.connect();
+        publish("first");
+        assertThat(received.poll(5, TimeUnit.SECONDS), equalTo("first"));
+        //after reconnecting
+        assertThat(received.poll(5, TimeUnit.SECONDS), equalTo("first"));
+        //acknowledged now
+        assertThat(received.poll(1, TimeUnit.SECONDS), nullValue());
+    }
+
+    private void restartBroker() throws IOException {
+        val properties = new Properties();
+        properties.setProperty(BrokerConstants.HOST_PROPERTY_NAME, "127.0.0.1");
+        properties.setProperty(BrokerConstants.PORT_PROPERTY_NAME, String.valueOf(port));
+        properties.setProperty(BrokerConstants.WEB_SOCKET_PORT_PROPERTY_NAME, BrokerConstants.DISABLED_PORT_BIND);
+        //keep sessions in memory
+        properties.setProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, "");
+        broker = new Server();
+        broker.startServer(new MemoryConfig(properties));
+    }
+
+    private String brokerUrl() {
+        return "tcp://127.0.0.1:" + port;
+    }
+
+    private static BlockingQueue<String> subscribe(MqttConnection connection) throws MqttException {
+        val received = new LinkedBlockingQueue<String>();
+        connection.subscribe(TOPIC, (topic, message) -> received.add(message.toString()));
+        return received;
+    }
+
+    private void publish(String message) throws MqttException {
+        val publisher = new MqttAsyncClient(brokerUrl(), UUID.randomUUID().toString(), new MemoryPersistence());
+        publisher.connect().waitForCompletion();
+        publisher.publish(TOPIC, message.getBytes(StandardCharsets.UTF_8), 1, false).waitForCompletion();
+        publisher.disconnect().waitForCompletion();
+        publisher.close();
+    }
+}
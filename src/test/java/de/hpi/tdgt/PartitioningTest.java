@@ -0,0 +1,132 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.controller.TestController;
+import de.hpi.tdgt.storage.EntryPartitions;
+import de.hpi.tdgt.test.TestRepository;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.junit.ClassRule;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.util.TestPropertyValues;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.RequestEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.LinkedList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(classes = Application.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "storage.partitioning.enabled=true")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@ContextConfiguration(initializers = PartitioningTest.Initializer.class)
+public class PartitioningTest {
+    //declarative partitioning with primary keys needs PostgreSQL 11
+    @ClassRule
+    public static PostgreSQLContainer postgreSQLContainer = new PostgreSQLContainer("postgres:11").withPassword("inmemory")
+            .withUsername("inmemory");
+
+    @LocalServerPort
+    private int localPort;
+
+    public TestRestTemplate testRestTemplate = new TestRestTemplate();
+
+    public static class Initializer implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+
+        @Override
+        public void initialize(@NotNull ConfigurableApplicationContext configurableApplicationContext) {
+            postgreSQLContainer.start();
+            TestPropertyValues values = TestPropertyValues.of(
+                    "spring.datasource.url=" + postgreSQLContainer.getJdbcUrl(),
+                    "spring.datasource.password=" + postgreSQLContainer.getPassword(),
+                    "spring.datasource.username=" + postgreSQLContainer.getUsername()
+            );
+            values.applyTo(configurableApplicationContext);
+        }
+    }
+
+    @Autowired
+    private TestRepository testRepository;
+
+    @Autowired
+    private EntryPartitions partitions;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    public void entriesOfATestAreStoredInItsOwnPartition() throws MalformedURLException, URISyntaxException {
+        assertThat(partitions.isEnabled(), is(true));
+        val test = importTimes(System.currentTimeMillis());
+        val other = importTimes(test + 1);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from reported_time_" + test, Long.class), is(2L));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from time_measurement_" + test, Long.class), is(0L));
+        //only the partition of the test is read
+        val plan = String.join("\n", jdbcTemplate.queryForList("explain select id from reported_time where test_created_at = " + test, String.class));
+        assertThat(plan, containsString("reported_time_" + test));
+        assertThat(plan, not(containsString("reported_time_" + other)));
+        val times = testRestTemplate.exchange(RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+test+"/times").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class).getBody();
+        assertThat(times.length, is(2));
+    }
+
+    @Test
+    public void deletingATestDropsItsPartitions() throws MalformedURLException, URISyntaxException, InterruptedException {
+        val test = importTimes(System.currentTimeMillis() + 10);
+        val response = testRestTemplate.exchange(RequestEntity.delete(new URL("http://localhost:"+localPort+"/test/"+test).toURI()).build(), Void.class);
+        assertThat(response.getStatusCode(), is(HttpStatus.ACCEPTED));
+        for (int i = 0; i < 50 && testRepository.existsById(test); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(testRepository.existsById(test), is(false));
+        assertThat(jdbcTemplate.queryForObject("select to_regclass('reported_time_" + test + "') is null", Boolean.class), is(true));
+    }
+
+    /**
+     * Stores a finished test with two times.
+     * @return id of the test
+     */
+    private long importTimes(long testId) throws MalformedURLException, URISyntaxException {
+        testRepository.save(new de.hpi.tdgt.test.Test(testId, "TestConfig", false, new LinkedList<>(), new LinkedList<>()));
+        val body = "{\"testId\":" + testId + ",\"creationTime\":1}\n{\"testId\":" + testId + ",\"creationTime\":2}\n";
+        val entity = RequestEntity.post(new URL("http://localhost:"+localPort+"/test/"+testId+"/times").toURI()).contentType(TestController.NDJSON).body(body);
+        assertThat(testRestTemplate.exchange(entity, Long.class).getBody(), is(2L));
+        return testId;
+    }
+}
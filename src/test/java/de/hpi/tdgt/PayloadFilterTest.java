@@ -0,0 +1,85 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.hpi.tdgt.storage.PayloadFilter;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PayloadFilterTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final String time = "{\n" +
+            "    \"testId\": 30847872,\n" +
+            "    \"creationTime\": 76363421,\n" +
+            "    \"times\":{\n" +
+            "\t\"http://localhost:9000/\":{\n" +
+            "\t\t\"POST\":{\n" +
+            "\t\t\t\"story1\":{\"minLatency\":\"10\",\"avgLatency\":\"15\",\"maxLatency\":\"20\",\"throughput\":\"1\"},\n" +
+            "\t\t\t\"story2\":\"not measured\"\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "    }\n" +
+            "}\n";
+    private final String assertion = "{\"testId\":30847872,\"actuals\":{\"returns JSON\":{\"key\":2,\"value\":[\"text/html\"]},\"returns 200\":{\"key\":\"3\",\"value\":[\"404\"]}}}";
+
+    @Test
+    public void payloadOnlyKeepsTheKeysFiltersMatch() throws IOException {
+        assertThat(mapper.readTree(PayloadFilter.payload(time)), equalTo(mapper.readTree(
+                "{\"times\":{\"http://localhost:9000/\":{\"POST\":{\"story1\":{},\"story2\":null}}}}")));
+    }
+
+    @Test
+    public void payloadKeepsNumericFailuresOfAssertions() throws IOException {
+        assertThat(mapper.readTree(PayloadFilter.payload(assertion)), equalTo(mapper.readTree(
+                "{\"actuals\":{\"returns JSON\":{\"key\":2},\"returns 200\":{}}}")));
+    }
+
+    @Test
+    public void invalidEntriesHaveNoPayload() {
+        assertThat(PayloadFilter.payload("[1, 2]"), nullValue());
+        assertThat(PayloadFilter.payload("{\"times\":"), nullValue());
+    }
+
+    @Test
+    public void filtersMatchThePayloadLikeTheEntry() {
+        val filters = Arrays.asList(
+                PayloadFilter.times("http://localhost:9000/", null, null),
+                PayloadFilter.times("http://localhost:9000/", "POST", "story1"),
+                PayloadFilter.times("http://localhost:9000/", "POST", "story2"),
+                PayloadFilter.times(null, null, "story1"),
+                PayloadFilter.times(null, "GET", null),
+                PayloadFilter.assertions("returns 200"),
+                PayloadFilter.assertions("returns 404"));
+        for (val entry : Arrays.asList(time, assertion)) {
+            for (val filter : filters) {
+                assertThat(filter.matches(PayloadFilter.payload(entry)), is(filter.matches(entry)));
+            }
+        }
+    }
+}
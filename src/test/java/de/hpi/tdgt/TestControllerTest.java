@@ -21,10 +21,13 @@
 
 package de.hpi.tdgt;
 
+import de.hpi.tdgt.aggregation.SummaryService;
+import de.hpi.tdgt.aggregation.TestSummary;
 import de.hpi.tdgt.controller.TestController;
 import de.hpi.tdgt.controller.TimeController;
 import de.hpi.tdgt.test.ReportedTime;
 import de.hpi.tdgt.test.ReportedTimeRepository;
+import de.hpi.tdgt.test.TestRegistry;
 import de.hpi.tdgt.test.TestRepository;
 import lombok.extern.log4j.Log4j2;
 import lombok.val;
@@ -47,8 +50,10 @@ import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.boot.web.server.LocalServerPort;
 import org.springframework.context.ApplicationContextInitializer;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.testcontainers.containers.PostgreSQLContainer;
@@ -131,6 +136,15 @@ public class TestControllerTest {
     @Autowired
     private ReportedTimeRepository reportedTimeRepository;
 
+    @Autowired
+    private TestRegistry testRegistry;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private SummaryService summaryService;
+
     @Test
     public void canGetATest() throws MalformedURLException, URISyntaxException {
         val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, null, null);
@@ -167,6 +181,41 @@ public class TestControllerTest {
         assertThat(testRepository.findById(test.getCreatedAt()).orElse(null).isActive(), equalTo(false));
     }
 
+    @Test
+    public void registryFollowsControlMessages() throws MqttException, InterruptedException {
+        val testId = System.currentTimeMillis();
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        assertThat(testRegistry.isActive(testId), is(true));
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testEnd "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        assertThat(testRegistry.exists(testId), is(true));
+        assertThat(testRegistry.isActive(testId), is(false));
+    }
+
+    @Test
+    public void repeatedStartDoesNotReactivateAnEndedTest() throws MqttException, InterruptedException {
+        val testId = System.currentTimeMillis();
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testEnd "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        //e.g. a retained start that is delivered again after a reconnect
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        assertThat(testRegistry.isActive(testId), is(false));
+        assertThat(testRepository.findById(testId).orElse(null).isActive(), is(false));
+    }
+
+    @Test
+    public void malformedControlMessagesDoNotStopLaterOnes() throws MqttException, InterruptedException {
+        client.publish(TestController.MQTT_CONTROL_TOPIC, "testStart notAnId".getBytes(StandardCharsets.UTF_8),2,false);
+        val testId = System.currentTimeMillis();
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        assertThat(testRegistry.isActive(testId), is(true));
+    }
+
     @Test
     public void canRetrieveFinishedTestIDs() throws InterruptedException, MalformedURLException, URISyntaxException {
         val config = "{ a=\" b\"}";
@@ -195,4 +244,81 @@ public class TestControllerTest {
         assertThat(Arrays.asList(returnedTests), not(containsInRelativeOrder(test2.getCreatedAt())));
     }
 
+    @Test
+    public void deletedTestsDisappearWithTheirEntries() throws MalformedURLException, URISyntaxException, InterruptedException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", false, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        reportedTimeRepository.save(new ReportedTime(test, "{}"));
+        reportedTimeRepository.save(new ReportedTime(test, "{}"));
+        val response = testRestTemplate.exchange(RequestEntity.delete(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()).toURI()).build(), Void.class);
+        assertThat(response.getStatusCode(), is(HttpStatus.ACCEPTED));
+        //hidden right away
+        assertThat(testRegistry.exists(test.getCreatedAt()), is(false));
+        val finished = testRestTemplate.exchange(RequestEntity.get(new URL("http://localhost:"+localPort+"/tests/finished").toURI()).accept(MediaType.APPLICATION_JSON).build(), Long[].class).getBody();
+        assertThat(Arrays.asList(finished), not(hasItem(test.getCreatedAt())));
+        //rows are deleted in the background
+        for (int i = 0; i < 50 && testRepository.existsById(test.getCreatedAt()); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(testRepository.existsById(test.getCreatedAt()), is(false));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from reported_time where test_created_at = ?", Long.class, test.getCreatedAt()), is(0L));
+    }
+
+    @Test
+    public void runningTestsAreNotDeleted() throws MalformedURLException, URISyntaxException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        val response = testRestTemplate.exchange(RequestEntity.delete(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()).toURI()).build(), Void.class);
+        assertThat(response.getStatusCode(), is(HttpStatus.CONFLICT));
+        assertThat(testRepository.existsById(test.getCreatedAt()), is(true));
+        val unknown = testRestTemplate.exchange(RequestEntity.delete(new URL("http://localhost:"+localPort+"/test/-1").toURI()).build(), Void.class);
+        assertThat(unknown.getStatusCode(), is(HttpStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void summaryIsMaintainedWhileEntriesAreWritten() throws MalformedURLException, URISyntaxException {
+        val testId = System.currentTimeMillis();
+        testRepository.save(new de.hpi.tdgt.test.Test(testId, "TestConfig", true, new LinkedList<>(), new LinkedList<>()));
+        val times = "{\"testId\":" + testId + ",\"creationTime\":1,\"times\":{\"http://localhost:9000/\":{\"POST\":{\"story1\":{\"minLatency\":\"10\",\"avgLatency\":\"10\",\"maxLatency\":\"10\",\"throughput\":\"1\"}}}}}\n" +
+                "{\"testId\":" + testId + ",\"creationTime\":2,\"times\":{\"http://localhost:9000/\":{\"GET\":{\"story1\":{\"minLatency\":\"20\",\"avgLatency\":\"40\",\"maxLatency\":\"50\",\"throughput\":\"3\"},\"story2\":{\"minLatency\":\"1\",\"avgLatency\":\"1\",\"maxLatency\":\"1\",\"throughput\":\"1\"}}}}}\n";
+        testRestTemplate.exchange(RequestEntity.post(new URL("http://localhost:"+localPort+"/test/"+testId+"/times").toURI()).contentType(TestController.NDJSON).body(times), Long.class);
+        val assertions = "{\"testId\":" + testId + ",\"actuals\":{\"returns JSON\":{\"key\":2,\"value\":[\"text/html\"]}}}\n" +
+                "{\"testId\":" + testId + ",\"actuals\":{\"returns JSON\":{\"key\":1,\"value\":[\"text/html\"]},\"returns 200\":{\"key\":3,\"value\":[\"404\"]}}}\n";
+        testRestTemplate.exchange(RequestEntity.post(new URL("http://localhost:"+localPort+"/test/"+testId+"/assertions").toURI()).contentType(TestController.NDJSON).body(assertions), Long.class);
+        val summaryUrl = new URL("http://localhost:"+localPort+"/test/"+testId+"/summary").toURI();
+        val expectedStories = Arrays.asList(new TestSummary.Story("story1", 10.0, 32.5, 50.0, 4.0), new TestSummary.Story("story2", 1.0, 1.0, 1.0, 1.0));
+        val expectedAssertions = Arrays.asList(new TestSummary.Assertion("returns 200", 3), new TestSummary.Assertion("returns JSON", 3));
+        val running = testRestTemplate.exchange(RequestEntity.get(summaryUrl).accept(MediaType.APPLICATION_JSON).build(), TestSummary.class).getBody();
+        assertThat(running.isComplete(), is(false));
+        assertThat(running.getStories(), equalTo(expectedStories));
+        assertThat(running.getAssertions(), equalTo(expectedAssertions));
+        //the same once the deltas of the writes have been merged
+        summaryService.merge();
+        val merged = testRestTemplate.exchange(RequestEntity.get(summaryUrl).accept(MediaType.APPLICATION_JSON).build(), TestSummary.class).getBody();
+        assertThat(merged.getStories(), equalTo(expectedStories));
+        assertThat(merged.getAssertions(), equalTo(expectedAssertions));
+        //computed again from all entries
+        summaryService.complete(testId);
+        val complete = testRestTemplate.exchange(RequestEntity.get(summaryUrl).accept(MediaType.APPLICATION_JSON).build(), TestSummary.class).getBody();
+        assertThat(complete.isComplete(), is(true));
+        assertThat(complete.getStories(), equalTo(expectedStories));
+        assertThat(complete.getAssertions(), equalTo(expectedAssertions));
+        val unknown = testRestTemplate.exchange(RequestEntity.get(new URL("http://localhost:"+localPort+"/test/-1/summary").toURI()).build(), String.class);
+        assertThat(unknown.getStatusCode(), is(HttpStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void summariesOfFinishedTestsAreCompletedInTheBackground() throws MalformedURLException, URISyntaxException, InterruptedException {
+        val testId = System.currentTimeMillis();
+        //e.g. ended before summaries have been maintained
+        testRepository.save(new de.hpi.tdgt.test.Test(testId, "TestConfig", false, new LinkedList<>(), new LinkedList<>()));
+        val summaryUrl = new URL("http://localhost:"+localPort+"/test/"+testId+"/summary").toURI();
+        val first = testRestTemplate.exchange(RequestEntity.get(summaryUrl).accept(MediaType.APPLICATION_JSON).build(), TestSummary.class);
+        assertThat(first.getStatusCode(), is(HttpStatus.OK));
+        for (int i = 0; i < 50 && !summaryService.isComplete(testId); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(summaryService.isComplete(testId), is(true));
+    }
+
 }
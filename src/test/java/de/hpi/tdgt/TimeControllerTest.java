@@ -22,11 +22,16 @@
 package de.hpi.tdgt;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import de.hpi.tdgt.aggregation.AggregateBucket;
+import de.hpi.tdgt.aggregation.RollupService;
 import de.hpi.tdgt.controller.TestController;
 import de.hpi.tdgt.controller.TimeController;
+import de.hpi.tdgt.mqtt.MqttConnection;
 import de.hpi.tdgt.test.ReportedTime;
 import de.hpi.tdgt.test.ReportedTimeRepository;
 import de.hpi.tdgt.test.TestRepository;
+import de.hpi.tdgt.test.TimeMeasurement;
+import de.hpi.tdgt.test.TimeMeasurementRepository;
 import lombok.extern.log4j.Log4j2;
 import lombok.val;
 import org.eclipse.paho.client.mqttv3.MqttClient;
@@ -48,13 +53,19 @@ import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.boot.web.server.LocalServerPort;
 import org.springframework.context.ApplicationContextInitializer;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.shaded.com.fasterxml.jackson.core.JsonProcessingException;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -100,6 +111,9 @@ public class TimeControllerTest {
     }
     @Value("${mqtt.host}")
     private String mqtt_host;
+
+    @Value("${query.max-page-size}")
+    private int maxPageSize;
     private MqttClient client;
     @BeforeEach
     public void prepareMqttClient() {
@@ -131,9 +145,21 @@ public class TimeControllerTest {
     @Autowired
     private TestRepository testRepository;
 
+    @Autowired
+    private MqttConnection mqttConnection;
+
     @Autowired
     private ReportedTimeRepository reportedTimeRepository;
 
+    @Autowired
+    private TimeMeasurementRepository timeMeasurementRepository;
+
+    @Autowired
+    private RollupService rollupService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
 
     @Test
     public void canGetATimeOfATest() throws MalformedURLException, URISyntaxException {
@@ -190,6 +216,222 @@ public class TimeControllerTest {
         assertThat(returnedTest[0], equalTo(time.getFullEntry()));
         assertThat(returnedTest[1], equalTo(time2.getFullEntry()));
     }
+    @Test
+    public void canPageThroughTimesOfATest() throws MalformedURLException, URISyntaxException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        val times = new LinkedList<ReportedTime>();
+        for(int i = 0; i < 5; i++){
+            times.add(reportedTimeRepository.save(new ReportedTime(test, "{\"i\":"+i+"}")));
+        }
+        val firstPage = RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times?limit=3").toURI()).accept(MediaType.APPLICATION_JSON).build();
+        val firstResponse = testRestTemplate.exchange(firstPage, String[].class);
+        assertThat(Arrays.asList(firstResponse.getBody()), contains(times.get(0).getFullEntry(), times.get(1).getFullEntry(), times.get(2).getFullEntry()));
+        assertThat(firstResponse.getHeaders().getFirst(HttpHeaders.LINK), containsString("after="+times.get(2).getId()));
+        val secondPage = RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times?limit=3&after="+times.get(2).getId()).toURI()).accept(MediaType.APPLICATION_JSON).build();
+        val secondResponse = testRestTemplate.exchange(secondPage, String[].class);
+        assertThat(Arrays.asList(secondResponse.getBody()), contains(times.get(3).getFullEntry(), times.get(4).getFullEntry()));
+        assertThat(secondResponse.getHeaders().getFirst(HttpHeaders.LINK), nullValue());
+    }
+
+    @Test
+    public void readsWithoutLimitReturnOnePage() throws MalformedURLException, URISyntaxException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", false, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        val body = new StringBuilder();
+        for(int i = 0; i <= maxPageSize; i++){
+            body.append("{\"testId\":").append(test.getCreatedAt()).append(",\"creationTime\":").append(i).append("}\n");
+        }
+        val imported = RequestEntity.post(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times").toURI()).contentType(TestController.NDJSON).body(body.toString());
+        assertThat(testRestTemplate.exchange(imported, Long.class).getBody(), is(maxPageSize + 1L));
+        val response = testRestTemplate.exchange(RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class);
+        assertThat(response.getBody().length, is(maxPageSize));
+        assertThat(response.getHeaders().getFirst(HttpHeaders.LINK), containsString("rel=\"next\""));
+        val next = testRestTemplate.exchange(RequestEntity.get(new URL(response.getHeaders().getFirst(HttpHeaders.LINK).replaceAll("^<(.*)>.*$", "$1")).toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class);
+        assertThat(next.getBody().length, is(1));
+    }
+
+    @Test
+    public void canFilterTimesOfATestByCreationTime() throws MalformedURLException, URISyntaxException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        for(long creationTime = 1000; creationTime <= 5000; creationTime += 1000){
+            val time = new ReportedTime(test, "{\"creationTime\":"+creationTime+"}");
+            time.setCreationTime(creationTime);
+            reportedTimeRepository.save(time);
+        }
+        val entity = RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times?from=2000&to=3000").toURI()).accept(MediaType.APPLICATION_JSON).build();
+        val returnedTimes = testRestTemplate.exchange(entity, String[].class).getBody();
+        assertThat(Arrays.asList(returnedTimes), contains("{\"creationTime\":2000}", "{\"creationTime\":3000}"));
+    }
+
+    @Test
+    public void canStreamTimesOfATestAsNdjson() throws MalformedURLException, URISyntaxException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        reportedTimeRepository.save(new ReportedTime(test, exampleTime));
+        reportedTimeRepository.save(new ReportedTime(test, "{\"testId\":12}"));
+        val entity = RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times").toURI()).accept(TestController.NDJSON).build();
+        val response = testRestTemplate.exchange(entity, String.class);
+        assertThat(response.getHeaders().getContentType().isCompatibleWith(TestController.NDJSON), is(true));
+        val lines = response.getBody().split("\n");
+        assertThat(lines.length, is(2));
+        assertThat(lines[0], equalTo(exampleTime.replace('\n', ' ')));
+        assertThat(lines[1], equalTo("{\"testId\":12}"));
+    }
+
+    @Test
+    public void canFilterTimesOfATestByPayload() throws MalformedURLException, URISyntaxException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        reportedTimeRepository.save(new ReportedTime(test, exampleTime));
+        reportedTimeRepository.save(new ReportedTime(test, "{\"testId\":12}"));
+        reportedTimeRepository.save(new ReportedTime(test, "{\"a\"=0}"));
+        val base = "http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times";
+        val byUrl = testRestTemplate.exchange(RequestEntity.get(new URL(base+"?url=http%3A%2F%2Flocalhost%3A9000%2F").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class).getBody();
+        assertThat(byUrl, arrayContaining(exampleTime));
+        val byStory = testRestTemplate.exchange(RequestEntity.get(new URL(base+"?story=story2").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class).getBody();
+        assertThat(byStory, arrayContaining(exampleTime));
+        val byMethodAndStory = testRestTemplate.exchange(RequestEntity.get(new URL(base+"?method=GET&story=story2").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class).getBody();
+        assertThat(byMethodAndStory, emptyArray());
+    }
+
+    @Test
+    public void canImportTimesOfATestAsNdjson() throws MalformedURLException, URISyntaxException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        val body = "{\"testId\":" + test.getCreatedAt() + ",\"creationTime\":1}\n{\"testId\":" + test.getCreatedAt() + ",\"creationTime\":2}\n";
+        val entity = RequestEntity.post(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times").toURI()).contentType(TestController.NDJSON).body(body);
+        assertThat(testRestTemplate.exchange(entity, Long.class).getBody(), is(2L));
+        val returnedTimes = testRestTemplate.exchange(RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class).getBody();
+        assertThat(returnedTimes.length, is(2));
+    }
+
+    @Test
+    public void importingTimesAgainDoesNotDuplicateThem() throws MalformedURLException, URISyntaxException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        val body = "{\"testId\":" + test.getCreatedAt() + ",\"creationTime\":1}\n{\"testId\":" + test.getCreatedAt() + ",\"creationTime\":1}\n";
+        val entity = RequestEntity.post(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times").toURI()).contentType(TestController.NDJSON).body(body);
+        assertThat(testRestTemplate.exchange(entity, Long.class).getBody(), is(1L));
+        assertThat(testRestTemplate.exchange(entity, Long.class).getBody(), is(0L));
+        val returnedTimes = testRestTemplate.exchange(RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class).getBody();
+        assertThat(returnedTimes.length, is(1));
+    }
+
+    @Test
+    public void importedTimesAreStoredPackedAndReadAsText() throws MalformedURLException, URISyntaxException {
+        //finished, so reads are not answered by the hot tier
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", false, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        val time = exampleTime.replace("30847872", "" + test.getCreatedAt()).replace('\n', ' ');
+        val base = "http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times";
+        testRestTemplate.exchange(RequestEntity.post(new URL(base).toURI()).contentType(TestController.NDJSON).body(time + "\n"), Long.class);
+        val packed = jdbcTemplate.queryForObject("select count(*) from reported_time where test_created_at = ? and full_entry is null and packed_entry is not null", Long.class, test.getCreatedAt());
+        assertThat(packed, is(1L));
+        assertThat(testRestTemplate.exchange(RequestEntity.get(new URL(base).toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class).getBody(), arrayContaining(time));
+        assertThat(testRestTemplate.exchange(RequestEntity.get(new URL(base + "?story=story1").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class).getBody(), arrayContaining(time));
+        assertThat(testRestTemplate.exchange(RequestEntity.get(new URL(base).toURI()).accept(TestController.NDJSON).build(), String.class).getBody(), equalTo(time + "\n"));
+    }
+
+    @Test
+    public void responseSizesOfReadsAreRecordedPerEndpoint() throws MalformedURLException, URISyntaxException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        reportedTimeRepository.save(new ReportedTime(test, "{}"));
+        testRestTemplate.exchange(RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times").toURI()).accept(MediaType.APPLICATION_JSON).build(), String[].class);
+        val metrics = testRestTemplate.getForObject(new URL("http://localhost:"+localPort+"/metrics").toURI(), String.class);
+        //the test id is not part of the tags
+        assertThat(metrics, containsString("http_server_response_size_bytes_count{uri=\"/test/{id}/times\""));
+        assertThat(metrics, not(containsString(String.valueOf(test.getCreatedAt()))));
+    }
+
+    @Test
+    public void unchangedTimesAreAnsweredWithNotModified() throws MalformedURLException, URISyntaxException {
+        val test = new de.hpi.tdgt.test.Test(System.currentTimeMillis(), "TestConfig", true, new LinkedList<>(), new LinkedList<>());
+        testRepository.save(test);
+        val times = new URL("http://localhost:"+localPort+"/test/"+test.getCreatedAt()+"/times").toURI();
+        val first = testRestTemplate.exchange(RequestEntity.get(times).accept(MediaType.APPLICATION_JSON).build(), String[].class);
+        val eTag = first.getHeaders().getETag();
+        assertThat(eTag, notNullValue());
+        val unchanged = testRestTemplate.exchange(RequestEntity.get(times).accept(MediaType.APPLICATION_JSON).ifNoneMatch(eTag).build(), String[].class);
+        assertThat(unchanged.getStatusCode(), is(HttpStatus.NOT_MODIFIED));
+        val body = "{\"testId\":" + test.getCreatedAt() + ",\"creationTime\":1}\n";
+        testRestTemplate.exchange(RequestEntity.post(times).contentType(TestController.NDJSON).body(body), Long.class);
+        val changed = testRestTemplate.exchange(RequestEntity.get(new URL(times.toString()+"?since=0").toURI()).accept(MediaType.APPLICATION_JSON).ifNoneMatch(eTag).build(), String[].class);
+        assertThat(changed.getStatusCode(), is(HttpStatus.OK));
+        assertThat(changed.getBody().length, is(1));
+    }
+
+    @Test
+    public void canAggregateTimesOfATest() throws MalformedURLException, URISyntaxException {
+        val testId = System.currentTimeMillis();
+        testRepository.save(new de.hpi.tdgt.test.Test(testId, "TestConfig", true, new LinkedList<>(), new LinkedList<>()));
+        timeMeasurementRepository.save(new TimeMeasurement(0, testId, 1000L, "http://localhost:9000/", "POST", "story1", 10.0, 10.0, 10.0, 1.0));
+        timeMeasurementRepository.save(new TimeMeasurement(0, testId, 2000L, "http://localhost:9000/", "POST", "story1", 20.0, 40.0, 50.0, 3.0));
+        timeMeasurementRepository.save(new TimeMeasurement(0, testId, 12000L, "http://localhost:9000/", "POST", "story1", 5.0, 5.0, 5.0, 2.0));
+        timeMeasurementRepository.save(new TimeMeasurement(0, testId, 1000L, "http://localhost:9000/", "GET", "story2", 1.0, 1.0, 1.0, 1.0));
+        val entity = RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+testId+"/aggregate?bucket=10s&groupBy=story").toURI()).accept(MediaType.APPLICATION_JSON).build();
+        val buckets = testRestTemplate.exchange(entity, AggregateBucket[].class).getBody();
+        assertThat(buckets, notNullValue());
+        assertThat(Arrays.asList(buckets), contains(
+                new AggregateBucket(0, null, null, "story1", 10.0, 32.5, 50.0, 4.0),
+                new AggregateBucket(0, null, null, "story2", 1.0, 1.0, 1.0, 1.0),
+                new AggregateBucket(10000, null, null, "story1", 5.0, 5.0, 5.0, 2.0)
+        ));
+    }
+
+    @Test
+    public void aggregationUsesRollupsOfFinishedTests() throws MalformedURLException, URISyntaxException {
+        val testId = System.currentTimeMillis();
+        testRepository.save(new de.hpi.tdgt.test.Test(testId, "TestConfig", false, new LinkedList<>(), new LinkedList<>()));
+        val measurements = Arrays.asList(
+                new TimeMeasurement(0, testId, 1000L, "http://localhost:9000/", "POST", "story1", 10.0, 10.0, 10.0, 1.0),
+                new TimeMeasurement(0, testId, 2000L, "http://localhost:9000/", "POST", "story1", 20.0, 40.0, 50.0, 3.0),
+                new TimeMeasurement(0, testId, 61000L, "http://localhost:9000/", "POST", "story1", 5.0, 5.0, 5.0, 2.0));
+        timeMeasurementRepository.saveAll(measurements);
+        rollupService.rollUp(testId, true);
+        //only the rollups are left to answer the query
+        timeMeasurementRepository.deleteAll(timeMeasurementRepository.findAllByTestId(testId));
+        val entity = RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+testId+"/aggregate?bucket=1m&groupBy=story").toURI()).accept(MediaType.APPLICATION_JSON).build();
+        val buckets = testRestTemplate.exchange(entity, AggregateBucket[].class).getBody();
+        assertThat(buckets, notNullValue());
+        assertThat(Arrays.asList(buckets), contains(
+                new AggregateBucket(0, null, null, "story1", 10.0, 32.5, 50.0, 4.0),
+                new AggregateBucket(60000, null, null, "story1", 5.0, 5.0, 5.0, 2.0)
+        ));
+    }
+
+    @Test
+    public void lateMeasurementsAreRolledUpAgain() throws MalformedURLException, URISyntaxException {
+        val testId = System.currentTimeMillis();
+        testRepository.save(new de.hpi.tdgt.test.Test(testId, "TestConfig", false, new LinkedList<>(), new LinkedList<>()));
+        val times = new URL("http://localhost:"+localPort+"/test/"+testId+"/times").toURI();
+        val time = "{\"testId\":" + testId + ",\"creationTime\":%d,\"times\":{\"http://localhost:9000/\":{\"GET\":{\"story1\":{\"minLatency\":\"10\",\"avgLatency\":\"10\",\"maxLatency\":\"10\",\"throughput\":\"1\"}}}}}\n";
+        testRestTemplate.exchange(RequestEntity.post(times).contentType(TestController.NDJSON).body(String.format(time, 1000L) + String.format(time, 61000L)), Long.class);
+        rollupService.rollUp(testId, true);
+        //arrives after the bucket has been rolled up
+        testRestTemplate.exchange(RequestEntity.post(times).contentType(TestController.NDJSON).body(String.format(time, 2000L)), Long.class);
+        //its bucket is read from the measurements until it has been rolled up again
+        assertThat(rollupService.getWatermark(testId), is(0L));
+        rollupService.rollUpRunningTests();
+        //only the rollups are left to answer the query
+        timeMeasurementRepository.deleteAll(timeMeasurementRepository.findAllByTestId(testId));
+        val entity = RequestEntity.get(new URL("http://localhost:"+localPort+"/test/"+testId+"/aggregate?bucket=1m&groupBy=story").toURI()).accept(MediaType.APPLICATION_JSON).build();
+        val buckets = testRestTemplate.exchange(entity, AggregateBucket[].class).getBody();
+        assertThat(buckets, notNullValue());
+        assertThat(Arrays.asList(buckets), contains(
+                new AggregateBucket(0, null, null, "story1", 10.0, 10.0, 10.0, 2.0),
+                new AggregateBucket(60000, null, null, "story1", 10.0, 10.0, 10.0, 1.0)
+        ));
+    }
+
+    @Test
+    public void rejectsInvalidAggregationParameters() throws MalformedURLException, URISyntaxException {
+        val entity = RequestEntity.get(new URL("http://localhost:"+localPort+"/test/1/aggregate?bucket=10s&groupBy=full_entry").toURI()).accept(MediaType.APPLICATION_JSON).build();
+        assertThat(testRestTemplate.exchange(entity, String.class).getStatusCode(), is(HttpStatus.BAD_REQUEST));
+    }
+
     //when a static ID was used, other tests failed.
     @Test
     public void canCreateATimeEntryWithMqtt() throws MalformedURLException, URISyntaxException, JsonProcessingException, MqttException, InterruptedException {
@@ -208,4 +450,141 @@ public class TimeControllerTest {
         assertThat(retrievedTest.getTimes().get(0).getFullEntry(), equalTo(exampleTime));
     }
 
+    @Test
+    public void timeEntriesAreStoredAsMeasurements() throws MqttException, InterruptedException {
+        val testId = System.currentTimeMillis();
+        val time = exampleTime.replace("30847872",""+testId);
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        client.publish(TimeController.MQTT_TIME_TOPIC, time.getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(1000);
+        val measurements = timeMeasurementRepository.findAllByTestId(testId);
+        assertThat(measurements, hasSize(2));
+        val story2 = measurements.stream().filter(measurement -> measurement.getStory().equals("story2")).findFirst().orElse(null);
+        assertThat(story2, notNullValue());
+        assertThat(story2.getUrl(), equalTo("http://localhost:9000/"));
+        assertThat(story2.getMethod(), equalTo("POST"));
+        assertThat(story2.getCreationTime(), is(76363421L));
+        assertThat(story2.getMinLatency(), is(20.0));
+        assertThat(story2.getAvgLatency(), is(20.0));
+        assertThat(story2.getMaxLatency(), is(20.0));
+        assertThat(story2.getThroughput(), is(1.0));
+    }
+
+    @Test
+    public void newTimesArePushedToSubscribers() throws Exception {
+        val testId = System.currentTimeMillis();
+        val time = exampleTime.replace("30847872",""+testId);
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        val url = new URL("http://localhost:"+localPort+"/test/"+testId+"/times/stream");
+        val connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout(5000);
+        val events = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+        client.publish(TimeController.MQTT_TIME_TOPIC, time.getBytes(StandardCharsets.UTF_8),2,false);
+        assertThat(events.readLine(), equalTo("id:0"));
+        assertThat(events.readLine(), equalTo("data:"+time.replace('\n', ' ')));
+        connection.disconnect();
+        //buffered entries are sent again to a client that resumes
+        val resumed = (HttpURLConnection) url.openConnection();
+        resumed.setRequestProperty("Last-Event-ID", "-1");
+        resumed.setReadTimeout(5000);
+        val resumedEvents = new BufferedReader(new InputStreamReader(resumed.getInputStream(), StandardCharsets.UTF_8));
+        assertThat(resumedEvents.readLine(), equalTo("id:0"));
+        resumed.disconnect();
+    }
+
+    @Test
+    public void storedTimesAreNotPushedAgain() throws Exception {
+        val testId = System.currentTimeMillis();
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        val connection = (HttpURLConnection) new URL("http://localhost:"+localPort+"/test/"+testId+"/times/stream").openConnection();
+        connection.setReadTimeout(5000);
+        val events = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+        val times = new URL("http://localhost:"+localPort+"/test/"+testId+"/times").toURI();
+        val first = "{\"testId\":" + testId + ",\"creationTime\":1}";
+        val second = "{\"testId\":" + testId + ",\"creationTime\":2}";
+        //the second import of the first time is skipped by the database
+        for (val body : Arrays.asList(first, first, second)) {
+            testRestTemplate.exchange(RequestEntity.post(times).contentType(TestController.NDJSON).body(body + "\n"), Long.class);
+        }
+        assertThat(events.readLine(), equalTo("id:0"));
+        assertThat(events.readLine(), equalTo("data:"+first));
+        assertThat(events.readLine(), equalTo(""));
+        assertThat(events.readLine(), equalTo("id:1"));
+        assertThat(events.readLine(), equalTo("data:"+second));
+        connection.disconnect();
+    }
+
+    @Test
+    public void timesSentWhileDisconnectedAreStored() throws MqttException, InterruptedException {
+        val testId = System.currentTimeMillis();
+        val time = exampleTime.replace("30847872",""+testId);
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        //like a restart: the broker keeps the durable session while the storage is gone
+        mqttConnection.disconnect();
+        try {
+            for(int i = 0; i < 100; i++) {
+                //identical messages would be stored once
+                client.publish(TimeController.MQTT_TIME_TOPIC, time.replace("76363421", ""+(76363421+i)).getBytes(StandardCharsets.UTF_8), 1, false);
+            }
+        } finally {
+            mqttConnection.connect();
+        }
+        Thread.sleep(2000);
+        val retrievedTest = testRepository.findById(testId).orElse(null);
+        assertThat(retrievedTest, notNullValue());
+        assertThat(retrievedTest.getTimes().size(), is(100));
+    }
+
+    @Test
+    public void timesReceivedWhileReconnectingAreStored() throws MqttException, InterruptedException {
+        val testId = System.currentTimeMillis();
+        val time = exampleTime.replace("30847872",""+testId);
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        for(int i = 0; i < 100; i++) {
+            client.publish(TimeController.MQTT_TIME_TOPIC, time.replace("76363421", ""+(76363421+i)).getBytes(StandardCharsets.UTF_8), 1, false);
+        }
+        //some of them have been received but not committed yet, their acknowledgements would belong to the old connection
+        mqttConnection.disconnect();
+        mqttConnection.connect();
+        Thread.sleep(2000);
+        val retrievedTest = testRepository.findById(testId).orElse(null);
+        assertThat(retrievedTest, notNullValue());
+        assertThat(retrievedTest.getTimes().size(), is(100));
+    }
+
+    @Test
+    public void canCreateManyTimeEntriesWithMqtt() throws MqttException, InterruptedException {
+        val testId = System.currentTimeMillis();
+        val time = exampleTime.replace("30847872",""+testId);
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        for(int i = 0; i < 100; i++) {
+            client.publish(TimeController.MQTT_TIME_TOPIC, time.replace("76363421", ""+(76363421+i)).getBytes(StandardCharsets.UTF_8), 2, false);
+        }
+        Thread.sleep(2000);
+        val retrievedTest = testRepository.findById(testId).orElse(null);
+        assertThat(retrievedTest, notNullValue());
+        assertThat(retrievedTest.getTimes().size(), is(100));
+    }
+
+    @Test
+    public void redeliveredTimesAreStoredOnce() throws MqttException, InterruptedException {
+        val testId = System.currentTimeMillis();
+        val time = exampleTime.replace("30847872",""+testId);
+        client.publish(TestController.MQTT_CONTROL_TOPIC, ("testStart "+testId).getBytes(StandardCharsets.UTF_8),2,false);
+        Thread.sleep(200);
+        //a message that the broker delivers again, e.g. because its acknowledgement got lost
+        for(int i = 0; i < 3; i++) {
+            client.publish(TimeController.MQTT_TIME_TOPIC, time.getBytes(StandardCharsets.UTF_8), 1, false);
+        }
+        Thread.sleep(2000);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from reported_time where test_created_at = ?", Long.class, testId), is(1L));
+        assertThat(timeMeasurementRepository.findAllByTestId(testId).size(), is(2));
+    }
+
 }
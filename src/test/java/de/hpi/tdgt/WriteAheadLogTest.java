@@ -0,0 +1,126 @@
+/*
+ * WALT - A realistic load generator for web applications.
+ *
+ * Copyright 2020 Eric Ackermann <eric.ackermann@student.hpi.de>, Hendrik Bomhardt
+ * <hendrik.bomhardt@student.hpi.de>, Benito Buchheim
+ * <benito.buchheim@student.hpi.de>, Juergen Schlossbauer
+ * <juergen.schlossbauer@student.hpi.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.hpi.tdgt;
+
+import de.hpi.tdgt.ingest.WriteAheadLog;
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class WriteAheadLogTest {
+    private static final int SEGMENT_SIZE = 1024;
+    private Path directory;
+
+    @BeforeEach
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("wal");
+    }
+
+    @AfterEach
+    public void deleteDirectory() throws IOException {
+        try (val files = Files.walk(directory)) {
+            for (val file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void recordsAreReadInOrderAcrossSegments() throws IOException {
+        val wal = new WriteAheadLog(directory, SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            wal.append((byte) 0, ("{\"testId\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+        }
+        assertThat(segments().size(), greaterThan(1));
+        assertThat(readAll(wal, wal.getCheckpoint()).size(), is(100));
+        assertThat(readAll(wal, wal.getCheckpoint()).get(99), equalTo("{\"testId\":99}"));
+        wal.close();
+    }
+
+    @Test
+    public void recordsSurviveReopeningFromTheCheckpoint() throws IOException {
+        var wal = new WriteAheadLog(directory, SEGMENT_SIZE);
+        val positions = new ArrayList<Long>();
+        for (int i = 0; i < 100; i++) {
+            positions.add(wal.append((byte) 1, ("{\"testId\":" + i + "}").getBytes(StandardCharsets.UTF_8)));
+        }
+        wal.checkpoint(positions.get(49));
+        wal.close();
+        wal = new WriteAheadLog(directory, SEGMENT_SIZE);
+        val records = readAll(wal, wal.getCheckpoint());
+        assertThat(records.size(), is(50));
+        assertThat(records.get(0), equalTo("{\"testId\":50}"));
+        //segments that only contain processed records have been deleted
+        assertThat(segments().size(), lessThan((int) (positions.get(99) / SEGMENT_SIZE + 1)));
+        wal.append((byte) 1, "{\"testId\":100}".getBytes(StandardCharsets.UTF_8));
+        assertThat(readAll(wal, wal.getCheckpoint()).size(), is(51));
+        wal.close();
+    }
+
+    @Test
+    public void damagedRecordsAreDiscarded() throws IOException {
+        val wal = new WriteAheadLog(directory, SEGMENT_SIZE);
+        wal.append((byte) 0, "{\"testId\":1}".getBytes(StandardCharsets.UTF_8));
+        val end = wal.append((byte) 0, "{\"testId\":2}".getBytes(StandardCharsets.UTF_8));
+        wal.close();
+        //like a crash in the middle of writing the second record
+        try (val file = new RandomAccessFile(segments().get(0).toFile(), "rw")) {
+            file.seek(end - 2);
+            file.write('x');
+        }
+        val reopened = new WriteAheadLog(directory, SEGMENT_SIZE);
+        assertThat(readAll(reopened, reopened.getCheckpoint()), contains("{\"testId\":1}"));
+        reopened.append((byte) 0, "{\"testId\":3}".getBytes(StandardCharsets.UTF_8));
+        assertThat(readAll(reopened, reopened.getCheckpoint()), contains("{\"testId\":1}", "{\"testId\":3}"));
+        reopened.close();
+    }
+
+    private List<String> readAll(WriteAheadLog wal, long position) {
+        val messages = new ArrayList<String>();
+        WriteAheadLog.Record record;
+        while ((record = wal.read(position)) != null) {
+            messages.add(new String(record.getMessage(), StandardCharsets.UTF_8));
+            position = record.getNext();
+        }
+        return messages;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (val files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("segment-")).sorted().collect(Collectors.toList());
+        }
+    }
+}